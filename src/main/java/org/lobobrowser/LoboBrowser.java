@@ -58,6 +58,7 @@ import org.lobobrowser.security.TrustManager;
 import org.lobobrowser.utils.OS;
 import org.lobobrowser.utils.StreamHandlerFactory;
 import org.lobobrowser.reuse.ReuseManager;
+import org.lobobrowser.store.CacheManager;
 import org.lobobrowser.store.StorageManager;
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
@@ -65,6 +66,8 @@ import org.lobobrowser.gui.ConsoleModel;
 import org.lobobrowser.gui.DefaultWindowFactory;
 import org.lobobrowser.gui.FramePanel;
 import org.lobobrowser.request.AuthenticatorImpl;
+import org.lobobrowser.request.CookieStore;
+import org.lobobrowser.request.HttpConnectionPool;
 import org.cobraparser.validation.DomainValidation;
 import org.lobobrowser.request.NOPCookieHandlerImpl;
 import org.lobobrowser.security.LocalSecurityManager;
@@ -194,7 +197,8 @@ public class LoboBrowser {
     okHttpClient.setConnectTimeout(100, TimeUnit.SECONDS);
 
     // HttpsURLConnection.setDefaultSSLSocketFactory(sslSocketFactory);
-    okHttpClient.setSslSocketFactory(sslSocketFactory);
+    // Also sets the SSL socket factory and the connection pool.
+    HttpConnectionPool.getInstance().configure(okHttpClient, sslSocketFactory);
     okHttpClient.setFollowRedirects(false);
     okHttpClient.setFollowSslRedirects(false);
     factory.addFactory(new OkUrlFactory(okHttpClient));
@@ -532,6 +536,8 @@ public class LoboBrowser {
     AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
       try {
         ReuseManager.getInstance().shutdown();
+        CacheManager.shutdown();
+        CookieStore.getInstance().flush();
         StorageManager.getInstance().shutdown();
       } catch (final Exception err) {
         err.printStackTrace(System.err);
@@ -0,0 +1,360 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.context;
+
+import java.awt.Dimension;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes images with <code>ImageIO</code> readers on a bounded pool of worker
+ * threads, and keeps recently decoded images in a memory cache with a byte
+ * budget.
+ * <p>
+ * Images are keyed on their URL, the requested size and a fingerprint of
+ * their encoded bytes, so a reloaded image with different content is decoded
+ * again. Concurrent requests for the same image share one decode. Images with
+ * several frames, such as animated GIFs, and images a reader fails to decode
+ * are left to the toolkit, which animates the former and renders what it can
+ * of the latter.
+ * <p>
+ * A subsampled image keeps the size of the source image in its properties;
+ * see {@link #getSourceSize(Image)}.
+ */
+public final class ImageDecoder {
+  private static final Logger logger = Logger.getLogger(ImageDecoder.class.getName());
+
+  /** Memory budget of the decoded image cache. */
+  private static final long MAX_CACHE_BYTES = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+  /** Images above this size are not cached. */
+  private static final long MAX_CACHED_IMAGE_BYTES = MAX_CACHE_BYTES / 4;
+  /** Larger images are subsampled while decoding. */
+  private static final long MAX_PIXELS = 32L * 1024 * 1024;
+  private static final String SOURCE_WIDTH_PROPERTY = "lobo.sourceWidth";
+  private static final String SOURCE_HEIGHT_PROPERTY = "lobo.sourceHeight";
+
+  private static final ImageDecoder instance = new ImageDecoder();
+
+  private final ThreadPoolExecutor executor;
+  private final Map<Key, CompletableFuture<BufferedImage>> pendingDecodes = new ConcurrentHashMap<>();
+  private final Map<Key, BufferedImage> cache = new LinkedHashMap<>(64, 0.75f, true);
+  private long cacheBytes = 0;
+
+  private ImageDecoder() {
+    final int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      final Thread t = new Thread(r, "ImageDecoder");
+      t.setDaemon(true);
+      t.setPriority(Thread.NORM_PRIORITY - 1);
+      return t;
+    });
+    // Workers are started here so that they don't inherit the access control
+    // context of whichever caller happens to submit the first decode.
+    AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+      // Decoding from memory does not need temporary files.
+      ImageIO.setUseCache(false);
+      this.executor.prestartAllCoreThreads();
+      return null;
+    });
+  }
+
+  public static ImageDecoder getInstance() {
+    return instance;
+  }
+
+  /**
+   * Decodes an image in the worker pool.
+   *
+   * @param url
+   *          The URL of the image, or <code>null</code> if the decoded image
+   *          should not be cached.
+   * @param bytes
+   *          The encoded image.
+   * @param targetWidth
+   *          The width the image will be displayed at, or zero if unknown. If
+   *          both target dimensions are smaller than the image, it is
+   *          subsampled while decoding.
+   * @param targetHeight
+   *          The height the image will be displayed at, or zero if unknown.
+   * @param passListener
+   *          Invoked in a worker thread with the partially decoded image after
+   *          each pass of a progressive image, or <code>null</code>. It is
+   *          not invoked if an identical decode is already in progress.
+   * @return A future with the decoded image, or with <code>null</code> if the
+   *         image should be loaded with the toolkit instead: no
+   *         <code>ImageIO</code> reader understands the format, the image has
+   *         several frames, or it is truncated or corrupt.
+   */
+  public CompletableFuture<BufferedImage> decode(final URL url, final byte[] bytes, final int targetWidth, final int targetHeight,
+      final Consumer<BufferedImage> passListener) {
+    if (url == null) {
+      return CompletableFuture.supplyAsync(() -> this.decodeNow(bytes, targetWidth, targetHeight, passListener), this.executor);
+    }
+    final Key key = new Key(url.toExternalForm(), targetWidth, targetHeight, bytes);
+    final BufferedImage cached = this.getCached(key);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    final CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+    final CompletableFuture<BufferedImage> pending = this.pendingDecodes.putIfAbsent(key, future);
+    if (pending != null) {
+      return pending;
+    }
+    this.executor.execute(() -> {
+      try {
+        final BufferedImage image = this.decodeNow(bytes, targetWidth, targetHeight, passListener);
+        if (image != null) {
+          this.putCached(key, image);
+        }
+        future.complete(image);
+      } catch (final Throwable err) {
+        future.completeExceptionally(err);
+      } finally {
+        this.pendingDecodes.remove(key);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Decodes an image in the worker pool and waits for the result.
+   *
+   * @see #decode(URL, byte[], int, int, Consumer)
+   */
+  public BufferedImage decodeAndWait(final URL url, final byte[] bytes, final int targetWidth, final int targetHeight)
+      throws IOException {
+    try {
+      return this.decode(url, bytes, targetWidth, targetHeight, null).get();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decoding image.");
+    } catch (final ExecutionException ee) {
+      throw new IOException("Unable to decode image.", ee.getCause());
+    }
+  }
+
+  /**
+   * Gets the size of the source of an image this decoder subsampled, which
+   * is the size to lay the image out at.
+   *
+   * @return The size, or <code>null</code> if the image was not subsampled.
+   */
+  public static Dimension getSourceSize(final Image image) {
+    if (!(image instanceof BufferedImage)) {
+      return null;
+    }
+    final BufferedImage bufferedImage = (BufferedImage) image;
+    final Object width = bufferedImage.getProperty(SOURCE_WIDTH_PROPERTY);
+    final Object height = bufferedImage.getProperty(SOURCE_HEIGHT_PROPERTY);
+    if ((width instanceof Integer) && (height instanceof Integer)) {
+      return new Dimension((Integer) width, (Integer) height);
+    }
+    return null;
+  }
+
+  /**
+   * Removes all decoded images from the cache.
+   */
+  public void clearCache() {
+    synchronized (this.cache) {
+      this.cache.clear();
+      this.cacheBytes = 0;
+    }
+  }
+
+  private BufferedImage decodeNow(final byte[] bytes, final int targetWidth, final int targetHeight,
+      final Consumer<BufferedImage> passListener) {
+    try (final ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+      if (in == null) {
+        return null;
+      }
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, false, true);
+        if (reader.getNumImages(true) > 1) {
+          // Only the toolkit animates images.
+          return null;
+        }
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final int subsampling = getSubsampling(width, height, targetWidth, targetHeight);
+        if (subsampling > 1) {
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        if (passListener != null) {
+          reader.addIIOReadUpdateListener(new PassListener(passListener));
+        }
+        final BufferedImage image = reader.read(0, param);
+        return subsampling > 1 ? withSourceSize(image, width, height) : image;
+      } finally {
+        reader.dispose();
+      }
+    } catch (final IOException ioe) {
+      // Truncated and corrupt images are common on the web. The toolkit
+      // renders what it can of them.
+      if (logger.isLoggable(Level.INFO)) {
+        logger.log(Level.INFO, "decodeNow(): Unable to decode image.", ioe);
+      }
+      return null;
+    }
+  }
+
+  private static BufferedImage withSourceSize(final BufferedImage image, final int width, final int height) {
+    final Hashtable<String, Object> properties = new Hashtable<>();
+    properties.put(SOURCE_WIDTH_PROPERTY, width);
+    properties.put(SOURCE_HEIGHT_PROPERTY, height);
+    // Shares the raster of the decoded image.
+    return new BufferedImage(image.getColorModel(), image.getRaster(), image.isAlphaPremultiplied(), properties);
+  }
+
+  private static int getSubsampling(final int width, final int height, final int targetWidth, final int targetHeight) {
+    int subsampling = 1;
+    if ((targetWidth > 0) && (targetHeight > 0)) {
+      subsampling = Math.max(1, Math.min(width / targetWidth, height / targetHeight));
+    }
+    while ((((long) width / subsampling) * (height / subsampling)) > MAX_PIXELS) {
+      subsampling++;
+    }
+    return subsampling;
+  }
+
+  private static long getSize(final BufferedImage image) {
+    return (long) image.getWidth() * image.getHeight() * 4;
+  }
+
+  private BufferedImage getCached(final Key key) {
+    synchronized (this.cache) {
+      return this.cache.get(key);
+    }
+  }
+
+  private void putCached(final Key key, final BufferedImage image) {
+    final long size = getSize(image);
+    if (size > MAX_CACHED_IMAGE_BYTES) {
+      return;
+    }
+    synchronized (this.cache) {
+      final BufferedImage old = this.cache.put(key, image);
+      if (old != null) {
+        this.cacheBytes -= getSize(old);
+      }
+      this.cacheBytes += size;
+      final Iterator<BufferedImage> i = this.cache.values().iterator();
+      while ((this.cacheBytes > MAX_CACHE_BYTES) && i.hasNext()) {
+        this.cacheBytes -= getSize(i.next());
+        i.remove();
+      }
+    }
+  }
+
+  private static final class PassListener implements IIOReadUpdateListener {
+    private final Consumer<BufferedImage> consumer;
+
+    PassListener(final Consumer<BufferedImage> consumer) {
+      this.consumer = consumer;
+    }
+
+    public void passComplete(final ImageReader source, final BufferedImage theImage) {
+      this.consumer.accept(theImage);
+    }
+
+    public void passStarted(final ImageReader source, final BufferedImage theImage, final int pass, final int minPass,
+        final int maxPass, final int minX, final int minY, final int periodX, final int periodY, final int[] bands) {
+    }
+
+    public void imageUpdate(final ImageReader source, final BufferedImage theImage, final int minX, final int minY, final int width,
+        final int height, final int periodX, final int periodY, final int[] bands) {
+    }
+
+    public void thumbnailPassStarted(final ImageReader source, final BufferedImage theThumbnail, final int pass, final int minPass,
+        final int maxPass, final int minX, final int minY, final int periodX, final int periodY, final int[] bands) {
+    }
+
+    public void thumbnailPassComplete(final ImageReader source, final BufferedImage theThumbnail) {
+    }
+
+    public void thumbnailUpdate(final ImageReader source, final BufferedImage theThumbnail, final int minX, final int minY,
+        final int width, final int height, final int periodX, final int periodY, final int[] bands) {
+    }
+  }
+
+  private static final class Key {
+    private final String url;
+    private final int width;
+    private final int height;
+    private final int length;
+    private final int fingerprint;
+
+    Key(final String url, final int width, final int height, final byte[] bytes) {
+      this.url = url;
+      this.width = width;
+      this.height = height;
+      this.length = bytes.length;
+      this.fingerprint = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      final Key otherKey = (Key) other;
+      return (this.width == otherKey.width) && (this.height == otherKey.height) && (this.length == otherKey.length)
+          && (this.fingerprint == otherKey.fingerprint) && this.url.equals(otherKey.url);
+    }
+
+    @Override
+    public int hashCode() {
+      return (((this.url.hashCode() * 31) + this.width) * 31 + this.height) * 31 + this.fingerprint;
+    }
+  }
+}
@@ -33,23 +33,28 @@ import org.lobobrowser.request.SimpleRequestHandler;
 import org.cobraparser.ua.*;
 import org.cobraparser.ua.ImageResponse.State;
 import org.cobraparser.ua.UserAgentContext.Request;
+import org.cobraparser.ua.UserAgentContext.RequestKind;
 import org.cobraparser.util.EventDispatch;
 import org.cobraparser.util.GenericEventListener;
-import org.cobraparser.util.Threads;
 import org.cobraparser.util.Urls;
 import org.eclipse.jdt.annotation.NonNull;
 import org.w3c.dom.Document;
 
 import java.awt.*;
 import java.awt.image.ImageObserver;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,10 +64,15 @@ public class NetworkRequestImpl implements NetworkRequest {
   private final EventDispatch READY_STATE_CHANGE = new EventDispatch();
   private volatile int readyState = NetworkRequest.STATE_UNINITIALIZED;
   private volatile LocalResponse localResponse;
+  // Incremented whenever the request is reopened or aborted, so that queued
+  // ready state changes of an earlier request are dropped.
+  private volatile int generation = 0;
   final private UserAgentContext uaContext;
+  private final ReadyStateDispatcher readyStateDispatcher;
 
   public NetworkRequestImpl(final UserAgentContext uaContext) {
     this.uaContext = uaContext;
+    this.readyStateDispatcher = ReadyStateDispatcher.forContext(uaContext);
   }
 
   public Optional<URL> getURL() {
@@ -99,7 +109,12 @@ public class NetworkRequestImpl implements NetworkRequest {
 
   public byte[] getResponseBytes() {
     final LocalResponse lr = this.localResponse;
-    return lr == null ? null : lr.getResponseBytes();
+    if (lr == null) {
+      return null;
+    }
+    // The body is shared by every response served from the cache entry.
+    final byte[] bytes = lr.getResponseBytes();
+    return bytes == null ? null : bytes.clone();
   }
 
   public int getStatus() {
@@ -123,6 +138,7 @@ public class NetworkRequestImpl implements NetworkRequest {
   private volatile RequestHandler currentRequestHandler;
 
   public void abort() {
+    this.generation++;
     this.readyState = NetworkRequest.STATE_ABORTED;
     this.READY_STATE_CHANGE.fireEvent(new NetworkRequestEvent(this, this.readyState));
 
@@ -171,6 +187,7 @@ public class NetworkRequestImpl implements NetworkRequest {
   // private String requestPassword;
 
   public void open(final String method, final @NonNull URL url, final boolean asyncFlag, final String userName, final String password) {
+    this.generation++;
     this.isAsynchronous = asyncFlag;
     this.requestMethod = method;
     this.requestURL = url;
@@ -185,7 +202,7 @@ public class NetworkRequestImpl implements NetworkRequest {
       try {
         final Map<String, String> requestedHeadersCopy = new HashMap<>(requestedHeaders);
         final RequestHandler rhandler = new LocalRequestHandler(requestURLLocal, this.requestMethod, content, uaContext,
-            requestedHeadersCopy);
+            requestedHeadersCopy, requestType.kind);
         this.currentRequestHandler = rhandler;
         try {
           // TODO: Username and password support
@@ -222,96 +239,173 @@ public class NetworkRequestImpl implements NetworkRequest {
     this.READY_STATE_CHANGE.fireEvent(new NetworkRequestEvent(this, newState));
   }
 
-  private void setResponse(final ClientletResponse response) {
-    final Runnable runnable = () -> {
-      if (response.isFromCache()) {
-        final Object cachedResponse = response.getTransientCachedObject();
-        if (cachedResponse instanceof CacheableResponse) {
-          // It can be of a different type.
-          final CacheableResponse cr = (CacheableResponse) cachedResponse;
-          this.changeReadyState(NetworkRequest.STATE_LOADING);
-          this.localResponse = cr.newLocalResponse(response);
-          this.changeReadyState(NetworkRequest.STATE_LOADED);
-          this.changeReadyState(NetworkRequest.STATE_INTERACTIVE);
-          this.changeReadyState(NetworkRequest.STATE_COMPLETE);
-          return;
+  /**
+   * Changes the ready state on behalf of the request thread. Changes of
+   * asynchronous requests are queued to the {@link ReadyStateDispatcher} of
+   * the context, so listeners neither run on nor hold up the request thread,
+   * and the <code>readyState</code> seen by listeners matches the event.
+   */
+  private void postReadyState(final int newState) {
+    if (this.isAsynchronous) {
+      final int postedGeneration = this.generation;
+      this.readyStateDispatcher.post(() -> {
+        if (this.generation == postedGeneration) {
+          this.changeReadyState(newState);
         }
+      });
+    } else {
+      this.changeReadyState(newState);
+    }
+  }
+
+  private void setResponse(final ClientletResponse response) {
+    if (response.isFromCache()) {
+      final Object cachedResponse = response.getTransientCachedObject();
+      if (cachedResponse instanceof CacheableResponse) {
+        // It can be of a different type.
+        final CacheableResponse cr = (CacheableResponse) cachedResponse;
+        this.postReadyState(NetworkRequest.STATE_LOADING);
+        this.localResponse = cr.newLocalResponse(response);
+        this.postReadyState(NetworkRequest.STATE_LOADED);
+        this.postReadyState(NetworkRequest.STATE_INTERACTIVE);
+        this.postReadyState(NetworkRequest.STATE_COMPLETE);
+        return;
+      }
+    }
+    try {
+      this.postReadyState(NetworkRequest.STATE_LOADING);
+      final int cl = response.getContentLength();
+      final LocalResponse newResponse = new LocalResponse(response, cl);
+      this.localResponse = newResponse;
+      this.postReadyState(NetworkRequest.STATE_LOADED);
+      final InputStream in = response.getInputStream();
+      final int bufferSize = cl == -1 ? 8192 : Math.min(cl, 8192);
+      final byte[] buffer = new byte[bufferSize];
+      int numRead;
+      int readSoFar = 0;
+      boolean firstTime = true;
+      final ClientletContext threadContext = ClientletAccess.getCurrentClientletContext();
+      NavigatorProgressEvent prevProgress = null;
+      if (threadContext != null) {
+        prevProgress = threadContext.getProgressEvent();
       }
       try {
-        this.changeReadyState(NetworkRequest.STATE_LOADING);
-        final LocalResponse newResponse = new LocalResponse(response);
-        this.localResponse = newResponse;
-        this.changeReadyState(NetworkRequest.STATE_LOADED);
-        final int cl = response.getContentLength();
-        final InputStream in = response.getInputStream();
-        final int bufferSize = cl == -1 ? 8192 : Math.min(cl, 8192);
-        final byte[] buffer = new byte[bufferSize];
-        int numRead;
-        int readSoFar = 0;
-        boolean firstTime = true;
-        final ClientletContext threadContext = ClientletAccess.getCurrentClientletContext();
-        NavigatorProgressEvent prevProgress = null;
-        if (threadContext != null) {
-          prevProgress = threadContext.getProgressEvent();
-        }
-        try {
-          long lastProgress = 0;
-          while ((numRead = in.read(buffer)) != -1) {
-            if (numRead == 0) {
-              if (logger.isLoggable(Level.INFO)) {
-                logger.info("setResponse(): Read zero bytes from " + response.getResponseURL());
-              }
-              break;
-            }
-            readSoFar += numRead;
-            if (threadContext != null) {
-              final long currentTime = System.currentTimeMillis();
-              if ((currentTime - lastProgress) > 500) {
-                lastProgress = currentTime;
-                threadContext.setProgressEvent(ProgressType.CONTENT_LOADING, readSoFar, cl, response.getResponseURL());
-              }
-            }
-            newResponse.writeBytes(buffer, 0, numRead);
-            if (firstTime) {
-              firstTime = false;
-              this.changeReadyState(NetworkRequest.STATE_INTERACTIVE);
+        long lastProgress = 0;
+        while ((numRead = in.read(buffer)) != -1) {
+          if (numRead == 0) {
+            if (logger.isLoggable(Level.INFO)) {
+              logger.info("setResponse(): Read zero bytes from " + response.getResponseURL());
             }
+            break;
           }
-        } finally {
+          readSoFar += numRead;
           if (threadContext != null) {
-            threadContext.setProgressEvent(prevProgress);
+            final long currentTime = System.currentTimeMillis();
+            if ((currentTime - lastProgress) > 500) {
+              lastProgress = currentTime;
+              threadContext.setProgressEvent(ProgressType.CONTENT_LOADING, readSoFar, cl, response.getResponseURL());
+            }
+          }
+          newResponse.writeBytes(buffer, 0, numRead);
+          if (firstTime) {
+            firstTime = false;
+            this.postReadyState(NetworkRequest.STATE_INTERACTIVE);
           }
         }
-        newResponse.setComplete(true);
-        // The following should return non-null if the response is complete.
-        final CacheableResponse cacheable = newResponse.getCacheableResponse();
-        if (cacheable != null) {
-          response.setNewTransientCachedObject(cacheable, cacheable.getEstimatedSize());
+      } finally {
+        if (threadContext != null) {
+          threadContext.setProgressEvent(prevProgress);
+        }
+      }
+      newResponse.setComplete(true);
+      // The following should return non-null if the response is complete.
+      final CacheableResponse cacheable = newResponse.getCacheableResponse();
+      if (cacheable != null) {
+        response.setNewTransientCachedObject(cacheable, cacheable.getEstimatedSize());
+      }
+      this.postReadyState(NetworkRequest.STATE_COMPLETE);
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "setResponse()", ioe);
+      this.localResponse = null;
+      this.postReadyState(NetworkRequest.STATE_COMPLETE);
+    }
+  }
+
+  /**
+   * Delivers the ready state changes of the asynchronous requests of one user
+   * agent context, in order. Dispatchers of different contexts, such as those
+   * of different windows, run independently on a shared pool of daemon
+   * threads. Each change runs with the access control context of the request
+   * thread that posted it.
+   */
+  private static final class ReadyStateDispatcher implements Runnable {
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+      // Reason: Threads should not inherit the access context of whichever
+      // request thread happens to start them.
+      return AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+        final Thread t = new Thread(r, "NetworkRequestEvents");
+        t.setDaemon(true);
+        return t;
+      });
+    });
+    private static final Map<UserAgentContext, ReadyStateDispatcher> dispatchers = new WeakHashMap<>();
+
+    /** Pending changes. Guarded by this dispatcher. */
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private boolean scheduled = false;
+
+    static ReadyStateDispatcher forContext(final UserAgentContext uaContext) {
+      synchronized (dispatchers) {
+        return dispatchers.computeIfAbsent(uaContext, k -> new ReadyStateDispatcher());
+      }
+    }
+
+    void post(final Runnable change) {
+      final AccessControlContext context = AccessController.getContext();
+      final Runnable privilegedChange = () -> AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+        change.run();
+        return null;
+      }, context);
+      synchronized (this) {
+        this.queue.add(privilegedChange);
+        if (this.scheduled) {
+          return;
+        }
+        this.scheduled = true;
+      }
+      executor.execute(this);
+    }
+
+    public void run() {
+      for (;;) {
+        final Runnable change;
+        synchronized (this) {
+          change = this.queue.poll();
+          if (change == null) {
+            this.scheduled = false;
+            return;
+          }
+        }
+        try {
+          change.run();
+        } catch (final Exception err) {
+          logger.log(Level.WARNING, "run(): Ready state listener failed.", err);
         }
-        this.changeReadyState(NetworkRequest.STATE_COMPLETE);
-      } catch (final IOException ioe) {
-        logger.log(Level.WARNING, "setResponse()", ioe);
-        this.localResponse = null;
-        this.changeReadyState(NetworkRequest.STATE_COMPLETE);
       }
-    };
-    if (isAsynchronous) {
-      // TODO: Use the JS queue to schedule this
-      runnable.run();
-    } else {
-      runnable.run();
     }
   }
 
   private class LocalRequestHandler extends SimpleRequestHandler {
     private final String method;
     private final Map<String, String> requestedHeadersCopy;
+    private final RequestKind kind;
 
     public LocalRequestHandler(final @NonNull URL url, final String method, final String altPostData, final UserAgentContext uaContext,
-                               final Map<String, String> requestedHeaders) {
+                               final Map<String, String> requestedHeaders, final RequestKind kind) {
       super(url, method, altPostData, RequestType.ELEMENT, uaContext);
       this.method = method;
       this.requestedHeadersCopy = requestedHeaders;
+      this.kind = kind;
     }
 
     @Override
@@ -359,17 +453,83 @@ public class NetworkRequestImpl implements NetworkRequest {
       return Optional.of(requestedHeadersCopy);
     }
 
+    @Override
+    public Optional<RequestKind> getRequestKind() {
+      return Optional.ofNullable(kind);
+    }
+
+  }
+
+  /**
+   * Accumulates a response body in fixed-size chunks, so that growing it never
+   * copies what was read before. When the content length is known, the body is
+   * read into a single array of that size. Once the body is flattened, the
+   * flattened array replaces the chunks.
+   */
+  private static final class ResponseBuffer {
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_PREALLOCATED_SIZE = 4 * 1024 * 1024;
+    private final List<byte[]> fullChunks = new ArrayList<>();
+    private byte[] current;
+    private int currentLength = 0;
+    private int size = 0;
+
+    ResponseBuffer(final int expectedSize) {
+      this.current = new byte[(expectedSize > 0) && (expectedSize <= MAX_PREALLOCATED_SIZE) ? expectedSize : CHUNK_SIZE];
+    }
+
+    synchronized void write(final byte[] bytes, int offset, int length) {
+      this.size += length;
+      while (length > 0) {
+        byte[] current = this.current;
+        if (this.currentLength == current.length) {
+          this.fullChunks.add(current);
+          current = new byte[CHUNK_SIZE];
+          this.current = current;
+          this.currentLength = 0;
+        }
+        final int numCopied = Math.min(length, current.length - this.currentLength);
+        System.arraycopy(bytes, offset, current, this.currentLength, numCopied);
+        this.currentLength += numCopied;
+        offset += numCopied;
+        length -= numCopied;
+      }
+    }
+
+    synchronized int size() {
+      return this.size;
+    }
+
+    /**
+     * Gets the body without copying it if it is already flat. The array is
+     * shared and must not be modified.
+     */
+    synchronized byte[] getBytes() {
+      if (!this.fullChunks.isEmpty() || (this.currentLength != this.current.length)) {
+        final byte[] flattened = new byte[this.size];
+        int position = 0;
+        for (final byte[] chunk : this.fullChunks) {
+          System.arraycopy(chunk, 0, flattened, position, chunk.length);
+          position += chunk.length;
+        }
+        System.arraycopy(this.current, 0, flattened, position, this.currentLength);
+        this.fullChunks.clear();
+        this.current = flattened;
+        this.currentLength = flattened.length;
+      }
+      return this.current;
+    }
   }
 
   private static class CacheableResponse {
     private WeakReference<Image> imageRef;
-    private ByteArrayOutputStream buffer;
+    private ResponseBuffer buffer;
     private Document document;
-    private String textContent;
-    private boolean complete;
+    private volatile String textContent;
+    private volatile boolean complete;
 
     public int getEstimatedSize() {
-      final ByteArrayOutputStream out = this.buffer;
+      final ResponseBuffer out = this.buffer;
       final int factor = 3;
       // Note that when this is called, no one has
       // necessarily called getResponseText().
@@ -380,38 +540,67 @@ public class NetworkRequestImpl implements NetworkRequest {
       return new LocalResponse(response, this);
     }
 
-    public @NonNull ImageResponse getResponseImage() {
+    public @NonNull ImageResponse getResponseImage(final URL url) {
       // A hard reference to the image is not a good idea here.
-      // Images will retain their observers, and it's also
-      // hard to estimate their actual size.
+      // Decoded images are cached, within a memory budget,
+      // by the image decoder.
       final WeakReference<Image> imageRef = this.imageRef;
       Image img = imageRef == null ? null : imageRef.get();
       if (this.complete) {
         if (img == null) {
-          final byte[] bytes = this.getResponseBytes();
-            img = Toolkit.getDefaultToolkit().createImage(bytes);
-            Toolkit.getDefaultToolkit().prepareImage(img, -1, -1, null);
-            int checkedFlags = Toolkit.getDefaultToolkit().checkImage(img, -1, -1, null);
-            while (!isImgDone(checkedFlags)) {
-              checkedFlags = Toolkit.getDefaultToolkit().checkImage(img, -1, -1, null);
-              Threads.sleep(33);
-            }
-            if ((checkedFlags & ImageObserver.ERROR) != 0) {
+          try {
+            img = ImageDecoder.getInstance().decodeAndWait(url, this.getResponseBytes(), 0, 0);
+          } catch (final IOException ioe) {
+            logger.log(Level.WARNING, "getResponseImage(): Unable to decode image: " + url, ioe);
+            img = null;
+          }
+          if ((img != null) && (ImageDecoder.getSourceSize(img) != null)) {
+            // Layout uses the size of the image itself, so a subsampled
+            // image would be laid out too small.
+            img = null;
+          }
+          if (img == null) {
+            // Animated, broken, very large, or not a format that ImageIO can
+            // read.
+            img = loadToolkitImage(this.getResponseBytes());
+            if (img == null) {
               return new ImageResponse(State.error, null);
-            } else {
-              this.imageRef = new WeakReference<>(img);
-              return new ImageResponse(State.loaded, img);
             }
-        } else {
-          return new ImageResponse(State.loaded, img);
+          }
+          this.imageRef = new WeakReference<>(img);
         }
+        return new ImageResponse(State.loaded, img);
       } else {
         return new ImageResponse();
       }
     }
 
-    private static boolean isImgDone(final int checkedFlags) {
-      return ((checkedFlags & ImageObserver.ERROR) != 0) || ((checkedFlags & (ImageObserver.WIDTH | ImageObserver.HEIGHT)) != 0);
+    /**
+     * Loads an image with the toolkit, waiting until its size is known. The
+     * rest of the image, if any, keeps loading and is drawn as it arrives.
+     * Returns <code>null</code> on error.
+     */
+    private static Image loadToolkitImage(final byte[] bytes) {
+      final Toolkit toolkit = Toolkit.getDefaultToolkit();
+      final Image img = toolkit.createImage(bytes);
+      final int doneFlags = ImageObserver.WIDTH | ImageObserver.HEIGHT | ImageObserver.ERROR | ImageObserver.ABORT;
+      final CountDownLatch sizeKnown = new CountDownLatch(1);
+      final ImageObserver observer = (image, infoflags, x, y, width, height) -> {
+        if ((infoflags & doneFlags) != 0) {
+          sizeKnown.countDown();
+          return false;
+        }
+        return true;
+      };
+      if (!toolkit.prepareImage(img, -1, -1, observer) && ((toolkit.checkImage(img, -1, -1, null) & doneFlags) == 0)) {
+        try {
+          sizeKnown.await();
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      return (toolkit.checkImage(img, -1, -1, null) & (ImageObserver.ERROR | ImageObserver.ABORT)) != 0 ? null : img;
     }
 
     public String getResponseText(final String charset) {
@@ -419,6 +608,7 @@ public class NetworkRequestImpl implements NetworkRequest {
       if (responseText != null) {
         return responseText;
       }
+      final boolean complete = this.complete;
       final byte[] bytes = this.getResponseBytes();
       if (bytes == null) {
         return null;
@@ -433,16 +623,19 @@ public class NetworkRequestImpl implements NetworkRequest {
           // ignore
         }
       }
-      this.textContent = responseText;
+      if (complete) {
+        // Partial text must not be kept.
+        this.textContent = responseText;
+      }
       return responseText;
     }
 
     /**
-     * @return Returns the responseBytes.
+     * @return Returns the responseBytes, which must not be modified.
      */
     public byte[] getResponseBytes() {
-      final ByteArrayOutputStream out = this.buffer;
-      return out == null ? null : out.toByteArray();
+      final ResponseBuffer out = this.buffer;
+      return out == null ? null : out.getBytes();
     }
 
     public Document getResponseXML() {
@@ -476,14 +669,14 @@ public class NetworkRequestImpl implements NetworkRequest {
     private Map<String, String> headers;
 
     /**
-     * @param status
-     * @param text
-     * @param bytes
-     * @param headers
+     * @param response
+     * @param expectedLength
+     *          The content length, or -1 if unknown.
      */
-    public LocalResponse(final ClientletResponse response) {
+    public LocalResponse(final ClientletResponse response, final int expectedLength) {
       this.cresponse = response;
       this.cacheable = new CacheableResponse();
+      this.cacheable.buffer = new ResponseBuffer(expectedLength);
     }
 
     public LocalResponse(final ClientletResponse response, final CacheableResponse cacheable) {
@@ -499,13 +692,8 @@ public class NetworkRequestImpl implements NetworkRequest {
       return c;
     }
 
-    public void writeBytes(final byte[] bytes, final int offset, final int length) throws IOException {
-      ByteArrayOutputStream out = this.cacheable.buffer;
-      if (out == null) {
-        out = new ByteArrayOutputStream();
-        this.cacheable.buffer = out;
-      }
-      out.write(bytes, offset, length);
+    public void writeBytes(final byte[] bytes, final int offset, final int length) {
+      this.cacheable.buffer.write(bytes, offset, length);
     }
 
     public void setComplete(final boolean complete) {
@@ -538,7 +726,7 @@ public class NetworkRequestImpl implements NetworkRequest {
     }
 
     // public int getLength() {
-    // final ByteArrayOutputStream out = this.cacheable.buffer;
+    // final ResponseBuffer out = this.cacheable.buffer;
     // return out == null ? 0 : out.size();
     // }
 
@@ -590,12 +778,10 @@ public class NetworkRequestImpl implements NetworkRequest {
     }
 
     public @NonNull ImageResponse getResponseImage() {
-      return this.cacheable.getResponseImage();
+      return this.cacheable.getResponseImage(this.cresponse.getResponseURL());
     }
 
     public byte[] getResponseBytes() {
-      // TODO: OPTIMIZATION: When the response comes from the RAM cache,
-      // there's no need to build a custom buffer here.
       return this.cacheable.getResponseBytes();
     }
   }
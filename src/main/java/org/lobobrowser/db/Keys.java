@@ -27,6 +27,7 @@ public class Keys {
   public static final org.jooq.UniqueKey<org.lobobrowser.db.tables.records.PermissionsRecord> CONSTRAINT_C = UniqueKeys0.CONSTRAINT_C;
   public static final org.jooq.UniqueKey<org.lobobrowser.db.tables.records.CookiesRecord> CONSTRAINT_6 = UniqueKeys0.CONSTRAINT_6;
   public static final org.jooq.UniqueKey<org.lobobrowser.db.tables.records.GlobalsRecord> CONSTRAINT_3 = UniqueKeys0.CONSTRAINT_3;
+  public static final org.jooq.UniqueKey<org.lobobrowser.db.tables.records.HistoryRecord> CONSTRAINT_8 = UniqueKeys0.CONSTRAINT_8;
 
   // -------------------------------------------------------------------------
   // FOREIGN KEY definitions
@@ -44,5 +45,7 @@ public class Keys {
         org.lobobrowser.db.tables.Cookies.COOKIES, org.lobobrowser.db.tables.Cookies.COOKIES.HOSTNAME, org.lobobrowser.db.tables.Cookies.COOKIES.NAME);
     public static final org.jooq.UniqueKey<org.lobobrowser.db.tables.records.GlobalsRecord> CONSTRAINT_3 = createUniqueKey(
         org.lobobrowser.db.tables.Globals.GLOBALS, org.lobobrowser.db.tables.Globals.GLOBALS.NOTACOLUMN);
+    public static final org.jooq.UniqueKey<org.lobobrowser.db.tables.records.HistoryRecord> CONSTRAINT_8 = createUniqueKey(
+        org.lobobrowser.db.tables.History.HISTORY, org.lobobrowser.db.tables.History.HISTORY.URL);
   }
 }
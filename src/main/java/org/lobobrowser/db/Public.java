@@ -40,6 +40,7 @@ public class Public extends org.jooq.impl.SchemaImpl {
     return java.util.Arrays.<org.jooq.Table<?>> asList(
         org.lobobrowser.db.tables.Permissions.PERMISSIONS,
         org.lobobrowser.db.tables.Cookies.COOKIES,
-        org.lobobrowser.db.tables.Globals.GLOBALS);
+        org.lobobrowser.db.tables.Globals.GLOBALS,
+        org.lobobrowser.db.tables.History.HISTORY);
   }
 }
@@ -29,4 +29,9 @@ public class Tables {
    * The table PUBLIC.GLOBALS
    */
   public static final org.lobobrowser.db.tables.Globals GLOBALS = org.lobobrowser.db.tables.Globals.GLOBALS;
+
+  /**
+   * The table PUBLIC.HISTORY
+   */
+  public static final org.lobobrowser.db.tables.History HISTORY = org.lobobrowser.db.tables.History.HISTORY;
 }
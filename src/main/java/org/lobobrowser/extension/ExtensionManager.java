@@ -46,12 +46,12 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipInputStream;
 
 import javax.swing.SwingUtilities;
 
 import org.cobraparser.html.domimpl.HTMLElementBuilder;
 import org.lobobrowser.LoboBrowser;
+import org.lobobrowser.store.StorageManager;
 import org.lobobrowser.utils.ZipEntryHandler;
 import org.cobraparser.clientlet.Clientlet;
 import org.cobraparser.clientlet.ClientletRequest;
@@ -182,14 +182,14 @@ public class ExtensionManager {
       }
       if (extDir.isFile()) {
         // Check if it is a jar. We will load jars from inside this jar.
-        try (
-            final JarFile jf = new JarFile(extDir);) {
+        try {
           // We can't close jf, because the class loader will load files lazily.
+          final JarFile jf = new JarFile(extDir);
+          final File libraryCacheDirectory = StorageManager.getInstance().getLibraryCacheDirectory();
           for (final JarEntry jarEntry : (Iterable<JarEntry>) jf.stream()::iterator) {
             if (!jarEntry.isDirectory() && jarEntry.getName().endsWith(".jar")) {
               System.out.println("Found entry: " + jarEntry.getName());
-              final InputStream jfIS = jf.getInputStream(jarEntry);
-              final URL libURL = makeZipEntryURL(extDir.getName(), jfIS, jarEntry.getName());
+              final URL libURL = makeZipEntryURL(extDir.getName(), jf, jarEntry, libraryCacheDirectory);
               libraryEntryURLs.add(libURL);
             }
           }
@@ -270,10 +270,14 @@ public class ExtensionManager {
     }
   }*/
 
-  private static URL makeZipEntryURL(final String dirName, final InputStream jfIS, final String entryName) throws IOException,
-      MalformedURLException {
-    final String urlSpec = ZIPENTRY_PROTOCOL + "://" + dirName + "/" + entryName + "!/";
-    final URL libURL = new URL(null, urlSpec, new ZipEntryHandler(new ZipInputStream(jfIS)));
+  /**
+   * Makes a URL for a jar nested in another jar. The nested jar is not read
+   * until a resource is loaded from it.
+   */
+  private static URL makeZipEntryURL(final String dirName, final JarFile jf, final JarEntry jarEntry, final File libraryCacheDirectory)
+      throws MalformedURLException {
+    final String urlSpec = ZIPENTRY_PROTOCOL + "://" + dirName + "/" + jarEntry.getName() + "!/";
+    final URL libURL = new URL(null, urlSpec, new ZipEntryHandler(jf, jarEntry, libraryCacheDirectory));
     return libURL;
   }
 
@@ -1304,6 +1304,14 @@ public class FramePanel extends JPanel implements NavigatorFrame {
     return requestManager.isRequestPermitted(request);
   }
 
+  /**
+   * Checks whether a request would be permitted, without counting it as a
+   * request of the frame.
+   */
+  public boolean isAnticipatedRequestPermitted(final Request request) {
+    return requestManager.isAnticipatedRequestPermitted(request);
+  }
+
   public void manageRequests(final Object initiator) {
     requestManager.manageRequests((JComponent) initiator);
   }
@@ -31,8 +31,13 @@ import java.net.URLConnection;
 import java.security.AccessController;
 import java.security.CodeSource;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,10 +49,18 @@ import org.cobraparser.util.GenericURLConnection;
 import org.cobraparser.util.io.IORoutines;
 
 /**
+ * Loads classes and resources from the archives of an
+ * {@link ArchiveCollection}.
+ * <p>
+ * The entries of all archives are indexed by directory on the first lookup,
+ * so a lookup only opens the archives that have entries in the directory of
+ * the requested name, in archive order.
+ *
  * @author J. H. S.
  */
 public class ArchiveClassLoader extends BaseClassLoader {
   private static final Logger logger = Logger.getLogger(ArchiveClassLoader.class.getName());
+  private static final ArchiveInfo[] NO_ARCHIVES = ArchiveInfo.EMPTY_ARRAY;
 
   /**
    * @author J. H. S.
@@ -86,6 +99,9 @@ public class ArchiveClassLoader extends BaseClassLoader {
   }
 
   private final ArchiveInfo[] archiveInfos;
+  private final Map<String, URL> resourceURLs = new ConcurrentHashMap<>();
+  /** Archives with entries in each directory, in archive order. */
+  private volatile Map<String, ArchiveInfo[]> archivesByDirectory;
 
   /**
    * @param targetParent
@@ -95,6 +111,59 @@ public class ArchiveClassLoader extends BaseClassLoader {
     this.archiveInfos = archiveInfos.toArray(ArchiveInfo.EMPTY_ARRAY);
   }
 
+  private Map<String, ArchiveInfo[]> getIndex() {
+    Map<String, ArchiveInfo[]> index = this.archivesByDirectory;
+    if (index == null) {
+      synchronized (this.archiveInfos) {
+        index = this.archivesByDirectory;
+        if (index == null) {
+          final ArchiveInfo[] ainfos = this.archiveInfos;
+          index = AccessController.doPrivileged((PrivilegedAction<Map<String, ArchiveInfo[]>>) () -> buildIndex(ainfos));
+          this.archivesByDirectory = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  private static Map<String, ArchiveInfo[]> buildIndex(final ArchiveInfo[] ainfos) {
+    final Map<String, List<ArchiveInfo>> lists = new HashMap<>();
+    for (final ArchiveInfo ainfo : ainfos) {
+      final JarFile jarFile;
+      try {
+        jarFile = ainfo.getJarFile();
+      } catch (final IOException ioe) {
+        logger.log(Level.WARNING, "buildIndex(): Unable to open archive " + ainfo.url + ".", ioe);
+        continue;
+      }
+      final Enumeration<? extends ZipEntry> entries = jarFile.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (!entry.isDirectory()) {
+          final List<ArchiveInfo> list = lists.computeIfAbsent(getDirectory(entry.getName()), k -> new ArrayList<>(1));
+          if (list.isEmpty() || (list.get(list.size() - 1) != ainfo)) {
+            list.add(ainfo);
+          }
+        }
+      }
+    }
+    final Map<String, ArchiveInfo[]> index = new HashMap<>(lists.size() * 2);
+    for (final Map.Entry<String, List<ArchiveInfo>> entry : lists.entrySet()) {
+      index.put(entry.getKey(), entry.getValue().toArray(ArchiveInfo.EMPTY_ARRAY));
+    }
+    return index;
+  }
+
+  private static String getDirectory(final String entryName) {
+    final int slashIdx = entryName.lastIndexOf('/');
+    return slashIdx == -1 ? "" : entryName.substring(0, slashIdx);
+  }
+
+  private ArchiveInfo[] getArchives(final String entryName) {
+    final ArchiveInfo[] ainfos = this.getIndex().get(getDirectory(entryName));
+    return ainfos == null ? NO_ARCHIVES : ainfos;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -103,38 +172,26 @@ public class ArchiveClassLoader extends BaseClassLoader {
   @Override
   protected Class<?> findClass(final String arg0) throws ClassNotFoundException {
     final String subPath = arg0.replace('.', '/') + ".class";
-    final ArchiveInfo[] ainfos = this.archiveInfos;
-    final int len = ainfos.length;
-    byte[] classBytes = null;
+    final ArchiveInfo[] ainfos = this.getArchives(subPath);
     final ArchiveInfo[] foundAinfo = new ArchiveInfo[1];
-    for (int i = 0; i < len; i++) {
-      final ArchiveInfo ainfo = ainfos[i];
-      try {
-        final JarFile jarFile = ainfo.getJarFile();
-        classBytes = AccessController.doPrivileged(new PrivilegedAction<byte[]>() {
-          public byte[] run() {
-            try {
-              final ZipEntry entry = jarFile.getEntry(subPath);
-              if (entry == null) {
-                return null;
-              }
-              try (final InputStream in = jarFile.getInputStream(entry)) {
-                final byte[] bytes = IORoutines.loadExact(in, (int) entry.getSize());
-                foundAinfo[0] = ainfo;
-                return bytes;
-              }
-            } catch (final IOException ioe) {
-              return null;
+    final byte[] classBytes = AccessController.doPrivileged((PrivilegedAction<byte[]>) () -> {
+      for (final ArchiveInfo ainfo : ainfos) {
+        try {
+          final JarFile jarFile = ainfo.getJarFile();
+          final ZipEntry entry = jarFile.getEntry(subPath);
+          if (entry != null) {
+            try (final InputStream in = jarFile.getInputStream(entry)) {
+              final byte[] bytes = IORoutines.loadExact(in, (int) entry.getSize());
+              foundAinfo[0] = ainfo;
+              return bytes;
             }
           }
-        });
-      } catch (final IOException ioe2) {
-        continue;
-      }
-      if (classBytes != null) {
-        break;
+        } catch (final IOException ioe) {
+          continue;
+        }
       }
-    }
+      return null;
+    });
     if (classBytes == null) {
       throw new ClassNotFoundException("I/O error or entry not found: " + subPath);
     }
@@ -150,8 +207,15 @@ public class ArchiveClassLoader extends BaseClassLoader {
    */
   @Override
   protected URL findResource(final String name) {
+    if (this.getArchives(name).length == 0) {
+      return null;
+    }
+    final URL cachedURL = this.resourceURLs.get(name);
+    if (cachedURL != null) {
+      return cachedURL;
+    }
     try {
-      return AccessController.doPrivileged(new PrivilegedAction<URL>() {
+      final URL url = AccessController.doPrivileged(new PrivilegedAction<URL>() {
         public URL run() {
           try {
             return new URL(null, "volatile:" + name, new LocalURLStreamHandler(name));
@@ -160,6 +224,8 @@ public class ArchiveClassLoader extends BaseClassLoader {
           }
         }
       });
+      final URL existingURL = this.resourceURLs.putIfAbsent(name, url);
+      return existingURL == null ? url : existingURL;
     } catch (final RuntimeException err) {
       logger.log(Level.SEVERE, "findResource()", err);
       throw err;
@@ -182,33 +248,21 @@ public class ArchiveClassLoader extends BaseClassLoader {
   }
 
   private InputStream getResourceAsStreamImpl(final String resourceName) {
-    final ArchiveInfo[] ainfos = this.archiveInfos;
-    final int len = ainfos.length;
-    InputStream in = null;
-    for (int i = 0; i < len; i++) {
-      final ArchiveInfo ainfo = ainfos[i];
-      try {
-        final JarFile jarFile = ainfo.getJarFile();
-        in = AccessController.doPrivileged(new PrivilegedAction<InputStream>() {
-          public InputStream run() {
-            try {
-              final ZipEntry entry = jarFile.getEntry(resourceName);
-              if (entry == null) {
-                return null;
-              }
-              return jarFile.getInputStream(entry);
-            } catch (final IOException ioe) {
-              return null;
-            }
+    final ArchiveInfo[] ainfos = this.getArchives(resourceName);
+    final InputStream in = AccessController.doPrivileged((PrivilegedAction<InputStream>) () -> {
+      for (final ArchiveInfo ainfo : ainfos) {
+        try {
+          final JarFile jarFile = ainfo.getJarFile();
+          final ZipEntry entry = jarFile.getEntry(resourceName);
+          if (entry != null) {
+            return jarFile.getInputStream(entry);
           }
-        });
-      } catch (final IOException ioe2) {
-        continue;
-      }
-      if (in != null) {
-        break;
+        } catch (final IOException ioe) {
+          continue;
+        }
       }
-    }
+      return null;
+    });
     if (in == null) {
       final ClassLoader parent = this.getParent();
       return parent != null ? parent.getResourceAsStream(resourceName) : null;
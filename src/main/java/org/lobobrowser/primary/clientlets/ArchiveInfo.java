@@ -37,7 +37,7 @@ public class ArchiveInfo {
     this.file = file;
   }
 
-  private java.util.jar.JarFile jarFile;
+  private volatile java.util.jar.JarFile jarFile;
 
   public java.util.jar.JarFile getJarFile() throws java.io.IOException {
     if (this.jarFile == null) {
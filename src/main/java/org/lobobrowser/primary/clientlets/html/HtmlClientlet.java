@@ -157,8 +157,9 @@ public final class HtmlClientlet implements Clientlet {
       final HtmlPanel panel = rcontext.getHtmlPanel();
       // Create a listener that will switch to rendering when appropriate.
       final HtmlContent content = new HtmlContent(document, panel, rin, charset);
+      final PreloadScanner preloadScanner = new PreloadScanner(responseURL, cc.getNavigatorFrame());
       final LocalDocumentNotificationListener listener = new LocalDocumentNotificationListener(document, panel, rcontext, cc, content,
-          httpEquivData == null);
+          preloadScanner, httpEquivData == null);
       document.addDocumentNotificationListener(listener);
       // Set resulting content before parsing
       // to enable incremental rendering.
@@ -294,6 +295,7 @@ public final class HtmlClientlet implements Clientlet {
     private final HtmlRendererContext rcontext;
     private final ClientletContext ccontext;
     private final HtmlContent content;
+    private final PreloadScanner preloadScanner;
     private final boolean detectHttpEquiv;
     private boolean hasVisibleElements = false;
     private boolean hasSwitchedToRendering = false;
@@ -301,13 +303,14 @@ public final class HtmlClientlet implements Clientlet {
 
     public LocalDocumentNotificationListener(final HTMLDocumentImpl doc, final HtmlPanel panel, final HtmlRendererContext rcontext,
         final ClientletContext cc,
-        final HtmlContent content, final boolean detectHttpEquiv) {
+        final HtmlContent content, final PreloadScanner preloadScanner, final boolean detectHttpEquiv) {
       this.document = doc;
       this.startTimestamp = System.currentTimeMillis();
       this.htmlPanel = panel;
       this.rcontext = rcontext;
       this.ccontext = cc;
       this.content = content;
+      this.preloadScanner = preloadScanner;
       this.detectHttpEquiv = detectHttpEquiv;
     }
 
@@ -360,6 +363,8 @@ public final class HtmlClientlet implements Clientlet {
           }
         }
       }
+      // Until rendering starts, look ahead for hosts of subresources.
+      this.preloadScanner.nodeLoaded(node);
       if (!this.hasVisibleElements) {
         if (LocalDocumentNotificationListener.mayBeVisibleElement(node)) {
           this.hasVisibleElements = true;
@@ -56,6 +56,7 @@ import org.cobraparser.html.gui.HtmlPanel;
 import org.cobraparser.validation.DomainValidation;
 import org.lobobrowser.request.SilentUserAgentContextImpl;
 import org.lobobrowser.gui.NavigatorWindowImpl;
+import org.lobobrowser.primary.ext.NavigationHistory;
 import org.cobraparser.ua.NavigationEntry;
 import org.cobraparser.ua.NavigatorFrame;
 import org.cobraparser.ua.Parameter;
@@ -329,7 +330,10 @@ public class HtmlRendererContextImpl implements HtmlRendererContext {
   }
 
   public boolean isVisitedLink(final HTMLLinkElement link) {
-    // TODO
+    if (link instanceof HTMLLinkElementImpl) {
+      final String href = ((HTMLLinkElementImpl) link).getAbsoluteHref();
+      return (href != null) && NavigationHistory.getInstance().containsItem(href);
+    }
     return false;
   }
 
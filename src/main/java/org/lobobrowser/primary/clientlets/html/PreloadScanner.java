@@ -0,0 +1,159 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.primary.clientlets.html;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cobraparser.html.domimpl.NodeImpl;
+import org.cobraparser.ua.UserAgentContext.Request;
+import org.cobraparser.ua.UserAgentContext.RequestKind;
+import org.cobraparser.ua.NavigatorFrame;
+import org.lobobrowser.gui.FramePanel;
+import org.w3c.dom.html.HTMLElement;
+
+/**
+ * Looks at elements as the parser produces them and resolves the host names of
+ * the stylesheets, scripts and images they refer to, so that the lookups are
+ * done by the time the renderer requests those resources. A host is only
+ * resolved if the request manager of the frame would permit a request of the
+ * corresponding kind. The check is not counted, so that prefetching does not
+ * show up in the request counts of the frame. Nothing is prefetched for frames
+ * without a request manager.
+ * <p>
+ * The scanner is fed by the document notification listener of
+ * {@link HtmlClientlet}, which only sees the part of the document parsed before
+ * rendering starts.
+ */
+final class PreloadScanner {
+  private static final Logger logger = Logger.getLogger(PreloadScanner.class.getName());
+  private static final int MAX_HOSTS_PER_DOCUMENT = 16;
+  private static final int NUM_RESOLVER_THREADS = 4;
+  private static final int MAX_PENDING_LOOKUPS = 64;
+
+  private static final ThreadPoolExecutor resolver = createResolver();
+
+  private final FramePanel frame;
+  private final Set<String> seenHosts = new HashSet<>();
+  private URL baseURL;
+
+  PreloadScanner(final URL documentURL, final NavigatorFrame frame) {
+    this.baseURL = documentURL;
+    this.frame = frame instanceof FramePanel ? (FramePanel) frame : null;
+    final String documentHost = documentURL.getHost();
+    // Already resolved to fetch the document.
+    this.seenHosts.add(documentHost == null ? "" : documentHost.toLowerCase());
+  }
+
+  private static ThreadPoolExecutor createResolver() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_RESOLVER_THREADS, NUM_RESOLVER_THREADS, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(MAX_PENDING_LOOKUPS), r -> {
+          final Thread t = new Thread(r, "PreloadScanner");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Scans a node that has just been loaded. Expected to be invoked only in the
+   * parser thread.
+   */
+  void nodeLoaded(final NodeImpl node) {
+    if ((this.frame == null) || !(node instanceof HTMLElement) || (this.seenHosts.size() >= MAX_HOSTS_PER_DOCUMENT)) {
+      return;
+    }
+    final HTMLElement element = (HTMLElement) node;
+    final String tagName = element.getTagName();
+    if ("base".equalsIgnoreCase(tagName)) {
+      final URL newBase = this.resolve(element.getAttribute("href"));
+      if (newBase != null) {
+        this.baseURL = newBase;
+      }
+    } else if ("link".equalsIgnoreCase(tagName)) {
+      final String rel = element.getAttribute("rel");
+      if ((rel != null) && "stylesheet".equalsIgnoreCase(rel.trim())) {
+        this.prefetch(element.getAttribute("href"), RequestKind.CSS);
+      }
+    } else if ("script".equalsIgnoreCase(tagName)) {
+      this.prefetch(element.getAttribute("src"), RequestKind.JavaScript);
+    } else if ("img".equalsIgnoreCase(tagName)) {
+      this.prefetch(element.getAttribute("src"), RequestKind.Image);
+    }
+  }
+
+  private URL resolve(final String spec) {
+    if ((spec == null) || (spec.length() == 0)) {
+      return null;
+    }
+    try {
+      return new URL(this.baseURL, spec.trim());
+    } catch (final MalformedURLException mfu) {
+      return null;
+    }
+  }
+
+  private void prefetch(final String spec, final RequestKind kind) {
+    final URL url = this.resolve(spec);
+    if (url == null) {
+      return;
+    }
+    final String protocol = url.getProtocol();
+    if (!"http".equals(protocol) && !"https".equals(protocol)) {
+      return;
+    }
+    final String host = url.getHost().toLowerCase();
+    if ((host.length() == 0) || this.seenHosts.contains(host)) {
+      return;
+    }
+    // Each host is checked once, whether it turns out to be permitted or not.
+    this.seenHosts.add(host);
+    if (!this.frame.isAnticipatedRequestPermitted(new Request(url, kind))) {
+      return;
+    }
+    resolver.execute(() -> {
+      // Resolving fills the JVM address cache used by the connection later.
+      AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+        try {
+          InetAddress.getAllByName(host);
+        } catch (final UnknownHostException uhe) {
+          if (logger.isLoggable(Level.INFO)) {
+            logger.info("prefetch(): Unable to resolve " + host + ".");
+          }
+        }
+        return null;
+      });
+    });
+  }
+}
@@ -38,6 +38,7 @@ import org.cobraparser.clientlet.ClientletResponse;
 import org.cobraparser.clientlet.ComponentContent;
 import org.cobraparser.html.HtmlRendererContext;
 import org.cobraparser.html.js.Window;
+import org.lobobrowser.context.ImageDecoder;
 import org.lobobrowser.primary.clientlets.SimpleDocument;
 import org.lobobrowser.primary.clientlets.html.HtmlRendererContextImpl;
 import org.cobraparser.util.io.IORoutines;
@@ -67,7 +68,18 @@ public final class ImageClientlet implements Clientlet {
     if (logger.isLoggable(Level.INFO)) {
       logger.info("process(): Loaded " + imageBytes.length + " bytes.");
     }
-    final Image image = Toolkit.getDefaultToolkit().createImage(imageBytes);
+    Image image;
+    try {
+      image = ImageDecoder.getInstance().decodeAndWait(response.getResponseURL(), imageBytes, 0, 0);
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "process(): Unable to decode image.", ioe);
+      image = null;
+    }
+    if (image == null) {
+      // Animated, broken, or not a format that ImageIO can read; the toolkit
+      // may still render it.
+      image = Toolkit.getDefaultToolkit().createImage(imageBytes);
+    }
 
     final HtmlRendererContextImpl rcontext = HtmlRendererContextImpl.getHtmlRendererContext(context.getNavigatorFrame());
     // final HTMLDocumentImpl document = new HTMLDocumentImpl(rcontext.getUserAgentContext(), context.getRequest().getRequestURL().toString());
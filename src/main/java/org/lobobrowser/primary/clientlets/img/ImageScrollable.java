@@ -32,24 +32,35 @@ import javax.swing.JComponent;
 import javax.swing.Scrollable;
 import javax.swing.SwingConstants;
 
+import org.lobobrowser.context.ImageDecoder;
+
 public class ImageScrollable extends JComponent implements Scrollable {
   private static final long serialVersionUID = 5025159268512978417L;
   private final Image image;
+  /** Whether the image is drawn scaled to the size of its source. */
+  private final boolean subsampled;
   private int imageWidth = -1;
   private int imageHeight = -1;
 
   public ImageScrollable(final Image img) {
     super();
     this.image = img;
-    final int w = img.getWidth(this);
-    final int h = img.getHeight(this);
-    this.imageWidth = w;
-    this.imageHeight = h;
+    final Dimension sourceSize = ImageDecoder.getSourceSize(img);
+    this.subsampled = sourceSize != null;
+    if (sourceSize != null) {
+      this.imageWidth = sourceSize.width;
+      this.imageHeight = sourceSize.height;
+    } else {
+      final int w = img.getWidth(this);
+      final int h = img.getHeight(this);
+      this.imageWidth = w;
+      this.imageHeight = h;
+    }
   }
 
   @Override
   public boolean imageUpdate(final Image img, final int infoflags, final int x, final int y, final int w, final int h) {
-    if (((infoflags & ImageObserver.ALLBITS) != 0) || ((infoflags & ImageObserver.FRAMEBITS) != 0)) {
+    if (!this.subsampled && (((infoflags & ImageObserver.ALLBITS) != 0) || ((infoflags & ImageObserver.FRAMEBITS) != 0))) {
       this.imageWidth = img.getWidth(this);
       this.imageHeight = img.getHeight(this);
       this.revalidate();
@@ -62,7 +73,11 @@ public class ImageScrollable extends JComponent implements Scrollable {
   public void paintComponent(final Graphics g) {
     super.paintComponent(g);
     final Insets insets = this.getInsets();
-    g.drawImage(this.image, insets.left, insets.top, this);
+    if (this.subsampled) {
+      g.drawImage(this.image, insets.left, insets.top, this.imageWidth, this.imageHeight, this);
+    } else {
+      g.drawImage(this.image, insets.left, insets.top, this);
+    }
   }
 
   @Override
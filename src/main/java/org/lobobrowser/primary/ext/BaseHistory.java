@@ -20,7 +20,6 @@
  */
 package org.lobobrowser.primary.ext;
 
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,7 +32,6 @@ import java.util.TreeSet;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
-import org.cobraparser.util.ArrayUtilities;
 
 public abstract class BaseHistory<T> implements java.io.Serializable {
   private static final long serialVersionUID = 2257845020000200400L;
@@ -131,18 +129,12 @@ public abstract class BaseHistory<T> implements java.io.Serializable {
 
   public Collection<String> getHeadMatchItems(final String itemPrefix, final int maxNumItems) {
     synchronized (this) {
-      final String[] array = ArrayUtilities.copy(this.historySortedSet, String.class);
-      final int idx = Arrays.binarySearch(array, itemPrefix);
-      final int startIdx = idx >= 0 ? idx : (-idx - 1);
-      int count = 0;
       final Collection<String> items = new LinkedList<>();
-      for (int i = startIdx; (i < array.length) && (count++ < maxNumItems); i++) {
-        final String potentialItem = array[i];
-        if (potentialItem.startsWith(itemPrefix)) {
-          items.add(potentialItem);
-        } else {
+      for (final String potentialItem : this.historySortedSet.tailSet(itemPrefix)) {
+        if ((items.size() >= maxNumItems) || !potentialItem.startsWith(itemPrefix)) {
           break;
         }
+        items.add(potentialItem);
       }
       return items;
     }
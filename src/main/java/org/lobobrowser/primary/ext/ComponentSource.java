@@ -398,7 +398,7 @@ public class ComponentSource implements NavigatorWindowListener {
     reqManagerButton.getAction().setEnabled(isManageable);
 
     if ("GET".equals(event.getMethod()) && isHistoryRequest(event.getRequestType())) {
-      NavigationHistory.getInstance().addAsRecent(url, null);
+      NavigationHistory.getInstance().addAsRecent(url);
     }
   }
 
@@ -456,24 +456,14 @@ public class ComponentSource implements NavigatorWindowListener {
   public static Collection<String> getPotentialMatches(final String urlPrefix, final int max) {
     final int colonIdx = urlPrefix.indexOf(':');
     String prefix;
-    if (colonIdx == -1) {
-      // Add http
-      prefix = "http://" + urlPrefix;
-    } else if (colonIdx == 1) {
+    if (colonIdx == 1) {
       // Must be a Windows file
       prefix = "file://" + urlPrefix;
     } else {
+      // Schemes and www prefixes are ignored by the history search.
       prefix = urlPrefix;
     }
-    Collection<String> headMatches = NavigationHistory.getInstance().getHeadMatchItems(prefix, max);
-    if (headMatches.isEmpty()) {
-      // Try www
-      if ((colonIdx == -1) && !urlPrefix.startsWith("www")) {
-        prefix = "http://www." + urlPrefix;
-        headMatches = NavigationHistory.getInstance().getHeadMatchItems(prefix, max);
-      }
-    }
-    return headMatches;
+    return NavigationHistory.getInstance().getMatchingItems(prefix, max);
   }
 
   public static Collection<String> getRecentLocations(final int max) {
@@ -0,0 +1,84 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.primary.ext;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings. It answers whether a string was possibly added,
+ * never giving false negatives, and can be read by any thread without locking.
+ * Strings cannot be removed, so the owner rebuilds the filter once enough of
+ * its strings are gone.
+ */
+final class ItemFilter {
+  private static final int NUM_PROBES = 7;
+  private final AtomicLongArray bits;
+  private final int mask;
+
+  /**
+   * @param expectedItems
+   *          The number of strings the filter is sized for. About ten bits are
+   *          used per string, for a false positive rate near one percent.
+   */
+  ItemFilter(final int expectedItems) {
+    final int numBits = Math.max(64, Integer.highestOneBit(Math.max(1, expectedItems * 10) - 1) << 1);
+    this.bits = new AtomicLongArray(numBits >>> 6);
+    this.mask = numBits - 1;
+  }
+
+  void add(final String item) {
+    final int hash1 = item.hashCode();
+    final int hash2 = mix(hash1);
+    for (int i = 0; i < NUM_PROBES; i++) {
+      final int bit = (hash1 + (i * hash2)) & this.mask;
+      final int index = bit >>> 6;
+      final long bitMask = 1L << bit;
+      long word;
+      do {
+        word = this.bits.get(index);
+      } while (((word & bitMask) == 0) && !this.bits.compareAndSet(index, word, word | bitMask));
+    }
+  }
+
+  boolean mightContain(final String item) {
+    final int hash1 = item.hashCode();
+    final int hash2 = mix(hash1);
+    for (int i = 0; i < NUM_PROBES; i++) {
+      final int bit = (hash1 + (i * hash2)) & this.mask;
+      if ((this.bits.get(bit >>> 6) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Derives a second, independent hash. It is made odd so that probes cover
+   * the whole power-of-two table.
+   */
+  private static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    return hash | 1;
+  }
+}
@@ -23,51 +23,567 @@
  */
 package org.lobobrowser.primary.ext;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.net.URL;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Query;
+import org.jooq.impl.DSL;
+import org.lobobrowser.db.tables.History;
+import org.lobobrowser.db.tables.records.HistoryRecord;
+import org.lobobrowser.store.ClassLoaderObjectInputStream;
 import org.lobobrowser.store.StorageManager;
 
 /**
- * History of navigation locations. Not thread safe.
+ * History of navigation locations, stored in the <code>HISTORY</code> table of
+ * the user database.
+ * <p>
+ * Entries are kept in memory, loaded from the database once, and indexed for
+ * the address bar: by their location without scheme and <code>www.</code>
+ * prefix for prefix matches, and by recency. Matches are ranked by frecency,
+ * which combines the number of visits with how recent the last one was.
+ * Changes are written back by a background thread in batched transactions.
+ * History saved by older versions in the settings is imported once.
  */
-public class NavigationHistory extends BaseHistory<Object> implements java.io.Serializable {
-  private static final long serialVersionUID = 2257845000600200100L;
+public class NavigationHistory implements Runnable {
   private static final Logger logger = Logger.getLogger(NavigationHistory.class.getName());
-  private static final NavigationHistory instance;
+  private static final int FLUSH_DELAY = 2000;
+  private static final int MAX_ENTRIES = 200000;
+  /** Prefix matches looked at to rank a query, bounding its latency. */
+  private static final int MAX_RANKED_PREFIX_MATCHES = 4096;
+  /** Recent entries searched for substring matches. */
+  private static final int MAX_SUBSTRING_SEARCH = 20000;
+  private static final int MIN_SUBSTRING_LENGTH = 3;
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+  private static final NavigationHistory instance = new NavigationHistory();
 
-  static {
-    NavigationHistory ins = null;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final TreeSet<Entry> searchIndex = new TreeSet<>(NavigationHistory::compareSearchKeys);
+  /** Most recently visited entry, the head of a list ordered by recency. */
+  private Entry newest;
+  private Entry oldest;
+  private volatile ItemFilter itemFilter = new ItemFilter(MAX_ENTRIES);
+  private int numRemovedSinceFilterBuilt;
+
+  /**
+   * Pending database changes keyed by URL. A <code>null</code> value means the
+   * row should be deleted. Guarded by itself.
+   */
+  private final Map<String, Entry> pendingWrites = new LinkedHashMap<>();
+  private volatile boolean loaded = false;
+
+  private NavigationHistory() {
+    // Reason: The thread needs to access the database regardless of who
+    // first uses the history.
+    AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+      final Thread t = new Thread(this, "NavigationHistory");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      t.start();
+      return null;
+    });
+  }
+
+  public static NavigationHistory getInstance() {
+    return instance;
+  }
+
+  public void run() {
+    this.ensureLoaded();
+    final Map<String, Entry> pendingWrites = this.pendingWrites;
+    for (;;) {
+      try {
+        synchronized (pendingWrites) {
+          while (pendingWrites.isEmpty()) {
+            pendingWrites.wait();
+          }
+        }
+        // Let more changes accumulate so they are written together.
+        Thread.sleep(FLUSH_DELAY);
+        this.flush();
+      } catch (final InterruptedException ie) {
+        // ignore
+      } catch (final Exception err) {
+        logger.log(Level.SEVERE, "run()", err);
+      }
+    }
+  }
+
+  private void ensureLoaded() {
+    if (!this.loaded) {
+      synchronized (this) {
+        if (!this.loaded) {
+          // Reason: Caller may not have privileges to access the database.
+          AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+            this.loadEntries();
+            return null;
+          });
+          this.loaded = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Invoked while holding the lock on this history.
+   */
+  private void loadEntries() {
+    final long time1 = System.currentTimeMillis();
     try {
-      ins = (NavigationHistory) StorageManager.getInstance().retrieveSettings(NavigationHistory.class.getSimpleName(),
-          NavigationHistory.class.getClassLoader());
-    } catch (final Exception err) {
-      logger.log(Level.WARNING, "Unable to retrieve settings.", err);
+      final DSLContext userDB = StorageManager.getInstance().getDB();
+      importLegacyHistory(userDB);
+      try (
+        final Cursor<HistoryRecord> cursor = userDB.selectFrom(History.HISTORY).orderBy(History.HISTORY.LASTVISITTIME).fetchLazy()) {
+        for (final HistoryRecord record : cursor) {
+          final String url = record.getUrl();
+          if (!this.entries.containsKey(url)) {
+            final Entry entry = new Entry(url, record.getVisitcount(), record.getLastvisittime());
+            this.entries.put(url, entry);
+            this.searchIndex.add(entry);
+            this.itemFilter.add(url);
+            // Rows come oldest first.
+            this.linkAsNewest(entry);
+          }
+        }
+      }
+      this.evictOldest();
+    } catch (final RuntimeException err) {
+      logger.log(Level.SEVERE, "loadEntries(): Unable to load history.", err);
     }
-    if (ins == null) {
-      ins = new NavigationHistory();
+    if (logger.isLoggable(Level.INFO)) {
+      logger.info("loadEntries(): Loaded " + this.entries.size() + " entries in " + (System.currentTimeMillis() - time1) + " ms.");
     }
-    instance = ins;
   }
 
   /**
-   * @param sequenceCapacity
-   * @param commonEntriesCapacity
+   * Copies the history that older versions serialized into the settings to
+   * the database, then removes it from the settings, so this is only done
+   * once after the <code>HISTORY</code> table is created.
    */
-  private NavigationHistory() {
+  private static void importLegacyHistory(final DSLContext userDB) {
+    final StorageManager storageManager = StorageManager.getInstance();
+    final String sectionName = NavigationHistory.class.getSimpleName();
+    final byte[] data;
+    try {
+      data = storageManager.retrieveSettingsData(sectionName);
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "importLegacyHistory(): Unable to read history saved by an older version.", ioe);
+      return;
+    }
+    if (data == null) {
+      return;
+    }
+    final List<HistoryRecord> records = new ArrayList<>();
+    try (
+      final ObjectInputStream in = new LegacyHistoryInputStream(new ByteArrayInputStream(data))) {
+      final LegacyHistory legacyHistory = (LegacyHistory) in.readObject();
+      for (final HistoryEntry<Object> entry : legacyHistory.getAllEntries()) {
+        records.add(new HistoryRecord(entry.getUrl().toExternalForm(), 1, entry.getTimetstamp()));
+      }
+    } catch (final IOException | ClassNotFoundException | ClassCastException err) {
+      // Nothing can be imported, so the section is removed all the same.
+      logger.log(Level.WARNING, "importLegacyHistory(): Unable to read history saved by an older version.", err);
+    }
+    if (!records.isEmpty()) {
+      userDB.transaction(configuration -> {
+        final DSLContext tx = DSL.using(configuration);
+        final List<Query> queries = new ArrayList<>(records.size());
+        for (final HistoryRecord record : records) {
+          queries.add(tx.insertInto(History.HISTORY).set(record).onDuplicateKeyIgnore());
+        }
+        tx.batch(queries).execute();
+      });
+    }
+    try {
+      storageManager.removeSettings(sectionName);
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "importLegacyHistory(): Unable to remove history saved by an older version.", ioe);
+    }
+    if (logger.isLoggable(Level.INFO)) {
+      logger.info("importLegacyHistory(): Imported " + records.size() + " entries saved by an older version.");
+    }
   }
 
-  public static NavigationHistory getInstance() {
-    return instance;
+  public void addAsRecent(final URL url) {
+    final String item = url.toExternalForm();
+    this.ensureLoaded();
+    final Entry entry;
+    synchronized (this) {
+      Entry existing = this.entries.get(item);
+      if (existing == null) {
+        existing = new Entry(item, 0, 0);
+        this.entries.put(item, existing);
+        this.searchIndex.add(existing);
+        this.itemFilter.add(item);
+      } else {
+        this.unlink(existing);
+      }
+      existing.visitCount++;
+      existing.lastVisitTime = System.currentTimeMillis();
+      this.linkAsNewest(existing);
+      this.evictOldest();
+      entry = existing;
+    }
+    this.scheduleWrite(item, entry);
+  }
+
+  /**
+   * Removes the oldest entries above the capacity. Invoked while holding the
+   * lock on this history.
+   */
+  private void evictOldest() {
+    while (this.entries.size() > MAX_ENTRIES) {
+      final Entry entry = this.oldest;
+      this.unlink(entry);
+      this.entries.remove(entry.url);
+      this.searchIndex.remove(entry);
+      this.scheduleWrite(entry.url, null);
+      if (++this.numRemovedSinceFilterBuilt > (MAX_ENTRIES / 2)) {
+        // Stale bits raise the false positive rate.
+        final ItemFilter filter = new ItemFilter(MAX_ENTRIES);
+        for (final String item : this.entries.keySet()) {
+          filter.add(item);
+        }
+        this.itemFilter = filter;
+        this.numRemovedSinceFilterBuilt = 0;
+      }
+    }
+  }
+
+  private void linkAsNewest(final Entry entry) {
+    entry.older = this.newest;
+    entry.newer = null;
+    if (this.newest != null) {
+      this.newest.newer = entry;
+    } else {
+      this.oldest = entry;
+    }
+    this.newest = entry;
+  }
+
+  private void unlink(final Entry entry) {
+    if (entry.newer != null) {
+      entry.newer.older = entry.older;
+    } else {
+      this.newest = entry.older;
+    }
+    if (entry.older != null) {
+      entry.older.newer = entry.newer;
+    } else {
+      this.oldest = entry.newer;
+    }
+    entry.newer = null;
+    entry.older = null;
+  }
+
+  /**
+   * Determines whether a location is in the history. Once the history is
+   * loaded, most locations that are not are rejected without locking or
+   * allocating, so this is cheap enough to call for every link of a page.
+   */
+  public boolean containsItem(final String item) {
+    // The filter is only complete once the entries are loaded.
+    this.ensureLoaded();
+    if (!this.itemFilter.mightContain(item)) {
+      return false;
+    }
+    synchronized (this) {
+      return this.entries.containsKey(item);
+    }
   }
 
+  public boolean hasRecentEntries() {
+    this.ensureLoaded();
+    synchronized (this) {
+      return this.newest != null;
+    }
+  }
+
+  public Collection<String> getRecentItems(final int maxNumItems) {
+    this.ensureLoaded();
+    synchronized (this) {
+      final Collection<String> items = new LinkedList<>();
+      for (Entry entry = this.newest; (entry != null) && (items.size() < maxNumItems); entry = entry.older) {
+        items.add(entry.url);
+      }
+      return items;
+    }
+  }
+
+  public Collection<HostEntry> getRecentHostEntries(final int maxNumItems) {
+    this.ensureLoaded();
+    synchronized (this) {
+      final Collection<HostEntry> items = new LinkedList<>();
+      final Set<String> hosts = new HashSet<>();
+      for (Entry entry = this.newest; (entry != null) && (items.size() < maxNumItems); entry = entry.older) {
+        final String host = getHost(entry.url);
+        if ((host.length() != 0) && hosts.add(host)) {
+          items.add(new HostEntry(host, entry.lastVisitTime));
+        }
+      }
+      return items;
+    }
+  }
+
+  /**
+   * Gets the locations that match text typed in the address bar, best first.
+   * Locations that start with the text, ignoring scheme and <code>www.</code>
+   * prefix, come before locations that only contain it.
+   */
+  public Collection<String> getMatchingItems(final String text, final int maxNumItems) {
+    final String query = getSearchKey(text);
+    if (query.length() == 0) {
+      return new LinkedList<>();
+    }
+    this.ensureLoaded();
+    final long now = System.currentTimeMillis();
+    final List<Entry> prefixMatches = new ArrayList<>();
+    final List<Entry> substringMatches = new ArrayList<>();
+    synchronized (this) {
+      for (final Entry entry : this.searchIndex.tailSet(new Entry(query), true)) {
+        if (!entry.searchKey.startsWith(query) || (prefixMatches.size() >= MAX_RANKED_PREFIX_MATCHES)) {
+          break;
+        }
+        prefixMatches.add(entry);
+      }
+      if ((prefixMatches.size() < maxNumItems) && (query.length() >= MIN_SUBSTRING_LENGTH)) {
+        int count = 0;
+        for (Entry entry = this.newest; (entry != null) && (count++ < MAX_SUBSTRING_SEARCH); entry = entry.older) {
+          if ((entry.searchKey.indexOf(query, 1) != -1) && !entry.searchKey.startsWith(query)) {
+            substringMatches.add(entry);
+          }
+        }
+      }
+      prefixMatches.sort((e1, e2) -> compareFrecency(e1, e2, now));
+      substringMatches.sort((e1, e2) -> compareFrecency(e1, e2, now));
+    }
+    final Collection<String> items = new LinkedList<>();
+    addItems(items, prefixMatches, maxNumItems);
+    addItems(items, substringMatches, maxNumItems);
+    return items;
+  }
+
+  private static void addItems(final Collection<String> items, final List<Entry> matches, final int maxNumItems) {
+    for (final Entry entry : matches) {
+      if (items.size() >= maxNumItems) {
+        break;
+      }
+      items.add(entry.url);
+    }
+  }
+
+  /**
+   * Orders entries by decreasing frecency, then by decreasing recency.
+   */
+  private static int compareFrecency(final Entry e1, final Entry e2, final long now) {
+    final int result = Long.compare(getFrecency(e2, now), getFrecency(e1, now));
+    return result != 0 ? result : Long.compare(e2.lastVisitTime, e1.lastVisitTime);
+  }
+
+  private static long getFrecency(final Entry entry, final long now) {
+    final long ageDays = (now - entry.lastVisitTime) / DAY_MILLIS;
+    final int weight;
+    if (ageDays < 4) {
+      weight = 100;
+    } else if (ageDays < 14) {
+      weight = 70;
+    } else if (ageDays < 31) {
+      weight = 50;
+    } else if (ageDays < 90) {
+      weight = 30;
+    } else {
+      weight = 10;
+    }
+    return (long) entry.visitCount * weight;
+  }
+
+  private static int compareSearchKeys(final Entry e1, final Entry e2) {
+    final int result = e1.searchKey.compareTo(e2.searchKey);
+    return result != 0 ? result : e1.url.compareTo(e2.url);
+  }
+
+  /**
+   * Gets the text that address bar input is matched against: the location in
+   * lower case, without <code>http://</code>, <code>https://</code> and
+   * <code>www.</code> prefixes.
+   */
+  private static String getSearchKey(final String location) {
+    final String lowerLocation = location.trim().toLowerCase();
+    int start = 0;
+    if (lowerLocation.startsWith("http://")) {
+      start = 7;
+    } else if (lowerLocation.startsWith("https://")) {
+      start = 8;
+    }
+    if (lowerLocation.startsWith("www.", start)) {
+      start += 4;
+    }
+    return lowerLocation.substring(start);
+  }
+
+  private static String getHost(final String url) {
+    final int schemeEnd = url.indexOf("://");
+    if (schemeEnd == -1) {
+      return "";
+    }
+    final int hostStart = schemeEnd + 3;
+    int hostEnd = hostStart;
+    while ((hostEnd < url.length()) && ("/:?#".indexOf(url.charAt(hostEnd)) == -1)) {
+      hostEnd++;
+    }
+    return url.substring(hostStart, hostEnd);
+  }
+
+  private void scheduleWrite(final String url, final Entry entry) {
+    final Map<String, Entry> pendingWrites = this.pendingWrites;
+    synchronized (pendingWrites) {
+      pendingWrites.remove(url);
+      pendingWrites.put(url, entry);
+      pendingWrites.notify();
+    }
+  }
+
+  /**
+   * Writes pending changes to the database. Should be called before the
+   * database is closed.
+   */
   public void save() {
+    this.flush();
+  }
+
+  private void flush() {
+    final Map<String, Entry> batch;
+    synchronized (this.pendingWrites) {
+      if (this.pendingWrites.isEmpty()) {
+        return;
+      }
+      batch = new LinkedHashMap<>(this.pendingWrites);
+      this.pendingWrites.clear();
+    }
+    final List<HistoryRecord> updates = new ArrayList<>();
+    final List<String> deletions = new ArrayList<>();
+    // Entries are modified while holding the lock on the history, which must
+    // not be acquired while holding the lock on pending writes.
     synchronized (this) {
+      for (final Map.Entry<String, Entry> write : batch.entrySet()) {
+        final Entry entry = write.getValue();
+        if (entry == null) {
+          deletions.add(write.getKey());
+        } else {
+          updates.add(new HistoryRecord(entry.url, entry.visitCount, entry.lastVisitTime));
+        }
+      }
+    }
+    // Reason: Caller may not have privileges to access the database.
+    AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
       try {
-        StorageManager.getInstance().saveSettings(this.getClass().getSimpleName(), this);
-      } catch (final java.io.IOException ioe) {
-        logger.log(Level.WARNING, "Unable to save settings: " + this.getClass().getSimpleName(), ioe);
+        final DSLContext userDB = StorageManager.getInstance().getDB();
+        userDB.transaction(configuration -> {
+          final DSLContext tx = DSL.using(configuration);
+          final List<Query> queries = new ArrayList<>(updates.size() + 1);
+          for (final HistoryRecord record : updates) {
+            queries.add(tx.mergeInto(History.HISTORY).values(record.getUrl(), record.getVisitcount(), record.getLastvisittime()));
+          }
+          if (!deletions.isEmpty()) {
+            queries.add(tx.deleteFrom(History.HISTORY).where(History.HISTORY.URL.in(deletions)));
+          }
+          tx.batch(queries).execute();
+        });
+        if (logger.isLoggable(Level.INFO)) {
+          logger.info("flush(): Wrote " + (updates.size() + deletions.size()) + " history changes.");
+        }
+      } catch (final RuntimeException err) {
+        logger.log(Level.SEVERE, "flush(): Unable to write history. Will retry.", err);
+        this.requeue(batch);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Puts back changes that could not be written, unless a location changed
+   * again in the meantime.
+   */
+  private void requeue(final Map<String, Entry> batch) {
+    final Map<String, Entry> pendingWrites = this.pendingWrites;
+    synchronized (pendingWrites) {
+      final Map<String, Entry> newerWrites = new LinkedHashMap<>(pendingWrites);
+      pendingWrites.clear();
+      pendingWrites.putAll(batch);
+      newerWrites.forEach((url, entry) -> {
+        pendingWrites.remove(url);
+        pendingWrites.put(url, entry);
+      });
+      pendingWrites.notify();
+    }
+  }
+
+  /**
+   * The form in which older versions serialized the navigation history.
+   */
+  private static final class LegacyHistory extends BaseHistory<Object> {
+    private static final long serialVersionUID = 2257845000600200100L;
+  }
+
+  /**
+   * Reads a serialized navigation history of an older version as a
+   * {@link LegacyHistory}.
+   */
+  private static final class LegacyHistoryInputStream extends ClassLoaderObjectInputStream {
+    LegacyHistoryInputStream(final InputStream in) throws IOException {
+      super(in, NavigationHistory.class.getClassLoader());
+    }
+
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+      final ObjectStreamClass descriptor = super.readClassDescriptor();
+      if (NavigationHistory.class.getName().equals(descriptor.getName())) {
+        return ObjectStreamClass.lookup(LegacyHistory.class);
       }
+      return descriptor;
+    }
+  }
+
+  private static final class Entry {
+    private final String url;
+    private final String searchKey;
+    private int visitCount;
+    private long lastVisitTime;
+    private Entry newer;
+    private Entry older;
+
+    Entry(final String url, final int visitCount, final long lastVisitTime) {
+      this.url = url;
+      this.searchKey = getSearchKey(url);
+      this.visitCount = visitCount;
+      this.lastVisitTime = lastVisitTime;
+    }
+
+    /**
+     * Creates a probe for searching the index.
+     */
+    Entry(final String searchKey) {
+      this.url = "";
+      this.searchKey = searchKey;
     }
   }
 }
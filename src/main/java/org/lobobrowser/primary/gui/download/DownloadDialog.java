@@ -28,10 +28,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,20 +44,13 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.SwingUtilities;
 
 import org.eclipse.jdt.annotation.NonNull;
-import org.cobraparser.clientlet.ClientletException;
-import org.cobraparser.clientlet.ClientletRequest;
 import org.cobraparser.clientlet.ClientletResponse;
 import org.lobobrowser.gui.DefaultWindowFactory;
 import org.lobobrowser.primary.gui.FieldType;
 import org.lobobrowser.primary.gui.FormField;
 import org.lobobrowser.primary.gui.FormPanel;
 import org.lobobrowser.primary.settings.ToolsSettings;
-import org.lobobrowser.request.AbstractRequestHandler;
-import org.lobobrowser.request.ClientletRequestImpl;
-import org.lobobrowser.request.RequestEngine;
-import org.lobobrowser.request.RequestHandler;
 import org.cobraparser.ua.ProgressType;
-import org.cobraparser.ua.RequestType;
 import org.cobraparser.ua.UserAgentContext;
 import org.cobraparser.util.OS;
 import org.cobraparser.util.Timing;
@@ -87,7 +76,6 @@ public class DownloadDialog extends JFrame {
   private final JButton openButton = new JButton();
 
   private final @NonNull URL url;
-  private final int knownContentLength;
 
   public DownloadDialog(final ClientletResponse response, final @NonNull URL url, final int transferSpeed, final UserAgentContext uaContext) {
     this.url = url;
@@ -112,7 +100,6 @@ public class DownloadDialog extends JFrame {
     this.documentField.setValue(url.toExternalForm());
     this.mimeTypeField.setValue(response.getMimeType());
     final int cl = response.getContentLength();
-    this.knownContentLength = cl;
     final String sizeText = cl == -1 ? "Not known" : getSizeText(cl);
     this.sizeField.setValue(sizeText);
     final String estTimeText = (transferSpeed <= 0) || (cl == -1) ? "Not known" : Timing.getElapsedText(cl / transferSpeed);
@@ -153,11 +140,11 @@ public class DownloadDialog extends JFrame {
     this.addWindowListener(new WindowAdapter() {
       @Override
       public void windowClosed(final WindowEvent e) {
-        final RequestHandler rh = requestHandler;
-        if (rh != null) {
-          rh.cancel();
+        final SegmentedDownload sd = download;
+        if (sd != null) {
+          sd.cancel();
           // So that there's no error dialog
-          requestHandler = null;
+          download = null;
         }
       }
     });
@@ -219,11 +206,9 @@ public class DownloadDialog extends JFrame {
     }
   }
 
-  private RequestHandler requestHandler;
+  private volatile SegmentedDownload download;
   private File destinationFile;
   private long downloadBaseTimestamp;
-  private long lastTimestamp;
-  private long lastProgressValue;
   private double lastTransferRate = Double.NaN;
 
   final private UserAgentContext uaContext;
@@ -239,16 +224,13 @@ public class DownloadDialog extends JFrame {
     this.bottomFormPanel.setEnabled(true);
     this.bottomFormPanel.revalidate();
 
-    final ClientletRequest request = new ClientletRequestImpl(this.url, RequestType.DOWNLOAD);
-    final RequestHandler handler = new DownloadRequestHandler(request, this, file, uaContext);
+    final SegmentedDownload download = new SegmentedDownload(this.url, file, this, this.uaContext, new DownloadListener());
 
     this.destinationFile = file;
-    this.requestHandler = handler;
+    this.download = download;
     this.downloadBaseTimestamp = System.currentTimeMillis();
 
-    final Thread t = new Thread(new DownloadRunnable(handler), "Download:" + this.url.toExternalForm());
-    t.setDaemon(true);
-    t.start();
+    download.start();
   }
 
   private void doneWithDownload_Safe(final long totalSize) {
@@ -256,7 +238,7 @@ public class DownloadDialog extends JFrame {
   }
 
   private void doneWithDownload(final long totalSize) {
-    this.requestHandler = null;
+    this.download = null;
 
     this.setTitle(this.destinationField.getValue());
     this.timeLeftField.setCaption("Download time:");
@@ -295,8 +277,8 @@ public class DownloadDialog extends JFrame {
   }
 
   private void errorInDownload() {
-    if (this.requestHandler != null) {
-      // If requestHandler is null, it means the download was explicitly
+    if (this.download != null) {
+      // If download is null, it means the download was explicitly
       // cancelled or the window closed.
       JOptionPane.showMessageDialog(this, "An error occurred while trying to download the file.");
       this.dispose();
@@ -326,37 +308,32 @@ public class DownloadDialog extends JFrame {
     }
   }
 
-  private void updateProgress_Safe(final ProgressType progressType, final int value, final int max) {
-    SwingUtilities.invokeLater(() -> updateProgress(progressType, value, max));
+  private void updateProgress_Safe(final ProgressType progressType, final long value, final long max, final double transferRate) {
+    SwingUtilities.invokeLater(() -> updateProgress(progressType, value, max, transferRate));
   }
 
-  private void updateProgress(final ProgressType progressType, final int value, final int max) {
+  /**
+   * @param transferRate
+   *          Bytes per millisecond over all segments of the download since the
+   *          last update, or <code>NaN</code> if not known.
+   */
+  private void updateProgress(final ProgressType progressType, final long value, final long max, final double transferRate) {
     final String sizeText = getSizeText(value);
     this.transferSizeField.setValue(sizeText);
 
-    final long newTimestamp = System.currentTimeMillis();
     final double lastTransferRate = this.lastTransferRate;
-    final long lastProgressValue = this.lastProgressValue;
-    final long lastTimestamp = this.lastTimestamp;
-    final long elapsed = newTimestamp - lastTimestamp;
-    double newTransferRate = Double.NaN;
-    if (elapsed > 0) {
-      newTransferRate = (value - lastProgressValue) / elapsed;
-      if (!Double.isNaN(lastTransferRate)) {
-        // Weighed average
-        newTransferRate = (newTransferRate + (lastTransferRate * 5.0)) / 6.0;
-      }
+    double newTransferRate = transferRate;
+    if (!Double.isNaN(newTransferRate) && !Double.isNaN(lastTransferRate)) {
+      // Weighed average
+      newTransferRate = (newTransferRate + (lastTransferRate * 5.0)) / 6.0;
     }
     if (!Double.isNaN(newTransferRate)) {
       this.transferRateField.setValue(round1(newTransferRate) + " Kb/sec");
-      final int cl = this.knownContentLength;
-      if ((cl > 0) && (newTransferRate > 0)) {
-        this.timeLeftField.setValue(Timing.getElapsedText((long) ((cl - value) / newTransferRate)));
+      if ((max > 0) && (newTransferRate > 0)) {
+        this.timeLeftField.setValue(Timing.getElapsedText((long) ((max - value) / newTransferRate)));
       }
+      this.lastTransferRate = newTransferRate;
     }
-    this.lastTimestamp = newTimestamp;
-    this.lastProgressValue = value;
-    this.lastTransferRate = newTransferRate;
 
     final JProgressBar pb = this.progressBar;
     if (progressType == ProgressType.CONNECTING) {
@@ -369,11 +346,12 @@ public class DownloadDialog extends JFrame {
       pb.setStringPainted(false);
       this.setTitle(sizeText + " " + this.destinationField.getValue());
     } else {
-      final int percent = (value * 100) / max;
+      final int permille = (int) ((value * 1000) / max);
+      final int percent = permille / 10;
       pb.setIndeterminate(false);
       pb.setStringPainted(true);
-      pb.setMaximum(max);
-      pb.setValue(value);
+      pb.setMaximum(1000);
+      pb.setValue(permille);
       final String percentText = percent + "%";
       pb.setString(percentText);
       this.setTitle(percentText + " " + this.destinationField.getValue());
@@ -434,70 +412,22 @@ public class DownloadDialog extends JFrame {
     }
   }
 
-  private class DownloadRunnable implements Runnable {
-    private final RequestHandler handler;
-
-    public DownloadRunnable(final RequestHandler handler) {
-      this.handler = handler;
+  private class DownloadListener implements SegmentedDownload.Listener {
+    public void connecting() {
+      updateProgress_Safe(ProgressType.CONNECTING, 0, -1, Double.NaN);
     }
 
-    public void run() {
-      try {
-        RequestEngine.getInstance().inlineRequest(this.handler);
-      } catch (final Exception err) {
-        logger.log(Level.SEVERE, "Unexpected error on download of [" + url.toExternalForm() + "].", err);
-      }
+    public void progress(final long transferred, final long total, final double bytesPerMillisecond) {
+      updateProgress_Safe(ProgressType.CONTENT_LOADING, transferred, total, bytesPerMillisecond);
     }
-  }
-
-  private class DownloadRequestHandler extends AbstractRequestHandler {
-    private final File file;
-    private boolean downloadDone = false;
-    private long lastProgressUpdate = 0;
 
-    public DownloadRequestHandler(final ClientletRequest request, final Component dialogComponent, final File file,
-        final UserAgentContext uaContext) {
-      super(request, dialogComponent, uaContext);
-      this.file = file;
+    public void done(final long total) {
+      doneWithDownload_Safe(total);
     }
 
-    @Override
-    public boolean handleException(final ClientletResponse response, final Throwable exception, final RequestType requestType)
-        throws ClientletException {
-      logger.log(Level.WARNING, "An error occurred trying to download " + response.getResponseURL() + " to " + this.file + ".", exception);
+    public void failed(final Throwable cause) {
+      logger.log(Level.WARNING, "An error occurred trying to download " + url + " to " + destinationFile + ".", cause);
       errorInDownload_Safe();
-      return true;
-    }
-
-    @Override
-    public void handleProgress(final ProgressType progressType, final @NonNull URL url, final String method, final int value, final int max) {
-      if (!this.downloadDone) {
-        final long timestamp = System.currentTimeMillis();
-        if ((timestamp - this.lastProgressUpdate) > 1000) {
-          updateProgress_Safe(progressType, value, max);
-          this.lastProgressUpdate = timestamp;
-        }
-      }
-    }
-
-    @Override
-    public void processResponse(final ClientletResponse response) throws ClientletException, IOException {
-      try (
-        final OutputStream out = new FileOutputStream(this.file);
-        final InputStream in = response.getInputStream()) {
-        int totalRead = 0;
-        final byte[] buffer = new byte[8192];
-        int numRead;
-        while ((numRead = in.read(buffer)) != -1) {
-          if (this.isCancelled()) {
-            throw new IOException("cancelled");
-          }
-          totalRead += numRead;
-          out.write(buffer, 0, numRead);
-        }
-        this.downloadDone = true;
-        doneWithDownload_Safe(totalRead);
-      }
     }
   }
 }
@@ -0,0 +1,569 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.primary.gui.download;
+
+import java.awt.Component;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cobraparser.clientlet.ClientletException;
+import org.cobraparser.clientlet.ClientletResponse;
+import org.cobraparser.ua.ProgressType;
+import org.cobraparser.ua.RequestType;
+import org.cobraparser.ua.UserAgentContext;
+import org.eclipse.jdt.annotation.NonNull;
+import org.lobobrowser.request.AbstractRequestHandler;
+import org.lobobrowser.request.ClientletRequestImpl;
+import org.lobobrowser.request.RequestEngine;
+import org.lobobrowser.request.RequestHandler;
+import org.lobobrowser.settings.ConnectionSettings;
+import org.lobobrowser.utils.VirtualThreads;
+
+/**
+ * Downloads a URL to a file, fetching byte ranges of it in parallel when the
+ * server supports them.
+ * <p>
+ * The first request is a plain GET. If its response advertises byte ranges,
+ * has a known length and is not content-encoded, the file is split into
+ * segments: the first response provides the first segment, and the others are
+ * requested with <code>Range</code> headers on their own threads. Every
+ * segment is written at its position in the file, so no data is copied after
+ * the transfer.
+ * <p>
+ * The progress of the segments is kept in a state file next to the
+ * destination while the download runs. If a download is cancelled or
+ * interrupted, downloading the same URL to the same file again only requests
+ * the missing ranges, provided the server still has the same version of the
+ * file.
+ */
+final class SegmentedDownload {
+  private static final Logger logger = Logger.getLogger(SegmentedDownload.class.getName());
+  private static final int MAX_SEGMENTS = 4;
+  private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long REPORT_INTERVAL = 500;
+  private static final long STATE_SAVE_INTERVAL = 2000;
+  private static final int STATE_MAGIC = 0x4C4F4244;
+  private static final int STATE_VERSION = 1;
+  private static final String STATE_FILE_SUFFIX = ".download";
+  /** End of a segment that runs to the end of a response of unknown length. */
+  private static final long UNKNOWN_END = Long.MAX_VALUE;
+
+  interface Listener {
+    void connecting();
+
+    /**
+     * @param transferred
+     *          Bytes in the file so far, including bytes from an earlier
+     *          session.
+     * @param total
+     *          Length of the file, or -1 if not known.
+     * @param bytesPerMillisecond
+     *          Transfer rate of all segments since the previous report.
+     */
+    void progress(long transferred, long total, double bytesPerMillisecond);
+
+    void done(long total);
+
+    void failed(Throwable cause);
+  }
+
+  private final @NonNull URL url;
+  private final File file;
+  private final File stateFile;
+  private final Component dialogComponent;
+  private final UserAgentContext uaContext;
+  private final Listener listener;
+  private final List<RequestHandler> handlers = new CopyOnWriteArrayList<>();
+  private final AtomicLong lastReportTime = new AtomicLong();
+  private final AtomicLong sessionBytes = new AtomicLong();
+  private long reportedSessionBytes = 0;
+  private long lastStateSaveTime = 0;
+  private volatile boolean cancelled = false;
+  private volatile boolean rangeRejected = false;
+  private volatile Throwable failure;
+  private FileChannel channel;
+  private CountDownLatch segmentsDone;
+
+  // Written before any segment thread starts.
+  private volatile Segment[] segments;
+  private long totalLength = -1;
+  private String validator;
+
+  SegmentedDownload(final @NonNull URL url, final File file, final Component dialogComponent, final UserAgentContext uaContext,
+      final Listener listener) {
+    this.url = url;
+    this.file = file;
+    this.stateFile = new File(file.getPath() + STATE_FILE_SUFFIX);
+    this.dialogComponent = dialogComponent;
+    this.uaContext = uaContext;
+    this.listener = listener;
+  }
+
+  void start() {
+    this.startThread(this::run, "Download:" + this.url.toExternalForm());
+  }
+
+  /**
+   * Stops the download. The state file is kept, so that the download can be
+   * resumed.
+   */
+  void cancel() {
+    this.cancelled = true;
+    for (final RequestHandler handler : this.handlers) {
+      handler.cancel();
+    }
+  }
+
+  private void run() {
+    try {
+      try (
+        final FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        this.channel = channel;
+        boolean resumed = false;
+        if (this.loadState()) {
+          logger.info("run(): Resuming download of " + this.url + " into " + this.file + ".");
+          this.listener.progress(this.getTransferred(), this.totalLength, Double.NaN);
+          resumed = this.fetchRemainingSegments();
+          if (!resumed) {
+            logger.info("run(): Server did not accept ranges of " + this.url + ". Restarting download.");
+          }
+        }
+        if (!resumed && !this.cancelled) {
+          this.rangeRejected = false;
+          this.segmentsDone = null;
+          this.segments = null;
+          this.totalLength = -1;
+          this.validator = null;
+          channel.truncate(0);
+          this.fetchAll();
+        }
+        if (this.cancelled) {
+          return;
+        }
+        this.checkFailure();
+        channel.force(false);
+      }
+      this.stateFile.delete();
+      this.listener.done(this.getTransferred());
+    } catch (final Throwable err) {
+      if (!this.cancelled) {
+        logger.log(Level.WARNING, "run(): Unable to download " + this.url + " to " + this.file + ".", err);
+        this.listener.failed(err);
+      }
+    }
+  }
+
+  /**
+   * Requests the whole file. The response is split into segments if possible.
+   */
+  private void fetchAll() throws Exception {
+    this.listener.connecting();
+    final DownloadHandler handler = new DownloadHandler(null);
+    this.handlers.add(handler);
+    RequestEngine.getInstance().inlineRequest(handler);
+    this.checkFailure();
+    if (this.segmentsDone != null) {
+      this.awaitSegments();
+      if (this.rangeRejected) {
+        throw new IOException("Server did not return the requested byte range.");
+      }
+    }
+  }
+
+  /**
+   * Requests the missing ranges of a resumed download.
+   *
+   * @return <code>false</code> if the server no longer serves the same file or
+   *         ignores ranges.
+   */
+  private boolean fetchRemainingSegments() throws Exception {
+    this.startSegments(0);
+    this.awaitSegments();
+    return !this.rangeRejected;
+  }
+
+  private void startSegments(final int first) {
+    final Segment[] segments = this.segments;
+    this.segmentsDone = new CountDownLatch(segments.length - first);
+    for (int i = first; i < segments.length; i++) {
+      final Segment segment = segments[i];
+      if (segment.isComplete()) {
+        this.segmentsDone.countDown();
+        continue;
+      }
+      final DownloadHandler handler = new DownloadHandler(segment);
+      this.handlers.add(handler);
+      this.startThread(() -> {
+        try {
+          RequestEngine.getInstance().inlineRequest(handler);
+        } catch (final Throwable err) {
+          this.setFailure(err);
+        } finally {
+          this.segmentsDone.countDown();
+        }
+      }, "Download:" + this.url.toExternalForm() + ":" + i);
+    }
+  }
+
+  private void awaitSegments() throws Exception {
+    this.segmentsDone.await();
+    this.checkFailure();
+    this.saveState();
+  }
+
+  private void startThread(final Runnable task, final String name) {
+    final boolean virtual = ConnectionSettings.getInstance().isVirtualThreadsEnabled();
+    VirtualThreads.start(task, name, virtual);
+  }
+
+  private void setFailure(final Throwable err) {
+    if (this.failure == null) {
+      this.failure = err;
+    }
+    // One failed segment fails the download; the rest is kept for resuming.
+    this.cancelSegments();
+  }
+
+  private void cancelSegments() {
+    for (final RequestHandler handler : this.handlers) {
+      handler.cancel();
+    }
+  }
+
+  private void checkFailure() throws Exception {
+    final Throwable failure = this.failure;
+    if (failure instanceof Exception) {
+      throw (Exception) failure;
+    } else if (failure != null) {
+      throw new ClientletException(failure);
+    }
+  }
+
+  /**
+   * Handles the response to the request for the whole file.
+   */
+  private void processFullResponse(final ClientletResponse response, final RequestHandler handler) throws IOException {
+    final long length = parseLength(response.getHeader("Content-Length"));
+    final String acceptRanges = response.getHeader("Accept-Ranges");
+    final String encoding = response.getHeader("Content-Encoding");
+    final boolean rangesSupported = (length > 0) && "bytes".equalsIgnoreCase(acceptRanges == null ? null : acceptRanges.trim())
+        && ((encoding == null) || "identity".equalsIgnoreCase(encoding.trim()));
+    final Segment first;
+    if (rangesSupported) {
+      final int numSegments = (int) Math.max(1, Math.min(MAX_SEGMENTS, length / MIN_SEGMENT_SIZE));
+      final Segment[] segments = new Segment[numSegments];
+      final long segmentLength = length / numSegments;
+      for (int i = 0; i < numSegments; i++) {
+        final long start = i * segmentLength;
+        final long end = i == (numSegments - 1) ? length : start + segmentLength;
+        segments[i] = new Segment(start, end, start);
+      }
+      this.totalLength = length;
+      this.validator = getValidator(response);
+      this.segments = segments;
+      // Reserve the whole file so segments can be written at their positions.
+      this.channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+      if (this.validator != null) {
+        this.saveState();
+      }
+      this.startSegments(1);
+      first = segments[0];
+    } else {
+      this.totalLength = length;
+      first = new Segment(0, UNKNOWN_END, 0);
+      this.segments = new Segment[] { first };
+    }
+    try (
+      final InputStream in = response.getInputStream()) {
+      this.copy(in, first, handler);
+    }
+    if ((first.end == UNKNOWN_END) && (length > 0) && (first.position != length)) {
+      throw new EOFException("Expected " + length + " bytes but received " + first.position + ".");
+    }
+  }
+
+  /**
+   * Handles the response to a range request.
+   */
+  private void processRangeResponse(final ClientletResponse response, final Segment segment, final RequestHandler handler)
+      throws IOException {
+    final String contentRange = response.getHeader("Content-Range");
+    if ((response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) || (contentRange == null)
+        || !contentRange.trim().startsWith("bytes " + segment.position + "-")) {
+      // The server ignored the range or the If-Range validator no longer
+      // matches. The whole download has to start over.
+      this.rangeRejected = true;
+      this.cancelSegments();
+      return;
+    }
+    try (
+      final InputStream in = response.getInputStream()) {
+      this.copy(in, segment, handler);
+    }
+  }
+
+  private void copy(final InputStream in, final Segment segment, final RequestHandler handler) throws IOException {
+    final byte[] bytes = new byte[BUFFER_SIZE];
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    final FileChannel channel = this.channel;
+    while (segment.position < segment.end) {
+      if (handler.isCancelled() || this.cancelled) {
+        throw new IOException("cancelled");
+      }
+      final int numRead = in.read(bytes, 0, (int) Math.min(bytes.length, segment.end - segment.position));
+      if (numRead == -1) {
+        break;
+      }
+      buffer.clear();
+      buffer.limit(numRead);
+      final long position = segment.position;
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, position + buffer.position());
+      }
+      segment.position = position + numRead;
+      this.transferred(numRead);
+    }
+    if ((segment.end != UNKNOWN_END) && (segment.position < segment.end)) {
+      throw new EOFException("Range ended " + (segment.end - segment.position) + " bytes early.");
+    }
+  }
+
+  private void transferred(final int numBytes) throws IOException {
+    this.sessionBytes.addAndGet(numBytes);
+    final long now = System.currentTimeMillis();
+    final long last = this.lastReportTime.get();
+    if (((now - last) >= REPORT_INTERVAL) && this.lastReportTime.compareAndSet(last, now)) {
+      // Only the thread that won the report interval gets here.
+      final long sessionBytes = this.sessionBytes.get();
+      final double rate = last == 0 ? Double.NaN : (double) (sessionBytes - this.reportedSessionBytes) / (now - last);
+      this.reportedSessionBytes = sessionBytes;
+      this.listener.progress(this.getTransferred(), this.totalLength, rate);
+      if ((now - this.lastStateSaveTime) >= STATE_SAVE_INTERVAL) {
+        this.lastStateSaveTime = now;
+        this.saveState();
+      }
+    }
+  }
+
+  private long getTransferred() {
+    final Segment[] segments = this.segments;
+    if (segments == null) {
+      return 0;
+    }
+    long transferred = 0;
+    for (final Segment segment : segments) {
+      transferred += segment.position - segment.start;
+    }
+    return transferred;
+  }
+
+  private static long parseLength(final String value) {
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (final NumberFormatException nfe) {
+        // Treated as unknown
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets a validator that identifies the version of the file, for the
+   * <code>If-Range</code> header. Weak entity tags can't be used there.
+   */
+  private static String getValidator(final ClientletResponse response) {
+    final String etag = response.getHeader("ETag");
+    if ((etag != null) && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return response.getHeader("Last-Modified");
+  }
+
+  /**
+   * Loads the state of an earlier session that downloaded the same URL into
+   * the same file.
+   */
+  private boolean loadState() {
+    if (!this.stateFile.isFile()) {
+      return false;
+    }
+    try (
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.stateFile)))) {
+      if ((in.readInt() != STATE_MAGIC) || (in.readInt() != STATE_VERSION)) {
+        return false;
+      }
+      final String stateUrl = in.readUTF();
+      final String validator = in.readUTF();
+      final long totalLength = in.readLong();
+      final int numSegments = in.readInt();
+      if (!stateUrl.equals(this.url.toExternalForm()) || (this.file.length() != totalLength) || (numSegments <= 0)
+          || (numSegments > MAX_SEGMENTS)) {
+        return false;
+      }
+      final Segment[] segments = new Segment[numSegments];
+      for (int i = 0; i < numSegments; i++) {
+        final long start = in.readLong();
+        final long end = in.readLong();
+        final long position = in.readLong();
+        if ((position < start) || (position > end) || (end > totalLength)) {
+          return false;
+        }
+        segments[i] = new Segment(start, end, position);
+      }
+      this.validator = validator;
+      this.totalLength = totalLength;
+      this.segments = segments;
+      return true;
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "loadState(): Unable to read download state " + this.stateFile + ".", ioe);
+      return false;
+    }
+  }
+
+  /**
+   * Saves the position of every segment. Positions are read before the data
+   * is forced to disk, so the state never claims bytes that were written
+   * after the force and could be lost in a crash.
+   */
+  private synchronized void saveState() throws IOException {
+    final Segment[] segments = this.segments;
+    if ((segments == null) || (this.validator == null) || (this.totalLength <= 0)) {
+      return;
+    }
+    final long[] positions = new long[segments.length];
+    for (int i = 0; i < segments.length; i++) {
+      positions[i] = segments[i].position;
+    }
+    this.channel.force(false);
+    final File tempFile = new File(this.stateFile.getPath() + ".tmp");
+    try (
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(STATE_MAGIC);
+      out.writeInt(STATE_VERSION);
+      out.writeUTF(this.url.toExternalForm());
+      out.writeUTF(this.validator);
+      out.writeLong(this.totalLength);
+      out.writeInt(segments.length);
+      for (int i = 0; i < segments.length; i++) {
+        out.writeLong(segments[i].start);
+        out.writeLong(segments[i].end);
+        out.writeLong(positions[i]);
+      }
+    }
+    try {
+      Files.move(tempFile.toPath(), this.stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (final AtomicMoveNotSupportedException amns) {
+      Files.move(tempFile.toPath(), this.stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static final class Segment {
+    private final long start;
+    private final long end;
+    /** Only written by the thread downloading the segment. */
+    private volatile long position;
+
+    Segment(final long start, final long end, final long position) {
+      this.start = start;
+      this.end = end;
+      this.position = position;
+    }
+
+    boolean isComplete() {
+      return this.position >= this.end;
+    }
+  }
+
+  private class DownloadHandler extends AbstractRequestHandler {
+    /** The range requested, or <code>null</code> for the whole file. */
+    private final Segment segment;
+
+    DownloadHandler(final Segment segment) {
+      super(new ClientletRequestImpl(url, RequestType.DOWNLOAD), dialogComponent, uaContext);
+      this.segment = segment;
+    }
+
+    @Override
+    public Optional<Map<String, String>> getRequestedHeaders() {
+      final Segment segment = this.segment;
+      if (segment == null) {
+        return Optional.empty();
+      }
+      final Map<String, String> headers = new HashMap<>(2);
+      headers.put("Range", "bytes=" + segment.position + "-" + (segment.end - 1));
+      if (validator != null) {
+        headers.put("If-Range", validator);
+      }
+      return Optional.of(headers);
+    }
+
+    @Override
+    public boolean handleException(final ClientletResponse response, final Throwable exception, final RequestType requestType)
+        throws ClientletException {
+      if (!this.isCancelled()) {
+        setFailure(exception);
+      }
+      return true;
+    }
+
+    @Override
+    public void handleProgress(final ProgressType progressType, final @NonNull URL url, final String method, final int value,
+        final int max) {
+      // Progress is aggregated over all segments by the download.
+    }
+
+    @Override
+    public void processResponse(final ClientletResponse response) throws ClientletException, IOException {
+      if (this.segment == null) {
+        processFullResponse(response, this);
+      } else {
+        processRangeResponse(response, this.segment, this);
+      }
+    }
+  }
+}
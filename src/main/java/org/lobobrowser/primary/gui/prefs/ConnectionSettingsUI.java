@@ -40,6 +40,7 @@ import org.lobobrowser.primary.gui.FormPanel;
 import org.lobobrowser.primary.gui.SwingTasks;
 import org.lobobrowser.primary.gui.ValidationException;
 import org.lobobrowser.settings.ConnectionSettings;
+import org.lobobrowser.utils.VirtualThreads;
 
 public class ConnectionSettingsUI extends AbstractSettingsUI {
   private static final long serialVersionUID = 4456678024374314397L;
@@ -49,6 +50,7 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
   private final JRadioButton socksProxyRadioButton = new JRadioButton();
   private final JCheckBox authenticatedCheckBox = new JCheckBox();
   private final JCheckBox bypassLocalCheckBox = new JCheckBox();
+  private final JCheckBox virtualThreadsCheckBox = new JCheckBox();
   private final Box proxyHostArea = new Box(BoxLayout.Y_AXIS);
   private final FormPanel authenticationPanel = new FormPanel();
   private final FormField userNameField = new FormField(FieldType.TEXT);
@@ -56,6 +58,9 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
   private final FormPanel hostPortPanel = new FormPanel();
   private final FormField hostField = new FormField(FieldType.TEXT);
   private final FormField portField = new FormField(FieldType.TEXT);
+  private final FormPanel poolPanel = new FormPanel();
+  private final FormField maxIdleConnectionsField = new FormField(FieldType.TEXT);
+  private final FormField keepAliveField = new FormField(FieldType.TEXT);
 
   public ConnectionSettingsUI() {
     this.noProxyRadioButton.addChangeListener(new ChangeListener() {
@@ -73,6 +78,12 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
     this.socksProxyRadioButton.setText("SOCKS proxy");
     this.authenticatedCheckBox.setText("Authenticate with proxy server.");
     this.bypassLocalCheckBox.setText("Bypass proxy for local addresses.");
+    if (VirtualThreads.isSupported()) {
+      this.virtualThreadsCheckBox.setText("Run requests on virtual threads.");
+    } else {
+      this.virtualThreadsCheckBox.setText("Run requests on virtual threads (unavailable: this Java runtime predates Java 21).");
+      this.virtualThreadsCheckBox.setEnabled(false);
+    }
     this.userNameField.setCaption("User name:");
     this.passwordField.setCaption("Password:");
     this.authenticationPanel.addField(this.userNameField);
@@ -81,6 +92,10 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
     this.portField.setCaption("Port:");
     this.hostPortPanel.addField(this.hostField);
     this.hostPortPanel.addField(this.portField);
+    this.maxIdleConnectionsField.setCaption("Maximum idle connections:");
+    this.keepAliveField.setCaption("Keep-alive (seconds):");
+    this.poolPanel.addField(this.maxIdleConnectionsField);
+    this.poolPanel.addField(this.keepAliveField);
 
     final ButtonGroup group = new ButtonGroup();
     group.add(this.noProxyRadioButton);
@@ -89,6 +104,10 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
     this.setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
     this.add(Box.createRigidArea(new Dimension(8, 8)));
     this.add(this.getProxyBox());
+    this.add(Box.createRigidArea(new Dimension(8, 8)));
+    this.add(this.getThreadingBox());
+    this.add(Box.createRigidArea(new Dimension(8, 8)));
+    this.add(this.getConnectionPoolBox());
     this.add(SwingTasks.createVerticalFill());
     this.loadSettings();
     this.updateEnabling();
@@ -116,6 +135,22 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
     return box;
   }
 
+  private Component getThreadingBox() {
+    final Box checkBoxBoxExpander = new Box(BoxLayout.X_AXIS);
+    checkBoxBoxExpander.add(this.virtualThreadsCheckBox);
+    checkBoxBoxExpander.add(Box.createHorizontalGlue());
+
+    final Box box = SwingTasks.createGroupBox(BoxLayout.Y_AXIS, "Threading");
+    box.add(checkBoxBoxExpander);
+    return box;
+  }
+
+  private Component getConnectionPoolBox() {
+    final Box box = SwingTasks.createGroupBox(BoxLayout.Y_AXIS, "Connection Pool");
+    box.add(this.poolPanel);
+    return box;
+  }
+
   private Component getProxyHostArea() {
     final Box checkBoxBox = new Box(BoxLayout.Y_AXIS);
     checkBoxBox.setPreferredSize(new Dimension(600, 200));
@@ -158,6 +193,7 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
     settings.setUserName(this.userNameField.getValue());
     settings.setPassword(this.passwordField.getValue());
     settings.setDisableProxyForLocalAddresses(this.bypassLocalCheckBox.isSelected());
+    settings.setVirtualThreadsEnabled(this.virtualThreadsCheckBox.isSelected());
     final String host = this.hostField.getValue();
     if ("".equals(host) && (proxyType != Proxy.Type.DIRECT)) {
       throw new ValidationException("To set up a proxy, a host name must be provided.");
@@ -173,10 +209,26 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
       }
     }
     final InetSocketAddress socketAddress = new InetSocketAddress(host, port);
+    final int maxIdleConnections = parsePositiveInt(this.maxIdleConnectionsField, "The maximum number of idle connections");
+    final int keepAliveSeconds = parsePositiveInt(this.keepAliveField, "The keep-alive time");
     settings.setInetSocketAddress(socketAddress);
+    settings.setMaxIdleConnections(maxIdleConnections);
+    settings.setKeepAliveSeconds(keepAliveSeconds);
     settings.save();
   }
 
+  private static int parsePositiveInt(final FormField field, final String description) throws ValidationException {
+    try {
+      final int value = Integer.parseInt(field.getValue().trim());
+      if (value > 0) {
+        return value;
+      }
+    } catch (final NumberFormatException nfe) {
+      // Reported below.
+    }
+    throw new ValidationException(description + " must be a positive number.");
+  }
+
   private void loadSettings() {
     final ConnectionSettings settings = this.settings;
     switch (settings.getProxyType()) {
@@ -194,6 +246,7 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
     this.userNameField.setValue(settings.getUserName());
     this.passwordField.setValue(settings.getPassword());
     this.bypassLocalCheckBox.setSelected(settings.isDisableProxyForLocalAddresses());
+    this.virtualThreadsCheckBox.setSelected(settings.isVirtualThreadsEnabled());
     final InetSocketAddress socketAddress = settings.getInetSocketAddress();
     if (socketAddress == null) {
       this.hostField.setValue("");
@@ -202,7 +255,10 @@ public class ConnectionSettingsUI extends AbstractSettingsUI {
       this.hostField.setValue(socketAddress.getHostName());
       this.portField.setValue(String.valueOf(socketAddress.getPort()));
     }
+    this.maxIdleConnectionsField.setValue(String.valueOf(settings.getMaxIdleConnections()));
+    this.keepAliveField.setValue(String.valueOf(settings.getKeepAliveSeconds()));
     this.authenticationPanel.revalidate();
     this.hostPortPanel.revalidate();
+    this.poolPanel.revalidate();
   }
 }
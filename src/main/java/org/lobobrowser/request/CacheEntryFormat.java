@@ -0,0 +1,72 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of persistent cache entries. An entry starts with a fixed preamble
+ * made of a magic number and the length of the header block, followed by the
+ * header block (<code>name: value</code> lines in ISO-8859-1) and the body.
+ * The preamble lets readers locate the body without parsing the headers. The
+ * magic number also tells whether the body is stored deflated.
+ * <p>
+ * Entries written by older versions have no preamble; they consist of the
+ * header lines, an empty line and the body.
+ */
+final class CacheEntryFormat {
+  static final int MAGIC = 0x4C4F4243;
+  static final int MAGIC_DEFLATED = 0x4C4F4244;
+  static final int PREAMBLE_SIZE = 8;
+
+  private CacheEntryFormat() {
+  }
+
+  static void writeHeaderBlock(final OutputStream out, final byte[] headerBlock, final boolean deflated) throws IOException {
+    final DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(deflated ? MAGIC_DEFLATED : MAGIC);
+    dout.writeInt(headerBlock.length);
+    dout.write(headerBlock);
+    dout.flush();
+  }
+
+  static boolean hasPreamble(final ByteBuffer entry) {
+    if (entry.limit() < PREAMBLE_SIZE) {
+      return false;
+    }
+    final int magic = entry.getInt(0);
+    return (magic == MAGIC) || (magic == MAGIC_DEFLATED);
+  }
+
+  static boolean isBodyDeflated(final ByteBuffer entry) {
+    return (entry.limit() >= PREAMBLE_SIZE) && (entry.getInt(0) == MAGIC_DEFLATED);
+  }
+
+  /**
+   * Gets the length of the header block of an entry that has a preamble.
+   */
+  static int getHeaderBlockLength(final ByteBuffer entry) {
+    return entry.getInt(4);
+  }
+}
@@ -25,14 +25,15 @@ package org.lobobrowser.request;
 
 import org.lobobrowser.store.CacheManager;
 import org.lobobrowser.store.ClassLoaderObjectInputStream;
-import org.cobraparser.util.Urls;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,14 +43,15 @@ public class CacheInfo {
   private final URL url;
 
   private final MemoryCacheEntry memoryEntry;
-  private final byte[] persistentContent;
+  private final ByteBuffer persistentContent;
 
   private URLConnection connection;
+  private CachePolicy cachePolicy;
 
   /**
    *
    */
-  public CacheInfo(final MemoryCacheEntry memEntry, final byte[] persContent, final URL url) {
+  public CacheInfo(final MemoryCacheEntry memEntry, final ByteBuffer persContent, final URL url) {
     super();
     this.persistentContent = persContent;
     this.url = url;
@@ -66,7 +68,7 @@ public class CacheInfo {
       if (memEntry != null) {
         this.connection = new MemoryURLConnection(this.url, memEntry);
       } else {
-        final byte[] content = this.persistentContent;
+        final ByteBuffer content = this.persistentContent;
         if (content == null) {
           throw new IllegalStateException("Memory entry and persistent content unavailable.");
         }
@@ -131,7 +133,7 @@ public class CacheInfo {
         return new Long(0);
       }
       final long requestTime = Long.parseLong(requestTimeText);
-      return Urls.getExpiration(connection, requestTime);
+      return this.getCachePolicy().getExpiration(connection, requestTime);
     }
   }
 
@@ -149,6 +151,20 @@ public class CacheInfo {
     }
   }
 
+  /**
+   * Gets the caching directives of the cached response. They are parsed at most
+   * once per entry.
+   */
+  public final CachePolicy getCachePolicy() {
+    CachePolicy policy = this.cachePolicy;
+    if (policy == null) {
+      final MemoryCacheEntry entry = this.memoryEntry;
+      policy = entry != null ? entry.cachePolicy : CachePolicy.forConnection(this.getURLConnection());
+      this.cachePolicy = policy;
+    }
+    return policy;
+  }
+
   public boolean hasTransientEntry() {
     return this.memoryEntry != null;
   }
@@ -195,8 +211,53 @@ public class CacheInfo {
     }
   }
 
-  public byte[] getPersistentContent() {
-    return persistentContent;
+  /**
+   * Creates a transient cache entry from the persistent entry, or returns
+   * <code>null</code> if the content is too large to be kept in memory.
+   */
+  MemoryCacheEntry createMemoryEntry(final Object altObject, final int altObjectSize) throws IOException {
+    final URLConnection connection = this.getURLConnection();
+    if (!(connection instanceof FileWithHeadersURLConnection)) {
+      return null;
+    }
+    final FileWithHeadersURLConnection fileConnection = (FileWithHeadersURLConnection) connection;
+    fileConnection.connect();
+    final byte[] content;
+    if (fileConnection.isBodyDeflated()) {
+      content = inflate(fileConnection, CacheWriterInputStream.MAX_MEMORY_COPY_SIZE);
+      if (content == null) {
+        return null;
+      }
+    } else {
+      final ByteBuffer body = fileConnection.getBody();
+      if (body.remaining() > CacheWriterInputStream.MAX_MEMORY_COPY_SIZE) {
+        return null;
+      }
+      content = new byte[body.remaining()];
+      body.get(content);
+    }
+    return new MemoryCacheEntry(content, fileConnection.getHeadersList(), this.getExpires(), this.getRequestTime(),
+        this.getCachePolicy(), altObject, altObjectSize);
+  }
+
+  /**
+   * Inflates the body of the given connection, or returns <code>null</code> if
+   * it is larger than <code>maxSize</code>.
+   */
+  private static byte[] inflate(final FileWithHeadersURLConnection fileConnection, final int maxSize) throws IOException {
+    try (
+      final InputStream in = fileConnection.openBodyStream()) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int numRead;
+      while ((numRead = in.read(buffer)) != -1) {
+        if ((out.size() + numRead) > maxSize) {
+          return null;
+        }
+        out.write(buffer, 0, numRead);
+      }
+      return out.toByteArray();
+    }
   }
 
   @Override
@@ -0,0 +1,332 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.net.URLConnection;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The caching directives of a response, parsed once from its
+ * <code>Cache-Control</code>, <code>Pragma</code> and <code>Vary</code>
+ * headers, and the freshness rules of a private (browser) cache derived from
+ * them. Instances are immutable.
+ */
+public final class CachePolicy {
+  /** Policy of a response without caching directives. */
+  public static final CachePolicy NONE = new CachePolicy(0, -1, -1, 0, 0, false);
+
+  /** Heuristic freshness, as a fraction of the time since last modification. */
+  private static final int HEURISTIC_DIVISOR = 10;
+  private static final long MAX_HEURISTIC_MILLIS = 24L * 60 * 60 * 1000;
+
+  private static final int NO_STORE = 1;
+  private static final int NO_CACHE = 2;
+  private static final int PRIVATE = 4;
+  private static final int PUBLIC = 8;
+  private static final int MUST_REVALIDATE = 16;
+  private static final int IMMUTABLE = 32;
+
+  private final int flags;
+  private final long maxAge;
+  private final long sMaxAge;
+  private final long staleWhileRevalidate;
+  private final long staleIfError;
+  private final boolean varyUnsupported;
+
+  private CachePolicy(final int flags, final long maxAge, final long sMaxAge, final long staleWhileRevalidate,
+      final long staleIfError, final boolean varyUnsupported) {
+    this.flags = flags;
+    this.maxAge = maxAge;
+    this.sMaxAge = sMaxAge;
+    this.staleWhileRevalidate = staleWhileRevalidate;
+    this.staleIfError = staleIfError;
+    this.varyUnsupported = varyUnsupported;
+  }
+
+  /**
+   * Parses the caching directives of the headers of a connection.
+   */
+  public static CachePolicy forConnection(final URLConnection connection) {
+    return parse(connection.getHeaderField("Cache-Control"), connection.getHeaderField("Pragma"), connection.getHeaderField("Vary"));
+  }
+
+  /**
+   * Parses caching directives. Any argument may be <code>null</code>.
+   */
+  public static CachePolicy parse(final String cacheControl, final String pragma, final String vary) {
+    int flags = 0;
+    long maxAge = -1;
+    long sMaxAge = -1;
+    long staleWhileRevalidate = 0;
+    long staleIfError = 0;
+    if (cacheControl != null) {
+      final int length = cacheControl.length();
+      int pos = 0;
+      while (pos < length) {
+        // Directive name
+        pos = skipWhitespace(cacheControl, pos);
+        final int nameStart = pos;
+        while ((pos < length) && (cacheControl.charAt(pos) != '=') && (cacheControl.charAt(pos) != ',')) {
+          pos++;
+        }
+        final int nameEnd = trimEnd(cacheControl, nameStart, pos);
+        // Optional value, possibly quoted
+        long seconds = -1;
+        if ((pos < length) && (cacheControl.charAt(pos) == '=')) {
+          pos = skipWhitespace(cacheControl, pos + 1);
+          if ((pos < length) && (cacheControl.charAt(pos) == '"')) {
+            pos++;
+            seconds = parseSeconds(cacheControl, pos);
+            while ((pos < length) && (cacheControl.charAt(pos) != '"')) {
+              pos++;
+            }
+          } else {
+            seconds = parseSeconds(cacheControl, pos);
+          }
+          while ((pos < length) && (cacheControl.charAt(pos) != ',')) {
+            pos++;
+          }
+        }
+        pos++;
+
+        final int nameLength = nameEnd - nameStart;
+        if (matches(cacheControl, nameStart, nameLength, "max-age")) {
+          maxAge = seconds;
+        } else if (matches(cacheControl, nameStart, nameLength, "s-maxage")) {
+          sMaxAge = seconds;
+        } else if (matches(cacheControl, nameStart, nameLength, "no-store")) {
+          flags |= NO_STORE;
+        } else if (matches(cacheControl, nameStart, nameLength, "no-cache")) {
+          // A field-qualified no-cache is treated like an unqualified one.
+          flags |= NO_CACHE;
+        } else if (matches(cacheControl, nameStart, nameLength, "private")) {
+          flags |= PRIVATE;
+        } else if (matches(cacheControl, nameStart, nameLength, "public")) {
+          flags |= PUBLIC;
+        } else if (matches(cacheControl, nameStart, nameLength, "must-revalidate")
+            || matches(cacheControl, nameStart, nameLength, "proxy-revalidate")) {
+          flags |= MUST_REVALIDATE;
+        } else if (matches(cacheControl, nameStart, nameLength, "immutable")) {
+          flags |= IMMUTABLE;
+        } else if (matches(cacheControl, nameStart, nameLength, "stale-while-revalidate")) {
+          staleWhileRevalidate = Math.max(0, seconds);
+        } else if (matches(cacheControl, nameStart, nameLength, "stale-if-error")) {
+          staleIfError = Math.max(0, seconds);
+        }
+      }
+    } else if ((pragma != null) && (pragma.toLowerCase().indexOf("no-cache") != -1)) {
+      flags |= NO_CACHE;
+    }
+    final boolean varyUnsupported = (vary != null) && isVaryUnsupported(vary);
+    if ((flags == 0) && (maxAge == -1) && (sMaxAge == -1) && (staleWhileRevalidate == 0) && (staleIfError == 0) && !varyUnsupported) {
+      return NONE;
+    }
+    return new CachePolicy(flags, maxAge, sMaxAge, staleWhileRevalidate, staleIfError, varyUnsupported);
+  }
+
+  private static int skipWhitespace(final String text, int pos) {
+    final int length = text.length();
+    while ((pos < length) && Character.isWhitespace(text.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int trimEnd(final String text, final int start, int end) {
+    while ((end > start) && Character.isWhitespace(text.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean matches(final String text, final int start, final int length, final String directive) {
+    return (length == directive.length()) && text.regionMatches(true, start, directive, 0, length);
+  }
+
+  /**
+   * Parses a delta-seconds value, or returns -1 if there are no digits.
+   * Values too large are capped.
+   */
+  private static long parseSeconds(final String text, int pos) {
+    final int length = text.length();
+    long value = -1;
+    while (pos < length) {
+      final char c = text.charAt(pos);
+      if ((c < '0') || (c > '9')) {
+        break;
+      }
+      value = value == -1 ? (c - '0') : Math.min(Integer.MAX_VALUE, (value * 10) + (c - '0'));
+      pos++;
+    }
+    return value;
+  }
+
+  /**
+   * Whether the response varies on request headers that are not the same for
+   * every request the browser makes, such as cookies.
+   */
+  private static boolean isVaryUnsupported(final String vary) {
+    final String lowerVary = vary.toLowerCase();
+    return (lowerVary.indexOf('*') != -1) || (lowerVary.indexOf("cookie") != -1) || (lowerVary.indexOf("authorization") != -1);
+  }
+
+  public boolean isNoStore() {
+    return (this.flags & NO_STORE) != 0;
+  }
+
+  public boolean isNoCache() {
+    return (this.flags & NO_CACHE) != 0;
+  }
+
+  public boolean isPrivate() {
+    return (this.flags & PRIVATE) != 0;
+  }
+
+  public boolean isPublic() {
+    return (this.flags & PUBLIC) != 0;
+  }
+
+  public boolean isMustRevalidate() {
+    return (this.flags & MUST_REVALIDATE) != 0;
+  }
+
+  public boolean isImmutable() {
+    return (this.flags & IMMUTABLE) != 0;
+  }
+
+  /**
+   * Gets the <code>max-age</code> in seconds, or -1 if absent.
+   */
+  public long getMaxAge() {
+    return this.maxAge;
+  }
+
+  /**
+   * Gets the <code>s-maxage</code> in seconds, or -1 if absent. It only
+   * applies to shared caches, so it does not affect freshness here.
+   */
+  public long getSharedMaxAge() {
+    return this.sMaxAge;
+  }
+
+  /**
+   * Gets the <code>stale-while-revalidate</code> period in seconds, or zero.
+   */
+  public long getStaleWhileRevalidate() {
+    return this.isStaleUseForbidden() ? 0 : this.staleWhileRevalidate;
+  }
+
+  /**
+   * Gets the <code>stale-if-error</code> period in seconds, or zero.
+   */
+  public long getStaleIfError() {
+    return this.isStaleUseForbidden() ? 0 : this.staleIfError;
+  }
+
+  /**
+   * Whether the cached response must never be used once it is stale.
+   */
+  public boolean isStaleUseForbidden() {
+    return (this.flags & (MUST_REVALIDATE | NO_CACHE)) != 0;
+  }
+
+  /**
+   * Whether the response may be stored by the browser cache.
+   */
+  public boolean isStorable() {
+    return ((this.flags & (NO_STORE | NO_CACHE)) == 0) && !this.varyUnsupported;
+  }
+
+  /**
+   * Whether a fresh response must not be revalidated, even on navigations
+   * that usually revalidate.
+   */
+  public boolean isRevalidationUnnecessary() {
+    return this.isImmutable() && ((this.flags & NO_CACHE) == 0);
+  }
+
+  /**
+   * Computes when a response stops being fresh.
+   *
+   * @param connection
+   *          The connection with the response headers.
+   * @param requestTime
+   *          The time when the response was requested.
+   * @return The expiration time, zero if the response must always be
+   *         revalidated, or <code>null</code> if the headers do not allow the
+   *         freshness to be determined.
+   */
+  public Long getExpiration(final URLConnection connection, final long requestTime) {
+    if ((this.flags & NO_CACHE) != 0) {
+      return 0L;
+    }
+    final long ageMillis = parseSeconds(connection.getHeaderField("Age")) * 1000;
+    if (this.maxAge != -1) {
+      return (requestTime + (this.maxAge * 1000)) - ageMillis;
+    }
+    final long date = parseDate(connection.getHeaderField("Date"));
+    final String expiresText = connection.getHeaderField("Expires");
+    if (expiresText != null) {
+      final long expires = parseDate(expiresText);
+      if (expires == -1) {
+        // Invalid dates, such as "0", mean already expired.
+        return 0L;
+      }
+      // Relative to the server clock, to tolerate clock skew.
+      final long lifetime = expires - (date == -1 ? requestTime : date);
+      return lifetime <= 0 ? 0L : (requestTime + lifetime) - ageMillis;
+    }
+    final long lastModified = parseDate(connection.getHeaderField("Last-Modified"));
+    if ((lastModified != -1) && !this.isMustRevalidate()) {
+      final long sinceModified = (date == -1 ? requestTime : date) - lastModified;
+      if (sinceModified > 0) {
+        return (requestTime + Math.min(sinceModified / HEURISTIC_DIVISOR, MAX_HEURISTIC_MILLIS)) - ageMillis;
+      }
+    }
+    return null;
+  }
+
+  private static long parseSeconds(final String text) {
+    if (text == null) {
+      return 0;
+    }
+    return Math.max(0, parseSeconds(text, skipWhitespace(text, 0)));
+  }
+
+  private static long parseDate(final String text) {
+    if (text == null) {
+      return -1;
+    }
+    try {
+      return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (final DateTimeParseException dtpe) {
+      return -1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CachePolicy[flags=" + this.flags + ",maxAge=" + this.maxAge + ",sMaxAge=" + this.sMaxAge + ",staleWhileRevalidate="
+        + this.staleWhileRevalidate + ",staleIfError=" + this.staleIfError + ",varyUnsupported=" + this.varyUnsupported + "]";
+  }
+}
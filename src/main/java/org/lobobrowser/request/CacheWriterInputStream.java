@@ -0,0 +1,339 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.cobraparser.util.Urls;
+import org.lobobrowser.settings.CacheSettings;
+import org.lobobrowser.store.CacheManager;
+import org.lobobrowser.store.PersistentCacheWriter;
+
+/**
+ * An input stream that writes the response body through to a persistent cache
+ * entry as it is read. The entry is written with the response headers first
+ * (see {@link CacheEntryFormat}),
+ * and it only replaces an existing entry when {@link #commit()} is called
+ * after EOF was reached. Only bodies up to {@link #MAX_MEMORY_COPY_SIZE} are
+ * additionally kept in memory for the transient cache, so memory use per
+ * response is bounded regardless of the body size. Text bodies are stored
+ * deflated if {@link CacheSettings#isCompressDiskCache()} is set.
+ */
+final class CacheWriterInputStream extends FilterInputStream {
+  private static final Logger logger = Logger.getLogger(CacheWriterInputStream.class.getName());
+  static final int MAX_MEMORY_COPY_SIZE = 1024 * 1024;
+
+  private final URL url;
+  private final PersistentCacheWriter writer;
+  private final OutputStream bodyOut;
+  private final Deflater deflater;
+  private final Long expiration;
+  private final long maxEntrySize;
+  private ByteArrayOutputStream memoryCopy = new ByteArrayOutputStream();
+  private long length = 0;
+  private boolean reachedEOF = false;
+  private boolean closed = false;
+  private boolean failed = false;
+  private boolean committed = false;
+
+  private CacheWriterInputStream(final InputStream in, final URL url, final PersistentCacheWriter writer, final boolean deflate,
+      final Long expiration, final long maxEntrySize) {
+    super(in);
+    this.url = url;
+    this.writer = writer;
+    if (deflate) {
+      this.deflater = new Deflater(Deflater.BEST_SPEED);
+      this.bodyOut = new DeflaterOutputStream(writer, this.deflater, 8192);
+    } else {
+      this.deflater = null;
+      this.bodyOut = writer;
+    }
+    this.expiration = expiration;
+    this.maxEntrySize = maxEntrySize;
+  }
+
+  /**
+   * Wraps the given stream so that its content is cached under the given URL.
+   * If the response does not expire in the future, or if the cache entry
+   * cannot be opened, the stream is returned unwrapped.
+   */
+  static InputStream wrap(final InputStream in, final URLConnection connection, final URL url) {
+    final long requestTime = System.currentTimeMillis();
+    final Long expiration = CachePolicy.forConnection(connection).getExpiration(connection, requestTime);
+    if ((expiration == null) || (expiration <= 0)) {
+      return in;
+    }
+    final long maxEntrySize = AccessController.doPrivileged((PrivilegedAction<Long>) () -> CacheManager.getMaxPersistentEntrySize());
+    if (connection.getContentLengthLong() > maxEntrySize) {
+      // Not admitted by the cache anyway.
+      return in;
+    }
+    final boolean deflate = isCompressible(connection.getContentType())
+        && AccessController.doPrivileged((PrivilegedAction<Boolean>) () -> CacheSettings.getInstance().isCompressDiskCache());
+    try {
+      // Reason: Caller might not have permission to access the
+      // file system. Yet, caching should be allowed.
+      final PersistentCacheWriter writer = AccessController.doPrivileged((PrivilegedExceptionAction<PersistentCacheWriter>) () -> {
+        final PersistentCacheWriter w = CacheManager.openPersistentWriter(url, false);
+        w.setExpires(expiration);
+        try {
+          writeHeaders(w, connection, requestTime, deflate);
+        } catch (final IOException ioe) {
+          w.close();
+          throw ioe;
+        }
+        return w;
+      });
+      return new CacheWriterInputStream(in, url, writer, deflate, expiration, maxEntrySize);
+    } catch (final PrivilegedActionException pae) {
+      logger.log(Level.WARNING, "wrap(): Unable to open cache file for " + url + ".", pae.getException());
+      return in;
+    }
+  }
+
+  /**
+   * Whether bodies of the given content type are worth compressing. Other
+   * types, such as images, are usually compressed already.
+   */
+  private static boolean isCompressible(final String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    final int scIdx = contentType.indexOf(';');
+    final String mimeType = (scIdx == -1 ? contentType : contentType.substring(0, scIdx)).trim().toLowerCase();
+    return mimeType.startsWith("text/") || mimeType.endsWith("+xml") || mimeType.endsWith("+json")
+        || "application/javascript".equals(mimeType) || "application/x-javascript".equals(mimeType)
+        || "application/json".equals(mimeType) || "application/xml".equals(mimeType);
+  }
+
+  private static void writeHeaders(final OutputStream out, final URLConnection connection, final long requestTime,
+      final boolean deflate) throws IOException {
+    final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    boolean hadDate = false;
+    final boolean hadContentEncoding = connection.getHeaderField("Content-Encoding") != null;
+    for (int counter = 0; true; counter++) {
+      final String headerKey = connection.getHeaderFieldKey(counter);
+      if (headerKey != null) {
+        if (!hadDate && "date".equalsIgnoreCase(headerKey)) {
+          hadDate = true;
+        }
+      }
+      final String headerValue = connection.getHeaderField(counter);
+      if (headerValue == null) {
+        break;
+      }
+      if (CacheInfo.HEADER_REQUEST_TIME.equalsIgnoreCase(headerKey)) {
+        continue;
+      }
+
+      // Fix #142: When stored in cache, decoding of input stream has been already done.  Hence, don't store the content-encoding header
+      // Text bodies can instead be recompressed in the cache if enabled in CacheSettings.
+      if ("content-encoding".equalsIgnoreCase(headerKey)) {
+        continue;
+      }
+      // The content length of an encoded response is that of the encoded body.
+      if (hadContentEncoding && "content-length".equalsIgnoreCase(headerKey)) {
+        continue;
+      }
+
+      final String headerPrefix = (headerKey == null) || (headerKey.length() == 0) ? "" : headerKey + ": ";
+      headerBlock.write((headerPrefix + headerValue + "\r\n").getBytes("ISO-8859-1"));
+    }
+    if (!hadDate) {
+      final String currentDate = Urls.PATTERN_RFC1123.format(new Date());
+      headerBlock.write(("Date: " + currentDate + "\r\n").getBytes("ISO-8859-1"));
+    }
+    headerBlock.write((CacheInfo.HEADER_REQUEST_TIME + ": " + requestTime + "\r\n").getBytes("ISO-8859-1"));
+    CacheEntryFormat.writeHeaderBlock(out, headerBlock.toByteArray(), deflate);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int b = this.in.read();
+    if (b == -1) {
+      this.reachedEOF = true;
+    } else {
+      this.record(new byte[] { (byte) b }, 0, 1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final int numRead = this.in.read(b, off, len);
+    if (numRead == -1) {
+      this.reachedEOF = true;
+    } else {
+      this.record(b, off, numRead);
+    }
+    return numRead;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    // Skipped bytes still need to be written to the cache.
+    final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+    long remaining = n;
+    while (remaining > 0) {
+      final int numRead = this.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+      if (numRead == -1) {
+        break;
+      }
+      remaining -= numRead;
+    }
+    return n - remaining;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(final int readlimit) {
+    // not supported
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    if (!this.reachedEOF) {
+      // Incomplete content must not be cached.
+      this.abort();
+    }
+    super.close();
+  }
+
+  private void record(final byte[] b, final int off, final int len) {
+    this.length += len;
+    if (!this.failed && (this.length > this.maxEntrySize)) {
+      // Too large to be admitted. Stop writing instead of discarding later.
+      this.abort();
+    }
+    if (!this.failed) {
+      try {
+        this.bodyOut.write(b, off, len);
+      } catch (final IOException ioe) {
+        logger.log(Level.WARNING, "record(): Unable to write cache file for " + this.url + ".", ioe);
+        this.abort();
+      }
+    }
+    final ByteArrayOutputStream memCopy = this.memoryCopy;
+    if (memCopy != null) {
+      if ((memCopy.size() + len) > MAX_MEMORY_COPY_SIZE) {
+        this.memoryCopy = null;
+      } else {
+        memCopy.write(b, off, len);
+      }
+    }
+  }
+
+  private void abort() {
+    this.failed = true;
+    this.memoryCopy = null;
+    this.writer.close();
+    if (this.deflater != null) {
+      this.deflater.end();
+    }
+  }
+
+  /**
+   * Discards the persistent cache entry, unless it was committed. This
+   * requires privileges to access the file system.
+   */
+  void discard() {
+    if (!this.committed && !this.failed) {
+      this.abort();
+    }
+  }
+
+  boolean isClosed() {
+    return this.closed;
+  }
+
+  boolean hasReachedEOF() {
+    return this.reachedEOF;
+  }
+
+  void consumeToEOF() throws IOException {
+    final byte[] buffer = new byte[8192];
+    while (this.read(buffer, 0, buffer.length) != -1) {
+      // just consume
+    }
+  }
+
+  /**
+   * Moves the persistent cache entry into place. This requires privileges to
+   * access the file system.
+   *
+   * @return Whether the entry was stored.
+   */
+  boolean commit() throws IOException {
+    if (!this.reachedEOF || this.failed) {
+      this.abort();
+      return false;
+    }
+    if (this.bodyOut instanceof DeflaterOutputStream) {
+      // Do not close: that would discard the entry.
+      ((DeflaterOutputStream) this.bodyOut).finish();
+      this.deflater.end();
+    }
+    this.committed = true;
+    return this.writer.commit();
+  }
+
+  /**
+   * Gets the body read so far, or <code>null</code> if it was too large to be
+   * kept in memory or caching failed.
+   */
+  byte[] getMemoryCopy() {
+    final ByteArrayOutputStream memCopy = this.memoryCopy;
+    return memCopy == null ? null : memCopy.toByteArray();
+  }
+
+  long getLength() {
+    return this.length;
+  }
+
+  Long getExpiration() {
+    return this.expiration;
+  }
+}
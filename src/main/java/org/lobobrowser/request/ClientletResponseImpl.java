@@ -27,9 +27,7 @@ import org.cobraparser.clientlet.ClientletResponse;
 import org.cobraparser.ua.ProgressType;
 import org.cobraparser.ua.RequestType;
 import org.cobraparser.util.*;
-import org.cobraparser.util.io.BufferExceededException;
 import org.cobraparser.util.io.IORoutines;
-import org.cobraparser.util.io.RecordedInputStream;
 import org.eclipse.jdt.annotation.NonNull;
 
 import java.io.BufferedInputStream;
@@ -47,7 +45,6 @@ import java.util.logging.Logger;
  */
 public class ClientletResponseImpl implements ClientletResponse {
   private static final Logger logger = Logger.getLogger(ClientletResponseImpl.class.getName());
-  private static final int MAX_CACHE_BUFFER_SIZE = 10 * 1024 * 1024;
 
   private final URLConnection connection;
   private final RequestHandler requestHandler;
@@ -57,13 +54,26 @@ public class ClientletResponseImpl implements ClientletResponse {
   private final RequestType requestType;
   // Security note: This URL must be final.
   private final @NonNull URL responseURL;
+  private final InputStream bodyStream;
 
   private InputStream inputStream;
 
   public ClientletResponseImpl(final RequestHandler rhandler, final URLConnection connection, final @NonNull URL responseURL,
                                final boolean fromCache, final CacheInfo cacheInfo,
                                final boolean isCacheable, final RequestType requestType) {
+    this(rhandler, connection, responseURL, fromCache, cacheInfo, isCacheable, requestType, null);
+  }
+
+  /**
+   * @param bodyStream
+   *          The decoded response body, if it is not to be read from the
+   *          connection; see {@link SharedResponseBody}.
+   */
+  ClientletResponseImpl(final RequestHandler rhandler, final URLConnection connection, final @NonNull URL responseURL,
+                        final boolean fromCache, final CacheInfo cacheInfo,
+                        final boolean isCacheable, final RequestType requestType, final InputStream bodyStream) {
     this.connection = connection;
+    this.bodyStream = bodyStream;
     this.responseURL = responseURL;
     this.requestHandler = rhandler;
     this.isCacheable = isCacheable;
@@ -77,6 +87,7 @@ public class ClientletResponseImpl implements ClientletResponse {
                                final String requestMethod, final RequestType requestType) throws IOException {
     this.connection = url.openConnection();
     this.responseURL = url;
+    this.bodyStream = null;
     this.requestHandler = rhandler;
     this.isCacheable = isCacheable;
     this.cacheInfo = cacheInfo;
@@ -183,7 +194,9 @@ public class ClientletResponseImpl implements ClientletResponse {
     if (this.inputStream == null) {
       final URLConnection connection = this.connection;
       InputStream in;
-      if (connection instanceof HttpURLConnection) {
+      if (this.bodyStream != null) {
+        in = this.bodyStream;
+      } else if (connection instanceof HttpURLConnection) {
         in = IORoutines.getDecodedErrorStream(((HttpURLConnection) connection));
         if (in == null) {
           in = IORoutines.getDecodedStream(connection);
@@ -212,7 +225,8 @@ public class ClientletResponseImpl implements ClientletResponse {
         bis = new BufferedInputStream(in, bufferSize);
       }
       if (this.isCacheable) {
-        this.inputStream = new RecordedInputStream(bis, MAX_CACHE_BUFFER_SIZE);
+        // Note: The response URL is the connection URL for cacheable (HTTP) responses.
+        this.inputStream = CacheWriterInputStream.wrap(bis, connection, responseURL);
       } else {
         this.inputStream = bis;
       }
@@ -250,30 +264,23 @@ public class ClientletResponseImpl implements ClientletResponse {
   public void ensureReachedEOF() throws IOException {
     // Don't get cached inputStream - could be null here.
     final InputStream in = this.getInputStream();
-    if (in instanceof RecordedInputStream) {
-      final RecordedInputStream rin = (RecordedInputStream) in;
-      if (!rin.hasReachedEOF()) {
-        rin.consumeToEOF();
+    if (in instanceof CacheWriterInputStream) {
+      final CacheWriterInputStream cin = (CacheWriterInputStream) in;
+      if (!cin.hasReachedEOF() && !cin.isClosed()) {
+        cin.consumeToEOF();
       }
     }
   }
 
-  public byte[] getStoredContent() {
+  /**
+   * Gets the stream that writes the response through to the cache, or
+   * <code>null</code> if the response is not being cached.
+   */
+  CacheWriterInputStream getCacheWriterStream() {
     // Should call ensureReachedEOF() which will also ensure
     // inputStream is not null.
     final InputStream in = this.inputStream;
-    if (in instanceof RecordedInputStream) {
-      final RecordedInputStream rin = (RecordedInputStream) in;
-      if (rin.hasReachedEOF()) {
-        try {
-          return rin.getBytesRead();
-        } catch (final BufferExceededException bee) {
-          logger.warning("getStoredContent(): Recorded stream buffer size exceeded.");
-          return null;
-        }
-      }
-    }
-    return null;
+    return in instanceof CacheWriterInputStream ? (CacheWriterInputStream) in : null;
   }
 
   private String getDefaultCharset() {
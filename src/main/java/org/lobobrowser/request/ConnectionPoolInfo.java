@@ -0,0 +1,69 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+/**
+ * A snapshot of HTTP connection pool counters.
+ *
+ * @see RequestEngine#getConnectionPoolInfo()
+ */
+public class ConnectionPoolInfo {
+  public final int numConnections;
+  public final int numIdleConnections;
+  public final int numMultiplexedConnections;
+  public final long numConnectionsOpened;
+  public final long numRequests;
+  public final long numReusedRequests;
+  public final long numMultiplexedRequests;
+  public final long numHandshakes;
+  public final long averageHandshakeMillis;
+  public final long maxHandshakeMillis;
+
+  public ConnectionPoolInfo(final int numConnections, final int numIdleConnections, final int numMultiplexedConnections,
+      final long numConnectionsOpened, final long numRequests, final long numReusedRequests, final long numMultiplexedRequests,
+      final long numHandshakes, final long averageHandshakeMillis, final long maxHandshakeMillis) {
+    this.numConnections = numConnections;
+    this.numIdleConnections = numIdleConnections;
+    this.numMultiplexedConnections = numMultiplexedConnections;
+    this.numConnectionsOpened = numConnectionsOpened;
+    this.numRequests = numRequests;
+    this.numReusedRequests = numReusedRequests;
+    this.numMultiplexedRequests = numMultiplexedRequests;
+    this.numHandshakes = numHandshakes;
+    this.averageHandshakeMillis = averageHandshakeMillis;
+    this.maxHandshakeMillis = maxHandshakeMillis;
+  }
+
+  /**
+   * Gets the fraction of network requests that were sent over a connection
+   * which had already been used.
+   */
+  public double getReuseRatio() {
+    return this.numRequests == 0 ? 0.0 : (double) this.numReusedRequests / this.numRequests;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionPoolInfo[numConnections=" + this.numConnections + ",numIdleConnections=" + this.numIdleConnections
+        + ",numMultiplexedConnections=" + this.numMultiplexedConnections + ",numRequests=" + this.numRequests + ",reuseRatio="
+        + this.getReuseRatio() + ",averageHandshakeMillis=" + this.averageHandshakeMillis + "]";
+  }
+}
@@ -26,32 +26,57 @@ package org.lobobrowser.request;
 import org.lobobrowser.LoboBrowser;
 import org.lobobrowser.db.tables.Cookies;
 import org.lobobrowser.db.tables.records.CookiesRecord;
+import org.lobobrowser.security.StoreHostPermission;
 import org.cobraparser.validation.DomainValidation;
-import org.lobobrowser.store.RestrictedStore;
 import org.lobobrowser.store.StorageManager;
 import org.javatuples.Pair;
+import org.javatuples.Triplet;
 import org.jooq.DSLContext;
+import org.jooq.Query;
 import org.jooq.Result;
+import org.jooq.impl.DSL;
 
-import java.io.IOException;
 import java.net.URI;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Cookies are kept in memory, indexed by domain, and are loaded from the
+ * database only once. Changes to persistent cookies are written back by a
+ * background thread in batched transactions, so looking up cookies never
+ * waits for the database.
+ *
  * @author J. H. S.
  */
-public class CookieStore {
-  private static final String COOKIE_PATH_PREFIX = ".W$Cookies/";
-  private static final String COOKIE_PATH_PATTERN = "\\.W\\$Cookies/.*";
+public class CookieStore implements Runnable {
+  private static final int FLUSH_DELAY = 2000;
   private static final CookieStore instance = new CookieStore();
 
   private static final Logger logger = Logger.getLogger(CookieStore.class.getName());
 
-  private final Map<String, Map<Pair<String, String>, CookieValue>> transientMapByHost = new HashMap<>();
+  private final Map<String, Map<Pair<String, String>, CookieValue>> cookiesByDomain = new ConcurrentHashMap<>();
+
+  /**
+   * Pending database changes keyed by domain, cookie name and path. An empty
+   * value means the row should be deleted if it still has that path. Guarded
+   * by itself.
+   */
+  private final Map<Triplet<String, String, String>, Optional<CookieValue>> pendingWrites = new LinkedHashMap<>();
+  private volatile boolean loaded = false;
 
   private CookieStore() {
+    // Reason: The thread needs to access the database regardless of who
+    // first uses the cookie store.
+    AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+      final Thread t = new Thread(this, "CookieStore");
+      t.setDaemon(true);
+      t.start();
+      return null;
+    });
   }
 
   public static CookieStore getInstance() {
@@ -95,22 +120,23 @@ public class CookieStore {
     final Optional<Long> expiresLongOpt = expiresOpt.map(e -> e.getTime());
     final CookieValue cookieValue = new CookieValue(cookieDetails.name, cookieDetails.value, cookieDetails.getEffectivePath(),
         expiresLongOpt, cookieDetails.secure, cookieDetails.httpOnly, getMonotonicTime());
-    synchronized (this) {
-      // Always save a transient cookie. It acts as a cache.
-      Map<Pair<String, String>, CookieValue> hostMap = this.transientMapByHost.get(domainTL);
-      if (hostMap == null) {
-        hostMap = new HashMap<>(2);
-        this.transientMapByHost.put(domainTL, hostMap);
+    this.ensureLoaded();
+    final Map<Pair<String, String>, CookieValue> domainMap = this.cookiesByDomain.computeIfAbsent(domainTL,
+        k -> new ConcurrentHashMap<>(2));
+    final Pair<String, String> cookieKey = new Pair<>(name, cookieValue.getPath());
+    if (cookieValue.isExpired()) {
+      // Setting an expired cookie is how servers delete cookies.
+      domainMap.remove(cookieKey);
+      this.scheduleWrite(domainTL, name, cookieValue.getPath(), Optional.empty());
+    } else {
+      final CookieValue replacedValue = domainMap.put(cookieKey, cookieValue);
+      if (expiresLongOpt.isPresent()) {
+        this.scheduleWrite(domainTL, name, cookieValue.getPath(), Optional.of(cookieValue));
+      } else if ((replacedValue != null) && replacedValue.getExpires().isPresent()) {
+        // Session cookies are not persisted, but they still replace a
+        // persistent cookie of the same name and path.
+        this.scheduleWrite(domainTL, name, cookieValue.getPath(), Optional.empty());
       }
-      hostMap.put(new Pair<>(cookieDetails.name, cookieDetails.getEffectivePath()), cookieValue);
-    }
-    if (expiresLongOpt.isPresent()) {
-      final DSLContext userDB = StorageManager.getInstance().getDB();
-      userDB
-          .mergeInto(Cookies.COOKIES)
-          .values(domainTL, name, cookieValue.getValue(), cookieValue.getPath(), true, true, cookieValue.getCreationTime(),
-              cookieValue.getExpires().orElse(null))
-          .execute();
     }
   }
 
@@ -120,7 +146,7 @@ public class CookieStore {
 
   private long previousTimeNanos = System.currentTimeMillis() * MILLION_LIKE;
 
-  private long getMonotonicTime() {
+  private synchronized long getMonotonicTime() {
     final long previousTimeMillis = previousTimeNanos / MILLION_LIKE;
     final long currentMillis = System.currentTimeMillis();
     if (previousTimeMillis == currentMillis) {
@@ -133,17 +159,6 @@ public class CookieStore {
     }
   }
 
-  private static String getPathFromCookieName(final String cookieName) {
-    return COOKIE_PATH_PREFIX + cookieName;
-  }
-
-  private static String getCookieNameFromPath(final String path) {
-    if (!path.startsWith(COOKIE_PATH_PREFIX)) {
-      throw new IllegalArgumentException("Invalid path: " + path);
-    }
-    return path.substring(COOKIE_PATH_PREFIX.length());
-  }
-
   /* Path-match algorithm as per section 5.4.1 of RFC 6264. */
   private static boolean pathMatch(final String cookiePath, final String requestPath) {
     if (cookiePath.equals(requestPath)) {
@@ -166,96 +181,45 @@ public class CookieStore {
     }
     final boolean secureProtocol = "https".equalsIgnoreCase(protocol);
     final boolean liflag = logger.isLoggable(Level.INFO);
-    // final Set<String> transientCookieNames = new HashSet<>();
-    final Set<Pair<String, String>> transientCookieNames = new HashSet<>();
     final List<CookieValue> selectedCookies = new LinkedList<>();
-    synchronized (this) {
-      final Map<Pair<String, String>, CookieValue> hostMap = this.transientMapByHost.get(hostNameTL);
-      if (hostMap != null) {
-        final Iterator<Map.Entry<Pair<String, String>, CookieValue>> i = hostMap.entrySet().iterator();
-        while (i.hasNext()) {
-          final Map.Entry<Pair<String, String>, CookieValue> entry = i.next();
-          final CookieValue cookieValue = entry.getValue();
-          if (cookieValue.isExpired()) {
-            if (liflag) {
-              logger.info("getCookiesStrict(): Cookie " + entry.getKey() + " from " + hostNameTL + " expired: " + cookieValue.getExpires());
+    final Map<Pair<String, String>, CookieValue> domainMap = this.cookiesByDomain.get(hostNameTL);
+    if (domainMap != null) {
+      final Iterator<Map.Entry<Pair<String, String>, CookieValue>> i = domainMap.entrySet().iterator();
+      while (i.hasNext()) {
+        final Map.Entry<Pair<String, String>, CookieValue> entry = i.next();
+        final CookieValue cookieValue = entry.getValue();
+        if (cookieValue.isExpired()) {
+          if (liflag) {
+            logger.info("getCookiesStrict(): Cookie " + entry.getKey() + " from " + hostNameTL + " expired: " + cookieValue.getExpires());
+          }
+          if (domainMap.remove(entry.getKey(), cookieValue) && cookieValue.getExpires().isPresent()) {
+            this.scheduleWrite(hostNameTL, cookieValue.getName(), cookieValue.getPath(), Optional.empty());
+          }
+        } else {
+          if (pathMatch(cookieValue.getPath(), path)) {
+            if (cookieValue.checkSecure(secureProtocol)) {
+              selectedCookies.add(cookieValue);
             }
           } else {
-            if (pathMatch(cookieValue.getPath(), path)) {
-              if (cookieValue.checkSecure(secureProtocol)) {
-                final Pair<String, String> cookieNameAndPath = entry.getKey();
-                // transientCookieNames.add(new Pair<>(cookieName, cookieValue.getPath()));
-                transientCookieNames.add(cookieNameAndPath);
-                selectedCookies.add(cookieValue);
-              }
-            } else {
-              if (liflag) {
-                logger.info("getCookiesStrict(): Skipping cookie " + cookieValue + " since it does not match path " + path);
-              }
-            }
-          }
-        }
-      }
-    }
-    try {
-      final RestrictedStore store = StorageManager.getInstance().getRestrictedStore(hostNameTL, false);
-      if (store != null) {
-        final DSLContext userDB = StorageManager.getInstance().getDB();
-        final Result<CookiesRecord> cookieResult = userDB.selectFrom(Cookies.COOKIES)
-            .where(Cookies.COOKIES.HOSTNAME.eq(hostNameTL))
-            .fetch();
-
-        if (cookieResult.isNotEmpty()) {
-          final CookiesRecord cookiesRecord = cookieResult.get(0);
-          final String cookieName = cookiesRecord.getName();
-          final CookieValue cookieValue = new CookieValue(
-              cookiesRecord.getName(),
-              cookiesRecord.getValue(),
-              cookiesRecord.getPath(),
-              Optional.ofNullable(cookiesRecord.getExpirationtime()),
-              cookiesRecord.getSecure(), cookiesRecord.getHttponly(),
-              cookiesRecord.getCreationtime()
-              );
-          if (!transientCookieNames.contains(new Pair<>(cookieName, cookieValue.getPath()))) {
-            if (cookieValue.isExpired()) {
-              if (logger.isLoggable(Level.INFO)) {
-                logger.info("getCookiesStrict(): Cookie " + cookieName + " from " + hostName + " expired: " + cookieValue.getExpires());
-              }
-              cookiesRecord.delete();
-            } else {
-              if (pathMatch(cookieValue.getPath(), path)) {
-                // Found one that is not in main memory. Cache it.
-                synchronized (this) {
-                  Map<Pair<String, String>, CookieValue> hostMap = this.transientMapByHost.get(hostName);
-                  if (hostMap == null) {
-                    hostMap = new HashMap<>();
-                    this.transientMapByHost.put(hostName, hostMap);
-                  }
-                  hostMap.put(new Pair<>(cookieName, cookieValue.getPath()), cookieValue);
-                }
-                if (cookieValue.checkSecure(secureProtocol)) {
-                  // Now add cookie to the collection.
-                  selectedCookies.add(cookieValue);
-                }
-              } else {
-                if (logger.isLoggable(Level.INFO)) {
-                  logger.info("getCookiesStrict(): Skipping cookie " + cookieValue + " since it does not match path " + path);
-                }
-              }
+            if (liflag) {
+              logger.info("getCookiesStrict(): Skipping cookie " + cookieValue + " since it does not match path " + path);
             }
           }
         }
       }
-    } catch (final IOException ioe) {
-      logger.log(Level.SEVERE, "getCookiesStrict()", ioe);
     }
-
     return selectedCookies;
   }
 
   public Collection<Cookie> getCookies(final String protocol, final String hostName, final String path) {
-    // Security provided by RestrictedStore.
     final Collection<String> possibleDomains = DomainValidation.getPossibleDomains(hostName);
+    final SecurityManager sm = System.getSecurityManager();
+    if (sm != null) {
+      for (final String domain : possibleDomains) {
+        sm.checkPermission(StoreHostPermission.forHost(domain.toLowerCase()));
+      }
+    }
+    this.ensureLoaded();
     final List<CookieValue> allCookies = new LinkedList<>();
     for (final String domain : possibleDomains) {
       allCookies.addAll(this.getCookiesStrict(protocol, domain, path));
@@ -270,4 +234,152 @@ public class CookieStore {
     }
     return cookies;
   }
+
+  private void ensureLoaded() {
+    if (!this.loaded) {
+      synchronized (this.cookiesByDomain) {
+        if (!this.loaded) {
+          // Reason: Caller may not have privileges to access the database.
+          AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+            this.loadCookies();
+            return null;
+          });
+          this.loaded = true;
+        }
+      }
+    }
+  }
+
+  private void loadCookies() {
+    final long time1 = System.currentTimeMillis();
+    int count = 0;
+    try {
+      final DSLContext userDB = StorageManager.getInstance().getDB();
+      final Result<CookiesRecord> cookieResult = userDB.selectFrom(Cookies.COOKIES).fetch();
+      for (final CookiesRecord cookiesRecord : cookieResult) {
+        final String hostNameTL = cookiesRecord.getHostname();
+        final CookieValue cookieValue = new CookieValue(
+            cookiesRecord.getName(),
+            cookiesRecord.getValue(),
+            cookiesRecord.getPath(),
+            Optional.ofNullable(cookiesRecord.getExpirationtime()),
+            Boolean.TRUE.equals(cookiesRecord.getSecure()), Boolean.TRUE.equals(cookiesRecord.getHttponly()),
+            cookiesRecord.getCreationtime() == null ? 0 : cookiesRecord.getCreationtime()
+            );
+        if (cookieValue.isExpired()) {
+          this.scheduleWrite(hostNameTL, cookieValue.getName(), cookieValue.getPath(), Optional.empty());
+        } else {
+          this.cookiesByDomain.computeIfAbsent(hostNameTL, k -> new ConcurrentHashMap<>(2))
+              .putIfAbsent(new Pair<>(cookieValue.getName(), cookieValue.getPath()), cookieValue);
+          count++;
+        }
+      }
+    } catch (final RuntimeException err) {
+      logger.log(Level.SEVERE, "loadCookies(): Unable to load cookies.", err);
+    }
+    if (logger.isLoggable(Level.INFO)) {
+      logger.info("loadCookies(): Loaded " + count + " cookies in " + (System.currentTimeMillis() - time1) + " ms.");
+    }
+  }
+
+  private void scheduleWrite(final String domainTL, final String name, final String path, final Optional<CookieValue> cookieValue) {
+    final Map<Triplet<String, String, String>, Optional<CookieValue>> pendingWrites = this.pendingWrites;
+    synchronized (pendingWrites) {
+      // Only the latest change of a cookie needs to be written.
+      final Triplet<String, String, String> key = new Triplet<>(domainTL, name, path);
+      pendingWrites.remove(key);
+      pendingWrites.put(key, cookieValue);
+      pendingWrites.notify();
+    }
+  }
+
+  public void run() {
+    this.ensureLoaded();
+    final Map<Triplet<String, String, String>, Optional<CookieValue>> pendingWrites = this.pendingWrites;
+    for (;;) {
+      try {
+        synchronized (pendingWrites) {
+          while (pendingWrites.isEmpty()) {
+            pendingWrites.wait();
+          }
+        }
+        // Let more changes accumulate so they are written together.
+        Thread.sleep(FLUSH_DELAY);
+        this.flush();
+      } catch (final InterruptedException ie) {
+        // ignore
+      } catch (final Exception err) {
+        logger.log(Level.SEVERE, "run()", err);
+      }
+    }
+  }
+
+  /**
+   * Writes pending changes of persistent cookies to the database. Should be
+   * called before the database is closed.
+   */
+  public void flush() {
+    final Map<Triplet<String, String, String>, Optional<CookieValue>> batch;
+    synchronized (this.pendingWrites) {
+      if (this.pendingWrites.isEmpty()) {
+        return;
+      }
+      batch = new LinkedHashMap<>(this.pendingWrites);
+      this.pendingWrites.clear();
+    }
+    // Reason: Caller may not have privileges to access the database.
+    AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+      try {
+        final DSLContext userDB = StorageManager.getInstance().getDB();
+        userDB.transaction(configuration -> {
+          final DSLContext tx = DSL.using(configuration);
+          final List<Query> queries = new ArrayList<>(batch.size());
+          for (final Map.Entry<Triplet<String, String, String>, Optional<CookieValue>> entry : batch.entrySet()) {
+            final String domainTL = entry.getKey().getValue0();
+            final String name = entry.getKey().getValue1();
+            final String path = entry.getKey().getValue2();
+            final Optional<CookieValue> cookieValueOpt = entry.getValue();
+            if (cookieValueOpt.isPresent()) {
+              final CookieValue cookieValue = cookieValueOpt.get();
+              queries.add(tx
+                  .mergeInto(Cookies.COOKIES)
+                  .values(domainTL, name, cookieValue.getValue(), cookieValue.getPath(), cookieValue.isSecure(),
+                      cookieValue.isHttpOnly(), cookieValue.getCreationTime(), cookieValue.getExpires().orElse(null)));
+            } else {
+              queries.add(tx.deleteFrom(Cookies.COOKIES)
+                  .where(Cookies.COOKIES.HOSTNAME.eq(domainTL))
+                  .and(Cookies.COOKIES.NAME.eq(name))
+                  .and(Cookies.COOKIES.PATH.eq(path)));
+            }
+          }
+          tx.batch(queries).execute();
+        });
+        if (logger.isLoggable(Level.INFO)) {
+          logger.info("flush(): Wrote " + batch.size() + " cookie changes.");
+        }
+      } catch (final RuntimeException err) {
+        logger.log(Level.SEVERE, "flush(): Unable to write cookies. Will retry.", err);
+        this.requeue(batch);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Puts back changes that could not be written, unless a cookie changed
+   * again in the meantime.
+   */
+  private void requeue(final Map<Triplet<String, String, String>, Optional<CookieValue>> batch) {
+    final Map<Triplet<String, String, String>, Optional<CookieValue>> pendingWrites = this.pendingWrites;
+    synchronized (pendingWrites) {
+      final Map<Triplet<String, String, String>, Optional<CookieValue>> newerWrites = new LinkedHashMap<>(pendingWrites);
+      pendingWrites.clear();
+      pendingWrites.putAll(batch);
+      newerWrites.forEach((key, cookieValue) -> {
+        pendingWrites.remove(key);
+        pendingWrites.put(key, cookieValue);
+      });
+      pendingWrites.notify();
+    }
+  }
 }
@@ -100,6 +100,14 @@ public class CookieValue implements Comparable<CookieValue> {
     }
   }
 
+  public boolean isSecure() {
+    return secure;
+  }
+
+  public boolean isHttpOnly() {
+    return httpOnly;
+  }
+
   public long getCreationTime() {
     return creationTime;
   }
@@ -24,31 +24,42 @@
 package org.lobobrowser.request;
 
 import org.cobraparser.util.NameValuePair;
-import org.cobraparser.util.io.IORoutines;
+import org.lobobrowser.utils.ByteBufferInputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
+ * A connection to a persistent cache entry. The entry is usually a
+ * memory-mapped file; the body is served straight from the buffer, and
+ * headers are only parsed when first requested.
+ *
+ * @see CacheEntryFormat
  * @author J. H. S.
  */
 public class FileWithHeadersURLConnection extends HttpURLConnection {
-  private final byte[] content;
+  private final ByteBuffer content;
   private InputStream inputStream;
-  private final Map<String, List<String>> headersMap = new HashMap<>();
-  private final List<NameValuePair> headersList = new ArrayList<>();
+  private Map<String, List<String>> headersMap;
+  private List<NameValuePair> headersList;
+  private int bodyOffset = -1;
 
   /**
    * @param url
+   * @param content
+   *          The cache entry, including headers.
    */
-  public FileWithHeadersURLConnection(final URL url, final byte[] content) {
+  public FileWithHeadersURLConnection(final URL url, final ByteBuffer content) {
     super(url);
     this.content = content;
   }
@@ -75,10 +86,16 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
   @Override
   public void connect() throws IOException {
     if (!this.connected) {
-      final InputStream in = new ByteArrayInputStream(this.content);
       try {
-        this.inputStream = in;
-        readHeaders(in);
+        final ByteBuffer content = this.content;
+        if (CacheEntryFormat.hasPreamble(content)) {
+          this.bodyOffset = CacheEntryFormat.PREAMBLE_SIZE + CacheEntryFormat.getHeaderBlockLength(content);
+        } else {
+          // Older entries have no preamble. The headers need to be parsed to
+          // find the body.
+          this.readHeaders();
+        }
+        this.inputStream = this.openBodyStream();
       } finally {
         // Do not close inputStream. Needed later.
         this.connected = true;
@@ -87,11 +104,77 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
     }
   }
 
-  private void readHeaders(final InputStream in) throws IOException {
-    String line;
-    final List<NameValuePair> headersList = this.headersList;
-    final Map<String, List<String>> headersMap = this.headersMap;
-    while ((line = IORoutines.readLine(in)) != null) {
+  /**
+   * Gets a read-only view of the stored body, which is deflated if
+   * {@link #isBodyDeflated()}. This method should only be called after
+   * connecting.
+   */
+  ByteBuffer getBody() {
+    final ByteBuffer body = this.content.duplicate();
+    body.position(this.bodyOffset);
+    return body.slice().asReadOnlyBuffer();
+  }
+
+  boolean isBodyDeflated() {
+    return CacheEntryFormat.isBodyDeflated(this.content);
+  }
+
+  /**
+   * Opens a new stream over the body, inflating it as it is read if needed.
+   * This method should only be called after connecting.
+   */
+  InputStream openBodyStream() {
+    final InputStream in = new ByteBufferInputStream(this.getBody());
+    if (!this.isBodyDeflated()) {
+      return in;
+    }
+    final Inflater inflater = new Inflater();
+    return new InflaterInputStream(in, inflater, 8192) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        // Not ended by InflaterInputStream when passed in.
+        inflater.end();
+      }
+    };
+  }
+
+  /**
+   * Gets the headers in the order they were stored.
+   */
+  List<NameValuePair> getHeadersList() {
+    return this.readHeaders();
+  }
+
+  private List<NameValuePair> readHeaders() {
+    final List<NameValuePair> existingList = this.headersList;
+    if (existingList != null) {
+      return existingList;
+    }
+    final List<NameValuePair> headersList = new ArrayList<>();
+    final Map<String, List<String>> headersMap = new HashMap<>();
+    final ByteBuffer content = this.content;
+    int position;
+    int end;
+    final boolean hasPreamble = CacheEntryFormat.hasPreamble(content);
+    if (hasPreamble) {
+      position = CacheEntryFormat.PREAMBLE_SIZE;
+      end = position + CacheEntryFormat.getHeaderBlockLength(content);
+    } else {
+      position = 0;
+      end = content.limit();
+    }
+    while (position < end) {
+      int lineEnd = position;
+      while ((lineEnd < end) && (content.get(lineEnd) != '\n')) {
+        lineEnd++;
+      }
+      int textEnd = lineEnd;
+      if ((textEnd > position) && (content.get(textEnd - 1) == '\r')) {
+        textEnd--;
+      }
+      final String line = decode(content, position, textEnd);
+      position = Math.min(lineEnd + 1, end);
       if ("".equals(line)) {
         break;
       }
@@ -106,6 +189,20 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
       hvalues.add(value);
       headersList.add(new NameValuePair(name, value));
     }
+    if (!hasPreamble) {
+      this.bodyOffset = position;
+    }
+    this.headersMap = headersMap;
+    this.headersList = headersList;
+    return headersList;
+  }
+
+  private static String decode(final ByteBuffer content, final int start, final int end) {
+    final byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = content.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.ISO_8859_1);
   }
 
   /*
@@ -119,6 +216,31 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
     return this.inputStream;
   }
 
+  @Override
+  public int getContentLength() {
+    final long length = this.getContentLengthLong();
+    return length > Integer.MAX_VALUE ? -1 : (int) length;
+  }
+
+  @Override
+  public long getContentLengthLong() {
+    try {
+      this.connect();
+    } catch (final IOException ioe) {
+      return -1;
+    }
+    if (this.isBodyDeflated()) {
+      final String lengthText = this.getHeaderField("content-length");
+      try {
+        return lengthText == null ? -1 : Long.parseLong(lengthText.trim());
+      } catch (final NumberFormatException nfe) {
+        return -1;
+      }
+    }
+    // The body stored is always complete and decoded.
+    return this.content.limit() - this.bodyOffset;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -128,7 +250,7 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
   public String getHeaderField(final int n) {
     try {
       this.connect();
-      final NameValuePair pair = this.headersList.get(n);
+      final NameValuePair pair = this.readHeaders().get(n);
       return pair.value;
     } catch (final IndexOutOfBoundsException iob) {
       return null;
@@ -149,6 +271,7 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
     } catch (final IOException ioe) {
       return null;
     }
+    this.readHeaders();
     final List<String> hvalues = this.headersMap.get(name.toLowerCase());
     if ((hvalues == null) || (hvalues.size() == 0)) {
       return null;
@@ -165,7 +288,7 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
   public String getHeaderFieldKey(final int n) {
     try {
       this.connect();
-      final NameValuePair pair = this.headersList.get(n);
+      final NameValuePair pair = this.readHeaders().get(n);
       return pair.name;
     } catch (final IndexOutOfBoundsException iob) {
       return null;
@@ -186,6 +309,7 @@ public class FileWithHeadersURLConnection extends HttpURLConnection {
     } catch (final IOException ioe) {
       return null;
     }
+    this.readHeaders();
     return this.headersMap;
   }
 
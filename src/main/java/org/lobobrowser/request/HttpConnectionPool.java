@@ -0,0 +1,225 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.lobobrowser.settings.ConnectionSettings;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+
+/**
+ * Owns the pool of HTTP connections shared by all requests made through the
+ * OkHttp URL factory. Connections are kept alive according to
+ * {@link ConnectionSettings}, HTTP/2 connections are shared by concurrent
+ * requests to the same origin, and the pool records how often connections are
+ * reused and how long TLS handshakes take.
+ * <p>
+ * The number of connections opened to a single host is bounded by the
+ * per-host limit of the request scheduler.
+ *
+ * @see RequestEngine#getConnectionPoolInfo()
+ */
+public final class HttpConnectionPool {
+  private static final HttpConnectionPool instance = new HttpConnectionPool();
+
+  private final Map<Connection, Boolean> seenConnections = Collections.synchronizedMap(new WeakHashMap<>());
+  private final LongAdder numRequests = new LongAdder();
+  private final LongAdder numReusedRequests = new LongAdder();
+  private final LongAdder numMultiplexedRequests = new LongAdder();
+  private final LongAdder numConnectionsOpened = new LongAdder();
+  private final LongAdder numHandshakes = new LongAdder();
+  private final LongAdder totalHandshakeNanos = new LongAdder();
+  private final AtomicLong maxHandshakeNanos = new AtomicLong();
+  private volatile OkHttpClient client;
+  private volatile ConnectionPool pool;
+  private int maxIdleConnections;
+  private int keepAliveSeconds;
+
+  private HttpConnectionPool() {
+  }
+
+  public static HttpConnectionPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Installs the pool, the metrics interceptor and the TLS socket factory on
+   * the client. Invoked once while protocols are initialized.
+   */
+  public void configure(final OkHttpClient client, final SSLSocketFactory sslSocketFactory) {
+    this.client = client;
+    client.setSslSocketFactory(new TimedSSLSocketFactory(sslSocketFactory));
+    client.networkInterceptors().add(new MetricsInterceptor());
+    this.applySettings();
+  }
+
+  /**
+   * Replaces the connection pool with one that uses the current
+   * {@link ConnectionSettings}, unless the pool settings are unchanged.
+   * Connections of the old pool are closed once idle. Invoked whenever the
+   * settings are saved.
+   */
+  public synchronized void applySettings() {
+    final OkHttpClient client = this.client;
+    if (client == null) {
+      return;
+    }
+    final ConnectionSettings settings = ConnectionSettings.getInstance();
+    final int maxIdleConnections = settings.getMaxIdleConnections();
+    final int keepAliveSeconds = settings.getKeepAliveSeconds();
+    final ConnectionPool oldPool = this.pool;
+    if ((oldPool != null) && (maxIdleConnections == this.maxIdleConnections) && (keepAliveSeconds == this.keepAliveSeconds)) {
+      return;
+    }
+    final ConnectionPool newPool = new ConnectionPool(maxIdleConnections, keepAliveSeconds * 1000L);
+    client.setConnectionPool(newPool);
+    this.pool = newPool;
+    this.maxIdleConnections = maxIdleConnections;
+    this.keepAliveSeconds = keepAliveSeconds;
+    if (oldPool != null) {
+      oldPool.evictAll();
+    }
+  }
+
+  /**
+   * Closes all idle connections.
+   */
+  public void evictAll() {
+    final ConnectionPool pool = this.pool;
+    if (pool != null) {
+      pool.evictAll();
+    }
+  }
+
+  public ConnectionPoolInfo getInfo() {
+    final ConnectionPool pool = this.pool;
+    final int numIdle = pool == null ? 0 : pool.getIdleConnectionCount();
+    final int numConnections = pool == null ? 0 : pool.getConnectionCount();
+    final int numMultiplexed = pool == null ? 0 : pool.getMultiplexedConnectionCount();
+    final long numHandshakes = this.numHandshakes.sum();
+    final long averageHandshakeMillis = numHandshakes == 0 ? 0 : (this.totalHandshakeNanos.sum() / numHandshakes) / 1000000;
+    return new ConnectionPoolInfo(numConnections, numIdle, numMultiplexed, this.numConnectionsOpened.sum(), this.numRequests.sum(),
+        this.numReusedRequests.sum(), this.numMultiplexedRequests.sum(), numHandshakes, averageHandshakeMillis,
+        this.maxHandshakeNanos.get() / 1000000);
+  }
+
+  private void handshakeCompleted(final long elapsedNanos) {
+    this.numHandshakes.increment();
+    this.totalHandshakeNanos.add(elapsedNanos);
+    this.maxHandshakeNanos.accumulateAndGet(elapsedNanos, Math::max);
+  }
+
+  private final class MetricsInterceptor implements Interceptor {
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+      final Connection connection = chain.connection();
+      if (connection != null) {
+        numRequests.increment();
+        if (seenConnections.put(connection, Boolean.TRUE) == null) {
+          numConnectionsOpened.increment();
+        } else {
+          numReusedRequests.increment();
+        }
+        if (connection.getProtocol() == Protocol.HTTP_2) {
+          numMultiplexedRequests.increment();
+        }
+      }
+      return chain.proceed(chain.request());
+    }
+  }
+
+  /**
+   * Delegates to another factory and measures the time from the creation of a
+   * TLS socket to the completion of its handshake.
+   */
+  private final class TimedSSLSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+
+    TimedSSLSocketFactory(final SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    private Socket timed(final Socket socket) {
+      if (socket instanceof SSLSocket) {
+        final long startNanos = System.nanoTime();
+        ((SSLSocket) socket).addHandshakeCompletedListener(e -> handshakeCompleted(System.nanoTime() - startNanos));
+      }
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return this.delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return this.delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(final Socket s, final String host, final int port, final boolean autoClose) throws IOException {
+      return this.timed(this.delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return this.timed(this.delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+      return this.timed(this.delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+      return this.timed(this.delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+      return this.timed(this.delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort)
+        throws IOException {
+      return this.timed(this.delegate.createSocket(address, port, localAddress, localPort));
+    }
+  }
+}
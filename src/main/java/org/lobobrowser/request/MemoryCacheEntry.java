@@ -21,11 +21,7 @@
 package org.lobobrowser.request;
 
 import org.cobraparser.util.NameValuePair;
-import org.cobraparser.util.io.IORoutines;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.util.LinkedList;
 import java.util.List;
 
 public class MemoryCacheEntry {
@@ -35,6 +31,7 @@ public class MemoryCacheEntry {
   public final Object altObject;
   public final long requestTime;
   public final int altObjectSize;
+  public final CachePolicy cachePolicy;
 
   /**
    *
@@ -42,14 +39,17 @@ public class MemoryCacheEntry {
    *          The content of the document without headers.
    * @param headers
    * @param expiration
+   * @param cachePolicy
+   *          The caching directives parsed from the headers.
    * @param altObject
    * @param altObjectSize
    */
-  public MemoryCacheEntry(final byte[] content, final List<NameValuePair> headers, final Long expiration, final Object altObject,
-                          final int altObjectSize) {
+  public MemoryCacheEntry(final byte[] content, final List<NameValuePair> headers, final Long expiration, final CachePolicy cachePolicy,
+                          final Object altObject, final int altObjectSize) {
     this.content = content;
     this.headers = headers;
     this.expiration = expiration;
+    this.cachePolicy = cachePolicy;
     this.altObject = altObject;
     this.altObjectSize = altObjectSize;
     this.requestTime = System.currentTimeMillis();
@@ -57,33 +57,23 @@ public class MemoryCacheEntry {
 
   /**
    *
-   * @param rawContent
-   *          The content of the document, including headers.
+   * @param content
+   *          The content of the document without headers.
+   * @param headers
+   * @param expires
+   * @param requestTime
+   *          The time when the content was originally requested.
+   * @param cachePolicy
+   *          The caching directives parsed from the headers.
    * @param altObject
    * @param altObjectSize
    */
-  public MemoryCacheEntry(final byte[] rawContent, final Long expires, final long requestTime, final Object altObject,
-      final int altObjectSize) throws IOException {
-    final ByteArrayInputStream in = new ByteArrayInputStream(rawContent);
-    String line;
-    final List<NameValuePair> headersList = new LinkedList<>();
-    while ((line = IORoutines.readLine(in)) != null) {
-      if ("".equals(line)) {
-        break;
-      }
-      final int colonIdx = line.indexOf(':');
-      final String name = colonIdx == -1 ? "" : line.substring(0, colonIdx).trim().toLowerCase();
-      final String value = colonIdx == -1 ? line.trim() : line.substring(colonIdx + 1).trim();
-      headersList.add(new NameValuePair(name, value));
-    }
-    // Note: This works with a ByteArrayInputStream.
-    final int remainingLength = in.available();
-    final int offset = rawContent.length - remainingLength;
-    final byte[] remainingContent = new byte[remainingLength];
-    System.arraycopy(rawContent, offset, remainingContent, 0, remainingLength);
-    this.content = remainingContent;
-    this.headers = headersList;
+  public MemoryCacheEntry(final byte[] content, final List<NameValuePair> headers, final Long expires, final long requestTime,
+      final CachePolicy cachePolicy, final Object altObject, final int altObjectSize) {
+    this.content = content;
+    this.headers = headers;
     this.expiration = expires;
+    this.cachePolicy = cachePolicy;
     this.requestTime = requestTime;
     this.altObject = altObject;
     this.altObjectSize = altObjectSize;
@@ -20,59 +20,149 @@
  */
 package org.lobobrowser.request;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
 
+/**
+ * Builds a <code>multipart/form-data</code> body. Parts are collected first,
+ * so the exact length of the body is known before anything is sent, and file
+ * contents are streamed from disk through a fixed size buffer when the body is
+ * written. Memory use does not depend on the size of the uploaded files.
+ */
 public class MultipartFormDataWriter {
   private static final byte[] LINE_BREAK_BYTES;
-  private final OutputStream out;
+  private static final int BUFFER_SIZE = 64 * 1024;
   private final String boundary;
+  private final List<Part> parts = new ArrayList<>();
 
   static {
     LINE_BREAK_BYTES = "\r\n".getBytes();
   }
 
-  public MultipartFormDataWriter(final OutputStream out, final String boundary) {
+  public MultipartFormDataWriter(final String boundary) {
     super();
-    this.out = out;
     this.boundary = boundary;
   }
 
   /**
+   * Adds a file part. The file is read when the body is written, and must not
+   * change size in the meantime.
    *
-   * @param name
-   * @param contentType
-   * @param in
-   *          Data stream. The caller is responsible for closing it.
+   * @throws FileNotFoundException
+   *           If the file does not exist or cannot be read.
    */
-  public final void writeFileData(final String name, final String fileName, final String contentType, final InputStream in)
-      throws IOException {
-    final String headers = "--" + this.boundary + "\r\n" + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName
-        + "\"\r\n" + "Content-Type: " + contentType + "\r\n" + "\r\n";
-    final OutputStream out = this.out;
-    out.write(headers.getBytes("ISO-8859-1"));
-    final byte[] buffer = new byte[4096];
-    int numRead;
-    while ((numRead = in.read(buffer)) != -1) {
-      out.write(buffer, 0, numRead);
+  public final void addFile(final String name, final File file, final String contentType) throws IOException {
+    // Checked here, since the length of a missing file would be taken as zero.
+    if (!file.isFile() || !file.canRead()) {
+      throw new FileNotFoundException(file.getPath() + " (Not a readable file)");
     }
-    out.write(LINE_BREAK_BYTES);
+    final String headers = "--" + this.boundary + "\r\n" + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\""
+        + file.getName() + "\"\r\n" + "Content-Type: " + contentType + "\r\n" + "\r\n";
+    this.parts.add(new Part(headers.getBytes("ISO-8859-1"), null, file, file.length()));
   }
 
-  public final void writeText(final String name, final String value, final String charset) throws IOException {
+  public final void addText(final String name, final String value, final String charset) throws UnsupportedEncodingException {
     final String headers = "--" + this.boundary + "\r\n" + "Content-Disposition: form-data; name=\"" + name + "\"\r\n"
         + "Content-Type: text/plain; charset=\"" + charset + "\"\r\n" + "\r\n";
-    final OutputStream out = this.out;
-    out.write(headers.getBytes("ISO-8859-1"));
-    out.write(value.getBytes(charset));
-    out.write(LINE_BREAK_BYTES);
+    final byte[] content = value.getBytes(charset);
+    this.parts.add(new Part(headers.getBytes("ISO-8859-1"), content, null, content.length));
+  }
+
+  /**
+   * Gets the exact number of bytes {@link #writeTo(OutputStream, LongConsumer)}
+   * will write.
+   */
+  public final long getContentLength() throws UnsupportedEncodingException {
+    long length = this.getFinalDelimiter().length;
+    for (final Part part : this.parts) {
+      length += part.headers.length + part.length + LINE_BREAK_BYTES.length;
+    }
+    return length;
   }
 
-  public final void send() throws IOException {
-    final String finalDelimiter = "--" + this.boundary + "--\r\n";
-    final OutputStream out = this.out;
-    out.write(finalDelimiter.getBytes("ISO-8859-1"));
+  /**
+   * Writes the body.
+   *
+   * @param progress
+   *          Receives the number of bytes written so far, after each block, or
+   *          <code>null</code>.
+   */
+  public final void writeTo(final OutputStream out, final LongConsumer progress) throws IOException {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long written = 0;
+    for (final Part part : this.parts) {
+      out.write(part.headers);
+      written += part.headers.length;
+      if (part.content != null) {
+        out.write(part.content);
+        written += part.content.length;
+      } else {
+        written = writeFile(out, part.file, part.length, buffer, written, progress);
+      }
+      out.write(LINE_BREAK_BYTES);
+      written += LINE_BREAK_BYTES.length;
+    }
+    final byte[] finalDelimiter = this.getFinalDelimiter();
+    out.write(finalDelimiter);
     out.flush();
+    if (progress != null) {
+      progress.accept(written + finalDelimiter.length);
+    }
+  }
+
+  private static long writeFile(final OutputStream out, final File file, final long length, final byte[] buffer, long written,
+      final LongConsumer progress) throws IOException {
+    final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    try (
+      final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long remaining = length;
+      while (remaining > 0) {
+        byteBuffer.clear();
+        if (remaining < buffer.length) {
+          byteBuffer.limit((int) remaining);
+        }
+        final int numRead = channel.read(byteBuffer);
+        if (numRead == -1) {
+          // The declared length has already been sent as Content-Length.
+          throw new EOFException("File " + file + " shrank by " + remaining + " bytes while it was uploaded.");
+        }
+        out.write(buffer, 0, numRead);
+        remaining -= numRead;
+        written += numRead;
+        if (progress != null) {
+          progress.accept(written);
+        }
+      }
+    }
+    return written;
+  }
+
+  private byte[] getFinalDelimiter() throws UnsupportedEncodingException {
+    return ("--" + this.boundary + "--\r\n").getBytes("ISO-8859-1");
+  }
+
+  private static final class Part {
+    private final byte[] headers;
+    /** Content of a text part, or <code>null</code> for a file part. */
+    private final byte[] content;
+    private final File file;
+    private final long length;
+
+    Part(final byte[] headers, final byte[] content, final File file, final long length) {
+      this.headers = headers;
+      this.content = content;
+      this.file = file;
+      this.length = length;
+    }
   }
 }
@@ -29,6 +29,7 @@ import org.cobraparser.clientlet.ClientletResponse;
 import org.cobraparser.ua.ProgressType;
 import org.cobraparser.ua.RequestType;
 import org.cobraparser.ua.UserAgentContext;
+import org.cobraparser.ua.UserAgentContext.RequestKind;
 import org.eclipse.jdt.annotation.NonNull;
 
 import javax.net.ssl.HostnameVerifier;
@@ -36,6 +37,8 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * @author J. H. S.
@@ -145,6 +148,21 @@ public class RedirectRequestHandler implements RequestHandler {
     this.origHandler.processResponse(response);
   }
 
+  @Override
+  public Optional<RequestKind> getRequestKind() {
+    return this.origHandler.getRequestKind();
+  }
+
+  @Override
+  public Optional<Map<String, String>> getRequestedHeaders() {
+    return this.origHandler.getRequestedHeaders();
+  }
+
+  @Override
+  public boolean isCacheBypassed() {
+    return this.origHandler.isCacheBypassed();
+  }
+
   private volatile boolean cancelled;
 
   public void cancel() {
@@ -39,10 +39,13 @@ import org.eclipse.jdt.annotation.NonNull;
 import javax.net.ssl.HttpsURLConnection;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -52,23 +55,31 @@ public final class RequestEngine {
   private static final Logger logger = Logger.getLogger(RequestEngine.class.getName());
   private static final boolean loggerInfo = logger.isLoggable(Level.INFO);
 
-  private final SimpleThreadPool threadPool;
+  private static final int MAX_CONCURRENT_REQUESTS = 8;
+  private static final int MAX_CONCURRENT_REQUESTS_PER_HOST = 4;
+
+  private final RequestScheduler scheduler;
   private final Collection<RequestInfo> processingRequests = new HashSet<>();
+  private final Map<String, SharedResponseBody> sharedResponses = new ConcurrentHashMap<>();
+  private final Set<String> pendingRevalidations = ConcurrentHashMap.newKeySet();
   private final CookieStore cookieStore = CookieStore.getInstance();
   private final CacheSettings cacheSettings;
   private final BooleanSettings booleanSettings;
   private final ConnectionSettings connectionSettings;
 
   private RequestEngine() {
-    // Use few threads to avoid excessive parallelism. Note that
-    // downloads are not handled by this thread pool.
-    this.threadPool = new SimpleThreadPool("RequestEngineThreadPool", 3, 5, 60 * 1000);
-
     // Security: Private fields that require privileged access to get
     // initialized.
     this.cacheSettings = CacheSettings.getInstance();
     this.connectionSettings = ConnectionSettings.getInstance();
     this.booleanSettings = BooleanSettings.getInstance();
+
+    // Limit parallelism per host so that a slow host does not starve
+    // requests to other hosts. Note that downloads are not handled by
+    // this scheduler.
+    final ConnectionSettings connSettings = this.connectionSettings;
+    this.scheduler = new RequestScheduler("RequestEngineThreadPool", MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS_PER_HOST,
+        60 * 1000, () -> connSettings.isVirtualThreadsEnabled());
   }
 
   private static final RequestEngine instance = new RequestEngine();
@@ -99,11 +110,11 @@ public final class RequestEngine {
   }
 
   public void cancelAllRequests() {
-    this.threadPool.cancelAll();
+    this.scheduler.cancelAll();
   }
 
   public void cancelRequest(final RequestHandler rhToDelete) {
-    this.threadPool.cancel(new RequestHandlerTask(rhToDelete));
+    this.scheduler.cancel(new RequestHandlerTask(rhToDelete));
     this.cancelRequestIfRunning(rhToDelete);
   }
 
@@ -127,16 +138,71 @@ public final class RequestEngine {
   }
 
   public void scheduleRequest(final RequestHandler handler) {
+    this.scheduleRequest(handler, RequestPriority.forHandler(handler));
+  }
+
+  private void scheduleRequest(final RequestHandler handler, final RequestPriority priority) {
     // Note: Important to create task with current access context if there's
     // a security manager.
     final SecurityManager sm = System.getSecurityManager();
     final AccessControlContext context = sm == null ? null : AccessController.getContext();
-    this.threadPool.schedule(new RequestHandlerTask(handler, context));
+    final URL url = handler.getLatestRequestURL();
+    // An explicit default port is the same origin as an omitted one.
+    final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    final String origin = url.getProtocol() + "://" + url.getHost() + ":" + port;
+    this.scheduler.schedule(new RequestHandlerTask(handler, context), origin, priority);
+  }
+
+  /**
+   * Gets a snapshot of queue-depth and wait-time counters of scheduled
+   * requests.
+   */
+  public RequestSchedulerInfo getSchedulerInfo() {
+    return this.scheduler.getInfo();
+  }
+
+  /**
+   * Gets counters of the shared HTTP connection pool.
+   */
+  public ConnectionPoolInfo getConnectionPoolInfo() {
+    return HttpConnectionPool.getInstance().getInfo();
+  }
+
+  /**
+   * Closes idle HTTP connections. Connections in use are not affected.
+   */
+  public void evictIdleConnections() {
+    HttpConnectionPool.getInstance().evictAll();
+  }
+
+  private static final int MAX_DRAIN_SIZE = 64 * 1024;
+
+  /**
+   * Reads and closes the body of a response that is not passed on, so that
+   * the connection returns to the pool. Responses with large bodies are
+   * disconnected instead.
+   */
+  private static void releaseConnection(final HttpURLConnection hconnection) {
+    try (final InputStream in = hconnection.getInputStream()) {
+      final byte[] buffer = new byte[4096];
+      int total = 0;
+      int numRead;
+      while ((numRead = in.read(buffer)) != -1) {
+        total += numRead;
+        if (total > MAX_DRAIN_SIZE) {
+          hconnection.disconnect();
+          return;
+        }
+      }
+    } catch (final IOException ioe) {
+      hconnection.disconnect();
+    }
   }
 
   private static final String NORMAL_FORM_ENCODING = "application/x-www-form-urlencoded";
 
-  private void postData(final URLConnection connection, final ParameterInfo pinfo, final String altPostData) throws IOException {
+  private void postData(final URLConnection connection, final ParameterInfo pinfo, final String altPostData, final RequestHandler rhandler,
+      final @NonNull URL connectionUrl) throws IOException {
     final BooleanSettings boolSettings = this.booleanSettings;
     final String encoding = pinfo != null ? pinfo.getEncoding() : NORMAL_FORM_ENCODING;
     if ((encoding == null) || NORMAL_FORM_ENCODING.equalsIgnoreCase(encoding)) {
@@ -188,54 +254,74 @@ public final class RequestEngine {
     } else if ("multipart/form-data".equalsIgnoreCase(encoding)) {
       final long id = ID.generateLong();
       final String boundary = "----------------" + id;
-      final boolean chunked = boolSettings.isHttpUseChunkedEncodingPOST();
-      OutputStream mfstream;
-      if (chunked) {
-        mfstream = connection.getOutputStream();
-      } else {
-        mfstream = new ByteArrayOutputStream();
-      }
-      final MultipartFormDataWriter writer = new MultipartFormDataWriter(mfstream, boundary);
-      try {
-        if (pinfo != null) {
-          final Parameter[] parameters = pinfo.getParameters();
-          for (final Parameter parameter : parameters) {
-            final String name = parameter.getName();
-            if (parameter.isText()) {
-              writer.writeText(name, parameter.getTextValue(), "UTF-8");
-            } else if (parameter.isFile()) {
-              final File file = parameter.getFileValue();
-              try (
-                final FileInputStream in = new FileInputStream(parameter.getFileValue())) {
-                final BufferedInputStream bin = new BufferedInputStream(in, 8192);
-                writer.writeFileData(name, file.getName(), Files.getContentType(file), bin);
-              }
-            } else {
-              logger.warning("postData(): Skipping parameter " + name + " of unknown type for POST with encoding " + encoding + ".");
-            }
+      final MultipartFormDataWriter writer = new MultipartFormDataWriter(boundary);
+      if (pinfo != null) {
+        final Parameter[] parameters = pinfo.getParameters();
+        for (final Parameter parameter : parameters) {
+          final String name = parameter.getName();
+          if (parameter.isText()) {
+            writer.addText(name, parameter.getTextValue(), "UTF-8");
+          } else if (parameter.isFile()) {
+            final File file = parameter.getFileValue();
+            writer.addFile(name, file, Files.getContentType(file));
+          } else {
+            logger.warning("postData(): Skipping parameter " + name + " of unknown type for POST with encoding " + encoding + ".");
           }
         }
-      } finally {
-        writer.send();
       }
-      connection.addRequestProperty("Content-Type", encoding + "; boundary=" + boundary);
-      if (chunked) {
-        if (connection instanceof HttpURLConnection) {
+      final long contentLength = writer.getContentLength();
+      if (connection instanceof HttpURLConnection) {
+        if (boolSettings.isHttpUseChunkedEncodingPOST()) {
           ((HttpURLConnection) connection).setChunkedStreamingMode(8192);
+        } else {
+          ((HttpURLConnection) connection).setFixedLengthStreamingMode(contentLength);
         }
-      } else {
-        final byte[] content = ((ByteArrayOutputStream) mfstream).toByteArray();
-        if (connection instanceof HttpURLConnection) {
-          ((HttpURLConnection) connection).setFixedLengthStreamingMode(content.length);
-        }
-        final OutputStream out = connection.getOutputStream();
-        out.write(content);
       }
+      connection.addRequestProperty("Content-Type", encoding + "; boundary=" + boundary);
+      final String method = connection instanceof HttpURLConnection ? ((HttpURLConnection) connection).getRequestMethod() : "POST";
+      final OutputStream out = connection.getOutputStream();
+      writer.writeTo(out, new UploadProgress(rhandler, connectionUrl, method, contentLength));
     } else {
       throw new IllegalArgumentException("Unknown encoding: " + encoding);
     }
   }
 
+  /**
+   * Reports upload progress to a request handler, about once per percent of
+   * the body. Values are scaled down if the body is too long for an
+   * <code>int</code>.
+   */
+  private static final class UploadProgress implements LongConsumer {
+    private final RequestHandler rhandler;
+    private final @NonNull URL url;
+    private final String method;
+    private final long length;
+    private final long step;
+    private final int shift;
+    private long lastReported = 0;
+
+    UploadProgress(final RequestHandler rhandler, final @NonNull URL url, final String method, final long length) {
+      this.rhandler = rhandler;
+      this.url = url;
+      this.method = method;
+      this.length = length;
+      this.step = Math.max(256 * 1024, length / 100);
+      int shift = 0;
+      while ((length >>> shift) > Integer.MAX_VALUE) {
+        shift++;
+      }
+      this.shift = shift;
+    }
+
+    public void accept(final long written) {
+      if (((written - this.lastReported) >= this.step) || (written == this.length)) {
+        this.lastReported = written;
+        this.rhandler.handleProgress(ProgressType.SENDING, this.url, this.method, (int) (written >>> this.shift),
+            (int) (this.length >>> this.shift));
+      }
+    }
+  }
+
   private static String completeGetUrl(final String baseURL, final ParameterInfo pinfo, final String ref) throws Exception {
     String newNoRefURL;
     final Parameter[] parameters = pinfo.getParameters();
@@ -325,13 +411,13 @@ public final class RequestEngine {
         // the local file system, yet it's necessary to be able to load
         // a cache file.
         public CacheInfo run() {
-          byte[] persistentContent = null;
+          ByteBuffer persistentContent = null;
           final CacheManager cm = CacheManager.getInstance();
           final MemoryCacheEntry entry = (MemoryCacheEntry) cm.getTransient(url);
           if (entry == null) {
             if (!"file".equalsIgnoreCase(url.getProtocol()) || !Strings.isBlank(url.getHost())) {
               try {
-                persistentContent = CacheManager.getPersistent(url, false);
+                persistentContent = CacheManager.mapPersistent(url, false);
               } catch (final IOException ioe) {
                 logger.log(Level.WARNING, "getCacheInfo(): Unable to load cache file.", ioe);
               }
@@ -349,18 +435,18 @@ public final class RequestEngine {
     }
   }
 
-  private static void cache(final RequestHandler rhandler, final URL url, final URLConnection connection, final byte[] content,
-                            final Serializable altPersistentObject, final Object altObject, final int approxAltObjectSize) {
+  private static void cache(final RequestHandler rhandler, final URL url, final URLConnection connection,
+                            final CacheWriterInputStream cacheIn, final Serializable altPersistentObject, final Object altObject,
+                            final int approxAltObjectSize) {
     AccessController.doPrivileged(new PrivilegedAction<Object>() {
       // Reason: Caller might not have permission to access the
       // file system. Yet, caching should be allowed.
       public Object run() {
         try {
-          final long currentTime = System.currentTimeMillis();
-          logInfo("cache(): url=" + url + ",content.length=" + content.length + ",currentTime=" + currentTime);
-          final Long expiration = Urls.getExpiration(connection, currentTime);
-          if ((expiration != null) && (expiration > 0)) {
-            storeCacheEntry(url, connection, content, altPersistentObject, altObject, approxAltObjectSize, currentTime, expiration);
+          logInfo("cache(): url=" + url + ",content.length=" + cacheIn.getLength());
+          if (cacheIn.commit()) {
+            storeCacheEntry(url, connection, cacheIn.getMemoryCopy(), cacheIn.getLength(), altPersistentObject, altObject,
+                approxAltObjectSize, cacheIn.getExpiration());
           }
         } catch (final Exception err) {
           logger.log(Level.WARNING, "cache()", err);
@@ -371,72 +457,33 @@ public final class RequestEngine {
     });
   }
 
-  private static void storeCacheEntry(final URL url, final URLConnection connection, final byte[] content,
-      final Serializable altPersistentObject, final Object altObject, final int approxAltObjectSize, final long currentTime,
-      final Long expiration) throws UnsupportedEncodingException, IOException {
-    int actualApproxObjectSize = 0;
-    if (altObject != null) {
-      if (approxAltObjectSize < content.length) {
-        actualApproxObjectSize = content.length;
-      } else {
-        actualApproxObjectSize = approxAltObjectSize;
-      }
-    }
-    final List<NameValuePair> headers = Urls.getHeaders(connection);
-    final MemoryCacheEntry memEntry = new MemoryCacheEntry(content, headers, expiration, altObject, actualApproxObjectSize);
-    final int approxMemEntrySize = content.length + (altObject == null ? 0 : approxAltObjectSize);
-    final CacheManager cm = CacheManager.getInstance();
-    cm.putTransient(url, memEntry, approxMemEntrySize);
-    try (
-      final ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      boolean hadDate = false;
-      boolean hadContentLength = false;
-      for (int counter = 0; true; counter++) {
-        final String headerKey = connection.getHeaderFieldKey(counter);
-        if (headerKey != null) {
-          if (!hadDate && "date".equalsIgnoreCase(headerKey)) {
-            hadDate = true;
-          }
-          if (!hadContentLength && "content-length".equalsIgnoreCase(headerKey)) {
-            hadContentLength = true;
-          }
-        }
-        final String headerValue = connection.getHeaderField(counter);
-        if (headerValue == null) {
-          break;
-        }
-        if (CacheInfo.HEADER_REQUEST_TIME.equalsIgnoreCase(headerKey)) {
-          continue;
-        }
-
-        // Fix #142: When stored in cache, decoding of input stream has been already done.  Hence, don't store the content-encoding header
-        // TODO: Evaluate the trade-offs of storing the original response with compression. Will save disk-space but increase read-back time.
-        if ("content-encoding".equalsIgnoreCase(headerKey)) {
-          continue;
+  /**
+   * Stores the transient entry and the persistent decoration of a response
+   * whose content has already been written to the persistent cache.
+   *
+   * @param content
+   *          The content kept in memory, or <code>null</code> if it was too
+   *          large for the transient cache.
+   */
+  private static void storeCacheEntry(final URL url, final URLConnection connection, final byte[] content, final long contentLength,
+      final Serializable altPersistentObject, final Object altObject, final int approxAltObjectSize, final Long expiration) {
+    if (content != null) {
+      int actualApproxObjectSize = 0;
+      if (altObject != null) {
+        if (approxAltObjectSize < content.length) {
+          actualApproxObjectSize = content.length;
+        } else {
+          actualApproxObjectSize = approxAltObjectSize;
         }
-
-        final String headerPrefix = (headerKey == null) || (headerKey.length() == 0) ? "" : headerKey + ": ";
-        final byte[] headerBytes = (headerPrefix + headerValue + "\r\n").getBytes("ISO-8859-1");
-        out.write(headerBytes);
-      }
-      if (!hadDate) {
-        final String currentDate = Urls.PATTERN_RFC1123.format(new Date());
-        final byte[] headerBytes = ("Date: " + currentDate + "\r\n").getBytes("ISO-8859-1");
-        out.write(headerBytes);
-      }
-      if (!hadContentLength) {
-        final byte[] headerBytes = ("Content-Length: " + content.length + "\r\n").getBytes("ISO-8859-1");
-        out.write(headerBytes);
-      }
-      final byte[] rtHeaderBytes = (CacheInfo.HEADER_REQUEST_TIME + ": " + currentTime + "\r\n").getBytes("ISO-8859-1");
-      out.write(rtHeaderBytes);
-      out.write(IORoutines.LINE_BREAK_BYTES);
-      out.write(content);
-      try {
-        CacheManager.putPersistent(url, out.toByteArray(), false);
-      } catch (final IOException err) {
-        logger.log(Level.WARNING, "cache(): Unable to cache response content.", err);
       }
+      final List<NameValuePair> headers = Urls.getHeaders(connection);
+      final MemoryCacheEntry memEntry = new MemoryCacheEntry(content, headers, expiration, CachePolicy.forConnection(connection),
+          altObject, actualApproxObjectSize);
+      final int approxMemEntrySize = content.length + (altObject == null ? 0 : approxAltObjectSize);
+      final CacheManager cm = CacheManager.getInstance();
+      cm.putTransient(url, memEntry, approxMemEntrySize);
+    } else {
+      logInfo("cache(): Content too large for the transient cache: url=" + url + ",content.length=" + contentLength);
     }
     if (altPersistentObject != null) {
       try {
@@ -458,17 +505,7 @@ public final class RequestEngine {
   }
 
   private static boolean mayBeCached(final HttpURLConnection connection) {
-    final String cacheControl = connection.getHeaderField("Cache-Control");
-    if (cacheControl != null) {
-      final StringTokenizer tok = new StringTokenizer(cacheControl, ",");
-      while (tok.hasMoreTokens()) {
-        final String token = tok.nextToken().trim();
-        if ("no-cache".equalsIgnoreCase(token)) {
-          return false;
-        }
-      }
-    }
-    return true;
+    return CachePolicy.forConnection(connection).isStorable();
   }
 
   private static void printRequestHeaders(final URLConnection connection) {
@@ -557,11 +594,15 @@ public final class RequestEngine {
     });
   }
 
-  private URLConnection getURLConnection(final URL connectionUrl, final ClientletRequest request, final String protocol,
-                                         final String method,
-                                         final RequestHandler rhandler, final CacheInfo cacheInfo) throws IOException {
-    URLConnection connection;
-    if (cacheInfo != null) {
+  /**
+   * Gets a connection to the cache entry, if it may be used without
+   * contacting the server.
+   *
+   * @return The connection, or <code>null</code> if the request must go to
+   *         the network.
+   */
+  private URLConnection getCachedURLConnection(final URL connectionUrl, final RequestHandler rhandler, final CacheInfo cacheInfo) {
+    if ((cacheInfo != null) && !rhandler.isCacheBypassed()) {
       final RequestType requestType = rhandler.getRequestType();
       if (doesNotExpire(requestType)) {
         if (loggerInfo) {
@@ -572,16 +613,8 @@ public final class RequestEngine {
           }
         }
         return cacheInfo.getURLConnection();
-      } else if (!shouldRevalidateAlways(connectionUrl, requestType)) {
-        Long expires = cacheInfo.getExpires();
-        if (expires == null) {
-          final int defaultOffset = this.cacheSettings.getDefaultCacheExpirationOffset();
-          expires = cacheInfo.getExpiresGivenOffset(defaultOffset);
-          if (loggerInfo) {
-            final Date expiresDate = expires == null ? null : new Date(expires);
-            logger.info("getURLConnection(): Used default offset for " + connectionUrl + ": expires=" + expiresDate);
-          }
-        }
+      } else if (!shouldRevalidateAlways(connectionUrl, requestType) || cacheInfo.getCachePolicy().isRevalidationUnnecessary()) {
+        final Long expires = this.getCacheExpiration(cacheInfo, connectionUrl);
         if (expires != null) {
           if (expires.longValue() > System.currentTimeMillis()) {
             if (loggerInfo) {
@@ -593,6 +626,13 @@ public final class RequestEngine {
               }
             }
             return cacheInfo.getURLConnection();
+          } else if ((expires.longValue() > 0)
+              && ((expires.longValue() + this.getStaleWhileRevalidateMillis(cacheInfo, rhandler)) > System.currentTimeMillis())) {
+            if (loggerInfo) {
+              logger.info("getURLConnection(): FROM-STALE: " + connectionUrl + ". Expired on " + new Date(expires) + ".");
+            }
+            this.revalidateInBackground(connectionUrl, rhandler);
+            return cacheInfo.getURLConnection();
           } else {
             if (loggerInfo) {
               logger.info("getURLConnection(): EXPIRED: " + connectionUrl + ". Expired on " + new Date(expires) + ".");
@@ -603,6 +643,13 @@ public final class RequestEngine {
         // be used, but only after validation.
       }
     }
+    return null;
+  }
+
+  private URLConnection getURLConnection(final URL connectionUrl, final ClientletRequest request, final String protocol,
+                                         final String method,
+                                         final RequestHandler rhandler, final CacheInfo cacheInfo, final String cookieHeader) throws IOException {
+    URLConnection connection;
     final boolean isPost = "POST".equalsIgnoreCase(method);
     final String host = connectionUrl.getHost();
     final boolean isResURL = "res".equalsIgnoreCase(protocol);
@@ -635,7 +682,9 @@ public final class RequestEngine {
 
     // Moved add cookies here since connection is initiated in this method for POST requests.
     // And we can't add headers after the connection is made.
-    addCookiesToRequest(connection, rhandler);
+    if (cookieHeader != null) {
+      connection.addRequestProperty("Cookie", cookieHeader);
+    }
     // dumpRequestInfo(connection);
 
     // Allow extensions to modify the connection object.
@@ -653,12 +702,74 @@ public final class RequestEngine {
       if ((pinfo == null) && (altPostData == null)) {
         logger.info("POST has no parameter information");
       } else {
-        this.postData(connection, pinfo, altPostData);
+        this.postData(connection, pinfo, altPostData, rhandler, connectionUrl);
       }
     }
     return connection;
   }
 
+  /**
+   * Gets the expiration time of a cache entry, falling back to the default
+   * offset from {@link CacheSettings} if the response did not specify one.
+   */
+  private Long getCacheExpiration(final CacheInfo cacheInfo, final URL connectionUrl) {
+    Long expires = cacheInfo.getExpires();
+    if (expires == null) {
+      final int defaultOffset = this.cacheSettings.getDefaultCacheExpirationOffset();
+      expires = cacheInfo.getExpiresGivenOffset(defaultOffset);
+      if (loggerInfo) {
+        final Date expiresDate = expires == null ? null : new Date(expires);
+        logger.info("getCacheExpiration(): Used default offset for " + connectionUrl + ": expires=" + expiresDate);
+      }
+    }
+    return expires;
+  }
+
+  /**
+   * Gets for how long after expiration a cache entry may be served while it is
+   * revalidated in the background. That is the
+   * <code>stale-while-revalidate</code> period of the response, or for
+   * subresources the configured maximum, whichever is longer.
+   */
+  private long getStaleWhileRevalidateMillis(final CacheInfo cacheInfo, final RequestHandler rhandler) {
+    final CachePolicy policy = cacheInfo.getCachePolicy();
+    long staleSeconds = policy.getStaleWhileRevalidate();
+    if (!policy.isStaleUseForbidden() && (RequestPriority.forHandler(rhandler) != RequestPriority.DOCUMENT)) {
+      staleSeconds = Math.max(staleSeconds, this.cacheSettings.getMaxStaleSubresourceSeconds());
+    }
+    return staleSeconds * 1000;
+  }
+
+  /**
+   * Whether a cache entry may be served instead of an error response, as
+   * allowed by the <code>stale-if-error</code> directive of the cached response.
+   */
+  private boolean isUsableOnError(final CacheInfo cacheInfo, final URL connectionUrl) {
+    if (cacheInfo == null) {
+      return false;
+    }
+    final long staleIfErrorSeconds = cacheInfo.getCachePolicy().getStaleIfError();
+    if (staleIfErrorSeconds == 0) {
+      return false;
+    }
+    final Long expires = this.getCacheExpiration(cacheInfo, connectionUrl);
+    return (expires != null) && (expires.longValue() > 0)
+        && ((expires.longValue() + (staleIfErrorSeconds * 1000)) > System.currentTimeMillis());
+  }
+
+  /**
+   * Schedules a low priority request that revalidates a cache entry which was
+   * served stale, unless one is already pending for the URL.
+   */
+  private void revalidateInBackground(final URL connectionUrl, final RequestHandler rhandler) {
+    final String key = connectionUrl.toExternalForm();
+    if (this.pendingRevalidations.add(key)) {
+      logInfo("revalidateInBackground(): " + connectionUrl);
+      this.scheduleRequest(new RevalidationRequestHandler(connectionUrl, rhandler.getContext(), () -> this.pendingRevalidations.remove(key)),
+          RequestPriority.BACKGROUND);
+    }
+  }
+
   private static boolean isOKToRetrieveFromCache(final RequestType requestType) {
     return (requestType != RequestType.SOFT_RELOAD) && (requestType !=
         RequestType.HARD_RELOAD) && (requestType != RequestType.DOWNLOAD);
@@ -694,12 +805,35 @@ public final class RequestEngine {
     }
   }
 
+  /**
+   * Whether a request may share the response of an identical request that is
+   * being received. Only requests that could have been served from the cache
+   * qualify, and only if they send no headers of their own, since the
+   * response may depend on those.
+   */
+  private static boolean isCoalescable(final RequestHandler rhandler, final ClientletRequest request, final URL connectionUrl,
+      final boolean isGet) {
+    final String protocol = connectionUrl.getProtocol();
+    if (!isGet || !("http".equals(protocol) || "https".equals(protocol)) || !isOKToRetrieveFromCache(rhandler.getRequestType())
+        || rhandler.isCacheBypassed()) {
+      return false;
+    }
+    final Optional<Map<String, String>> requestedHeaders = rhandler.getRequestedHeaders();
+    if (requestedHeaders.isPresent() && !requestedHeaders.get().isEmpty()) {
+      return false;
+    }
+    final Header[] extraHeaders = request.getExtraHeaders();
+    return (extraHeaders == null) || (extraHeaders.length == 0);
+  }
+
   private void processHandler(final RequestHandler rhandler, final int recursionLevel, final boolean trackRequestInfo) {
     // Method must be private.
     final URL baseURL = rhandler.getLatestRequestURL();
     RequestInfo rinfo = null;
     ClientletResponseImpl response = null;
     final String method = rhandler.getLatestRequestMethod().toUpperCase();
+    String sharedKey = null;
+    SharedResponseBody sharedBody = null;
     try {
       final ClientletRequest request = rhandler.getRequest();
       // TODO: Hack: instanceof below
@@ -710,7 +844,23 @@ public final class RequestEngine {
       final URL connectionUrl = makeConnectionURL(url, protocol);
       final CacheInfo cacheInfo = getCacheInfo(rhandler, connectionUrl, isGet);
       try {
-        URLConnection connection = this.getURLConnection(connectionUrl, request, protocol, method, rhandler, cacheInfo);
+        URLConnection connection = this.getCachedURLConnection(connectionUrl, rhandler, cacheInfo);
+        String coalescingKey = null;
+        HttpURLConnection sharedConnection = null;
+        if (connection == null) {
+          final String cookieHeader = this.getCookieHeader(connectionUrl, rhandler);
+          if (isCoalescable(rhandler, request, connectionUrl, isGet)) {
+            // Requests share a response only if they send the same cookies.
+            coalescingKey = method + " " + connectionUrl.toExternalForm() + (cookieHeader == null ? "" : "\nCookie: " + cookieHeader);
+            final SharedResponseBody inFlight = this.sharedResponses.get(coalescingKey);
+            sharedConnection = inFlight == null ? null : inFlight.join(connectionUrl);
+          }
+          if (sharedConnection != null) {
+            connection = sharedConnection;
+          } else {
+            connection = this.getURLConnection(connectionUrl, request, protocol, method, rhandler, cacheInfo, cookieHeader);
+          }
+        }
 
         // This causes exceptions sometimes (when the connection is already open)
         // dumpRequestInfo(connection);
@@ -731,13 +881,30 @@ public final class RequestEngine {
           boolean isContentCached = (cacheInfo != null) && cacheInfo.isCacheConnection(connection);
 
           boolean isCacheable = false;
-          if ((connection instanceof HttpURLConnection) && !isContentCached) {
+          boolean isShareable = false;
+          if (sharedConnection != null) {
+            // An identical request is receiving the response. Read its body
+            // as it arrives instead of requesting it again.
+            logInfo("run(): FROM-SHARED-RESPONSE: " + connectionUrl);
+            rinfo.setConnection(connection);
+          } else if ((connection instanceof HttpURLConnection) && !isContentCached) {
             final HttpURLConnection hconnection = (HttpURLConnection) connection;
             hconnection.setInstanceFollowRedirects(false);
-            final int responseCode = hconnection.getResponseCode();
+            int responseCode;
+            try {
+              responseCode = hconnection.getResponseCode();
+            } catch (final IOException ioe) {
+              if (!this.isUsableOnError(cacheInfo, connectionUrl)) {
+                throw ioe;
+              }
+              logInfo("run(): Network error for url=" + connectionUrl, ioe);
+              responseCode = -1;
+            }
             logInfo("run(): ResponseCode=" + responseCode + " for url=" + connectionUrl);
             // dumpResponseInfo(connection);
-            handleCookies(connectionUrl, hconnection, rhandler);
+            if (responseCode != -1) {
+              handleCookies(connectionUrl, hconnection, rhandler);
+            }
 
             if (responseCode == HttpURLConnection.HTTP_OK) {
               logInfo("run(): FROM-HTTP: " + connectionUrl);
@@ -752,13 +919,19 @@ public final class RequestEngine {
               // responseIn = connection.getInputStream();
               // rinfo.setConnection(connection, responseIn);
               rinfo.setConnection(connection);
+              isShareable = coalescingKey != null;
+            } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+              // A byte range requested by the handler. It is not a complete
+              // entity, so it is never cached.
+              logInfo("run(): FROM-HTTP-PARTIAL: " + connectionUrl);
+              rinfo.setConnection(connection);
             } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
               if (cacheInfo == null) {
                 throw new IllegalStateException("Cache info missing but it is necessary to process response code " + responseCode + ".");
               }
               logInfo("run(): FROM-VALIDATION: " + connectionUrl);
-              // Disconnect the HTTP connection.
-              hconnection.disconnect();
+              // Release the HTTP connection for reuse.
+              releaseConnection(hconnection);
               isContentCached = true;
               // Even though the response is actually from the cache,
               // we need to cache it again, if only to update the
@@ -773,12 +946,19 @@ public final class RequestEngine {
                 || (responseCode == HttpURLConnection.HTTP_SEE_OTHER)) {
               logInfo("run(): REDIRECTING: ResponseCode=" + responseCode + " for url=" + url);
               final RequestHandler newHandler = new RedirectRequestHandler(rhandler, hconnection);
+              releaseConnection(hconnection);
               Thread.yield();
               if (recursionLevel > MAX_REDIRECT_COUNT) {
                 throw new ClientletException("Exceeded redirect recursion limit.");
               }
               this.processHandler(newHandler, recursionLevel + 1, trackRequestInfo);
               return;
+            } else if (((responseCode == -1) || (responseCode >= 500)) && this.isUsableOnError(cacheInfo, connectionUrl)) {
+              logInfo("run(): FROM-STALE-IF-ERROR: " + connectionUrl);
+              hconnection.disconnect();
+              isContentCached = true;
+              connection = cacheInfo.getURLConnection();
+              rinfo.setConnection(connection);
             }
           } else {
             // Force it to throw exception if file does not exist
@@ -795,11 +975,25 @@ public final class RequestEngine {
           if (newConnection != connection) {
             // responseIn = newConnection.getInputStream();
             connection = newConnection;
+            isShareable = false;
+          }
+
+          InputStream bodyStream = null;
+          if (isShareable) {
+            // Let identical requests read the body as it is received.
+            final SharedResponseBody body = new SharedResponseBody((HttpURLConnection) connection);
+            bodyStream = body.open();
+            if (this.sharedResponses.putIfAbsent(coalescingKey, body) == null) {
+              sharedKey = coalescingKey;
+              sharedBody = body;
+            } else {
+              body.stopSharing();
+            }
           }
 
           // Create clientlet response.
           response = new ClientletResponseImpl(rhandler, connection, url, isContentCached, cacheInfo, isCacheable,
-              rhandler.getRequestType());
+              rhandler.getRequestType(), bodyStream);
           rhandler.processResponse(response);
           updateCache(rhandler, response, connectionUrl, cacheInfo, connection, isCacheable);
         } finally {
@@ -808,6 +1002,17 @@ public final class RequestEngine {
               this.processingRequests.remove(rinfo);
             }
           }
+          if (response != null) {
+            final CacheWriterInputStream cacheIn = response.getCacheWriterStream();
+            if (cacheIn != null) {
+              // Removes the partially written entry if the response failed
+              // before it could be cached.
+              AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+                cacheIn.discard();
+                return null;
+              });
+            }
+          }
           /*
           if (responseIn != null) {
             try {
@@ -817,11 +1022,8 @@ public final class RequestEngine {
             }
           }*/
 
-          // TODO: Possible optimization. By not disconnecting, we might be able to get a faster response for next request
-          /*
-          if (connection instanceof HttpURLConnection) {
-            ((HttpURLConnection) connection).disconnect();
-          }*/
+          // Not disconnecting: the connection returns to the pool when the
+          // response stream is closed. See HttpConnectionPool.
         }
       } finally {
         if (cacheInfo != null) {
@@ -846,6 +1048,11 @@ public final class RequestEngine {
         }
       }
     } finally {
+      if (sharedBody != null) {
+        // The response is in the cache by now, if it was cacheable.
+        this.sharedResponses.remove(sharedKey, sharedBody);
+        sharedBody.stopSharing();
+      }
       rhandler.handleProgress(ProgressType.DONE, baseURL, method, 0, 0);
     }
   }
@@ -860,36 +1067,34 @@ public final class RequestEngine {
     }
   }
 
-  private void addCookiesToRequest(final URLConnection connection, final RequestHandler rhandler) {
+  /**
+   * Gets the value of the <code>Cookie</code> header to send with a request,
+   * or <code>null</code> if no cookies are sent.
+   */
+  private String getCookieHeader(final URL url, final RequestHandler rhandler) {
     try {
-      final String protocol = connection.getURL().getProtocol();
+      final String protocol = url.getProtocol();
       if ("http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol)) {
-        final URL url = connection.getURL();
         final URI uri = url.toURI();
         // TODO: optimization #1: list is not required if we directly call our CookieHandler implementation
         // TODO: optimization #2: even if we use the CookieHandler interface, we can avoid the joining of List entries, since our impl always returns a single element list
         final Map<String, List<String>> cookieHeaders = cookieHandler.get(uri, null);
         if (!cookieHeaders.isEmpty()) {
           if (rhandler.getContext().isRequestPermitted(new Request(url, RequestKind.Cookie))) {
-            addCookieHeaderToRequest(connection, cookieHeaders, "Cookie");
+            final List<String> cookieValue = cookieHeaders.get("Cookie");
+            if (cookieValue != null) {
+              return cookieValue.stream().collect(Collectors.joining(";"));
+            }
           }
         }
       }
     } catch (IOException | URISyntaxException e) {
-      logger.warning("Couldn't add cookies for : " + connection.getURL());
+      logger.warning("Couldn't add cookies for : " + url);
       logger.warning("  .. reason: " + e.getMessage());
       // TODO: These exceptions should be either not captured, or failure should be
       // propagated to caller by return value.
     }
-  }
-
-  private static void addCookieHeaderToRequest(final URLConnection connection, final Map<String, List<String>> cookieHeaders,
-      final String cookieKey) {
-    final List<String> cookieValue = cookieHeaders.get(cookieKey);
-    if (cookieValue != null) {
-      final String cookieValueStr = cookieValue.stream().collect(Collectors.joining(";"));
-      connection.addRequestProperty(cookieKey, cookieValueStr);
-    }
+    return null;
   }
 
   private void handleCookies(final URL url, final HttpURLConnection hconnection, final RequestHandler rhandler) throws URISyntaxException,
@@ -912,26 +1117,28 @@ public final class RequestEngine {
       // Make sure stream reaches EOF so we don't get null stored content.
       response.ensureReachedEOF();
 
-      final byte[] content = response.getStoredContent();
-      if (content != null) {
+      final CacheWriterInputStream cacheIn = response.getCacheWriterStream();
+      if (cacheIn != null) {
         final Serializable persObject = response.getNewPersistentCachedObject();
         final Object altObject = response.getNewTransientCachedObject();
         final int altObjectSize = response.getNewTransientObjectSize();
-        cache(rhandler, connectionUrl, connection, content, persObject, altObject, altObjectSize);
+        cache(rhandler, connectionUrl, connection, cacheIn, persObject, altObject, altObjectSize);
       } else {
-        logger.warning("processHandler(): Cacheable response not available: " + connectionUrl);
+        logInfo("processHandler(): Cacheable response not written to cache: " + connectionUrl);
       }
     } else if ((cacheInfo != null) && !cacheInfo.hasTransientEntry()) {
       // Content that came from cache cannot be cached again, but a RAM entry was missing.
-      final byte[] persContent = cacheInfo.getPersistentContent();
       final Object altObject = response.getNewTransientCachedObject();
       final int altObjectSize = response.getNewTransientObjectSize();
-      final MemoryCacheEntry newMemEntry = new MemoryCacheEntry(persContent, cacheInfo.getExpires(), cacheInfo.getRequestTime(), altObject,
-          altObjectSize);
-      final int actualApproxObjectSize = altObject == null ? 0 : Math.max(altObjectSize, persContent.length);
+      final MemoryCacheEntry newMemEntry = cacheInfo.createMemoryEntry(altObject, altObjectSize);
+      if (newMemEntry == null) {
+        return;
+      }
+      final int contentLength = newMemEntry.content.length;
+      final int actualApproxObjectSize = altObject == null ? 0 : Math.max(altObjectSize, contentLength);
       // Reason: Privileges needed to access CacheManager.
       AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
-        CacheManager.getInstance().putTransient(connectionUrl, newMemEntry, actualApproxObjectSize + persContent.length);
+        CacheManager.getInstance().putTransient(connectionUrl, newMemEntry, actualApproxObjectSize + contentLength);
         return null;
       });
     }
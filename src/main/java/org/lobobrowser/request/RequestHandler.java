@@ -26,6 +26,7 @@ import org.cobraparser.clientlet.ClientletResponse;
 import org.cobraparser.ua.ProgressType;
 import org.cobraparser.ua.RequestType;
 import org.cobraparser.ua.UserAgentContext;
+import org.cobraparser.ua.UserAgentContext.RequestKind;
 import org.eclipse.jdt.annotation.NonNull;
 
 import javax.net.ssl.HostnameVerifier;
@@ -74,4 +75,21 @@ public interface RequestHandler {
   default public Optional<Map<String, String>> getRequestedHeaders() {
     return Optional.empty();
   }
+
+  /**
+   * Gets the kind of resource requested, if known. It is used to prioritize
+   * scheduled requests.
+   */
+  default public Optional<RequestKind> getRequestKind() {
+    return Optional.empty();
+  }
+
+  /**
+   * Whether the request must go to the network even if the cache holds a fresh
+   * entry. Such a request does not share the response of an identical request
+   * in progress either.
+   */
+  default public boolean isCacheBypassed() {
+    return false;
+  }
 }
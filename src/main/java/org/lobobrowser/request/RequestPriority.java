@@ -0,0 +1,58 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.util.Optional;
+
+import org.cobraparser.ua.RequestType;
+import org.cobraparser.ua.UserAgentContext.RequestKind;
+
+/**
+ * Priority classes of scheduled requests, in the order they are served by the
+ * {@link RequestScheduler}.
+ */
+public enum RequestPriority {
+  DOCUMENT, STYLESHEET, NORMAL, IMAGE,
+  /** Work nobody waits for, such as revalidating stale cache entries. */
+  BACKGROUND;
+
+  static RequestPriority forHandler(final RequestHandler rhandler) {
+    final Optional<RequestKind> kindOpt = rhandler.getRequestKind();
+    if (kindOpt.isPresent()) {
+      final RequestKind kind = kindOpt.get();
+      if (kind == RequestKind.CSS) {
+        return STYLESHEET;
+      } else if (kind == RequestKind.Image) {
+        return IMAGE;
+      } else {
+        return NORMAL;
+      }
+    }
+    final RequestType requestType = rhandler.getRequestType();
+    if ((requestType == null) || (requestType == RequestType.ELEMENT) || (requestType == RequestType.PROGRAMMATIC)
+        || (requestType == RequestType.NONE)) {
+      return NORMAL;
+    } else {
+      // Navigations: address bar, clicks, frames, history, reloads, etc.
+      return DOCUMENT;
+    }
+  }
+}
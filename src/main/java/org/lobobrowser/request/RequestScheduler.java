@@ -0,0 +1,277 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cobraparser.util.SimpleThreadPoolTask;
+import org.lobobrowser.utils.VirtualThreads;
+
+/**
+ * A thread pool for network requests. Tasks are served in order of
+ * {@link RequestPriority}, and at most <code>maxPerHost</code> tasks of the
+ * same origin run concurrently, so that a slow host does not hold up requests
+ * to other hosts. The total number of running tasks is capped by the number of
+ * worker threads.
+ * <p>
+ * In virtual thread mode every task is started on its own virtual thread, and
+ * only the per-host limit applies.
+ */
+final class RequestScheduler {
+  private static final Logger logger = Logger.getLogger(RequestScheduler.class.getName());
+  private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+  private final String name;
+  private final int maxThreads;
+  private final int maxPerHost;
+  private final int idleTimeoutMillis;
+  private final BooleanSupplier virtualThreadsEnabled;
+
+  private final ArrayDeque<Entry>[] queues;
+  private final List<Entry> runningEntries = new ArrayList<>();
+  private final Map<String, Integer> activePerHost = new HashMap<>();
+
+  private int numThreads = 0;
+  private int numIdleThreads = 0;
+  private int queueDepth = 0;
+  private int peakQueueDepth = 0;
+  private long numScheduled = 0;
+  private long numStarted = 0;
+  private long totalWaitNanos = 0;
+  private long maxWaitNanos = 0;
+
+  @SuppressWarnings("unchecked")
+  RequestScheduler(final String name, final int maxThreads, final int maxPerHost, final int idleTimeoutMillis,
+      final BooleanSupplier virtualThreadsEnabled) {
+    this.name = name;
+    this.virtualThreadsEnabled = virtualThreadsEnabled;
+    this.maxThreads = maxThreads;
+    this.maxPerHost = maxPerHost;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.queues = new ArrayDeque[PRIORITIES.length];
+    for (int i = 0; i < PRIORITIES.length; i++) {
+      this.queues[i] = new ArrayDeque<>();
+    }
+  }
+
+  public void schedule(final SimpleThreadPoolTask task, final String host, final RequestPriority priority) {
+    synchronized (this) {
+      this.queues[priority.ordinal()].addLast(new Entry(task, host));
+      this.numScheduled++;
+      this.queueDepth++;
+      if (this.queueDepth > this.peakQueueDepth) {
+        this.peakQueueDepth = this.queueDepth;
+      }
+      if (this.isVirtual()) {
+        this.dispatchToVirtualThreads();
+      } else if ((this.numIdleThreads == 0) && (this.numThreads < this.maxThreads)) {
+        this.startWorker();
+      } else {
+        this.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Removes the given task from the queue if it has not started yet.
+   *
+   * @return Whether the task was found in the queue.
+   */
+  public boolean cancel(final SimpleThreadPoolTask task) {
+    synchronized (this) {
+      for (final ArrayDeque<Entry> queue : this.queues) {
+        final Iterator<Entry> i = queue.iterator();
+        while (i.hasNext()) {
+          if (i.next().task.equals(task)) {
+            i.remove();
+            this.queueDepth--;
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Clears the queue and cancels all running tasks.
+   */
+  public void cancelAll() {
+    final List<Entry> running;
+    synchronized (this) {
+      for (final ArrayDeque<Entry> queue : this.queues) {
+        queue.clear();
+      }
+      this.queueDepth = 0;
+      running = new ArrayList<>(this.runningEntries);
+    }
+    for (final Entry entry : running) {
+      entry.task.cancel();
+    }
+  }
+
+  public RequestSchedulerInfo getInfo() {
+    synchronized (this) {
+      final int[] depths = new int[this.queues.length];
+      for (int i = 0; i < depths.length; i++) {
+        depths[i] = this.queues[i].size();
+      }
+      final long avgWaitMillis = this.numStarted == 0 ? 0 : (this.totalWaitNanos / this.numStarted) / 1000000;
+      return new RequestSchedulerInfo(this.queueDepth, depths, this.peakQueueDepth, this.runningEntries.size(), this.numThreads,
+          this.numScheduled, this.numStarted, avgWaitMillis, this.maxWaitNanos / 1000000, new HashMap<>(this.activePerHost));
+    }
+  }
+
+  private boolean isVirtual() {
+    return this.virtualThreadsEnabled.getAsBoolean() && VirtualThreads.isSupported();
+  }
+
+  private void startWorker() {
+    // Must be called holding the lock.
+    this.numThreads++;
+    VirtualThreads.start(new Worker(), this.name + "-" + this.numThreads, false);
+  }
+
+  private void dispatchToVirtualThreads() {
+    // Must be called holding the lock.
+    Entry entry;
+    while ((entry = this.pollRunnable()) != null) {
+      this.markStarted(entry);
+      final Entry startedEntry = entry;
+      VirtualThreads.start(() -> this.runEntry(startedEntry), this.name + "-virtual", true);
+    }
+  }
+
+  private void runEntry(final Entry entry) {
+    try {
+      entry.task.run();
+    } catch (final Throwable err) {
+      logger.log(Level.SEVERE, "run(): Task threw an exception.", err);
+    } finally {
+      synchronized (this) {
+        this.markDone(entry);
+      }
+    }
+  }
+
+  private Entry pollRunnable() {
+    // Must be called holding the lock.
+    final int maxPerHost = this.maxPerHost;
+    for (final ArrayDeque<Entry> queue : this.queues) {
+      final Iterator<Entry> i = queue.iterator();
+      while (i.hasNext()) {
+        final Entry entry = i.next();
+        final Integer active = this.activePerHost.get(entry.host);
+        if ((active == null) || (active.intValue() < maxPerHost)) {
+          i.remove();
+          return entry;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void markStarted(final Entry entry) {
+    // Must be called holding the lock.
+    this.queueDepth--;
+    this.numStarted++;
+    final long waitNanos = System.nanoTime() - entry.scheduledNanos;
+    this.totalWaitNanos += waitNanos;
+    if (waitNanos > this.maxWaitNanos) {
+      this.maxWaitNanos = waitNanos;
+    }
+    this.activePerHost.merge(entry.host, 1, Integer::sum);
+    this.runningEntries.add(entry);
+  }
+
+  private void markDone(final Entry entry) {
+    // Must be called holding the lock.
+    this.runningEntries.remove(entry);
+    final Integer active = this.activePerHost.get(entry.host);
+    if ((active == null) || (active.intValue() <= 1)) {
+      this.activePerHost.remove(entry.host);
+    } else {
+      this.activePerHost.put(entry.host, active - 1);
+    }
+    // A per-host slot was freed, so a queued task may now be runnable.
+    if (this.isVirtual()) {
+      this.dispatchToVirtualThreads();
+    }
+    this.notifyAll();
+  }
+
+  private static final class Entry {
+    private final SimpleThreadPoolTask task;
+    private final String host;
+    private final long scheduledNanos;
+
+    private Entry(final SimpleThreadPoolTask task, final String host) {
+      this.task = task;
+      this.host = host == null ? "" : host;
+      this.scheduledNanos = System.nanoTime();
+    }
+  }
+
+  private class Worker implements Runnable {
+    public void run() {
+      final RequestScheduler scheduler = RequestScheduler.this;
+      for (;;) {
+        Entry entry;
+        synchronized (scheduler) {
+          long waitStart = System.currentTimeMillis();
+          for (;;) {
+            entry = scheduler.pollRunnable();
+            if (entry != null) {
+              scheduler.markStarted(entry);
+              break;
+            }
+            final long idleMillis = System.currentTimeMillis() - waitStart;
+            if (idleMillis >= scheduler.idleTimeoutMillis) {
+              scheduler.numThreads--;
+              return;
+            }
+            scheduler.numIdleThreads++;
+            try {
+              scheduler.wait(scheduler.idleTimeoutMillis - idleMillis);
+            } catch (final InterruptedException ie) {
+              // ignore
+            } finally {
+              scheduler.numIdleThreads--;
+            }
+            if (scheduler.queueDepth > 0) {
+              // Only idle time without pending work counts toward the timeout.
+              waitStart = System.currentTimeMillis();
+            }
+          }
+        }
+        scheduler.runEntry(entry);
+      }
+    }
+  }
+}
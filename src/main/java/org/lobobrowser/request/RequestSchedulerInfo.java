@@ -0,0 +1,64 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.util.Map;
+
+/**
+ * A snapshot of request scheduler counters.
+ *
+ * @see RequestEngine#getSchedulerInfo()
+ */
+public class RequestSchedulerInfo {
+  public final int queueDepth;
+  /** Queue depth indexed by {@link RequestPriority} ordinal. */
+  public final int[] queueDepthByPriority;
+  public final int peakQueueDepth;
+  public final int numRunning;
+  public final int numThreads;
+  public final long numScheduled;
+  public final long numStarted;
+  public final long averageWaitMillis;
+  public final long maxWaitMillis;
+  public final Map<String, Integer> runningPerHost;
+
+  public RequestSchedulerInfo(final int queueDepth, final int[] queueDepthByPriority, final int peakQueueDepth, final int numRunning,
+      final int numThreads, final long numScheduled, final long numStarted, final long averageWaitMillis, final long maxWaitMillis,
+      final Map<String, Integer> runningPerHost) {
+    this.queueDepth = queueDepth;
+    this.queueDepthByPriority = queueDepthByPriority;
+    this.peakQueueDepth = peakQueueDepth;
+    this.numRunning = numRunning;
+    this.numThreads = numThreads;
+    this.numScheduled = numScheduled;
+    this.numStarted = numStarted;
+    this.averageWaitMillis = averageWaitMillis;
+    this.maxWaitMillis = maxWaitMillis;
+    this.runningPerHost = runningPerHost;
+  }
+
+  @Override
+  public String toString() {
+    return "RequestSchedulerInfo[queueDepth=" + this.queueDepth + ",peakQueueDepth=" + this.peakQueueDepth + ",numRunning="
+        + this.numRunning + ",numThreads=" + this.numThreads + ",numStarted=" + this.numStarted + ",averageWaitMillis="
+        + this.averageWaitMillis + ",maxWaitMillis=" + this.maxWaitMillis + "]";
+  }
+}
@@ -0,0 +1,72 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.net.URL;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cobraparser.clientlet.ClientletResponse;
+import org.cobraparser.ua.ProgressType;
+import org.cobraparser.ua.RequestType;
+import org.cobraparser.ua.UserAgentContext;
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Revalidates a cache entry that was served stale. The request is always sent
+ * to the network, conditionally if possible, and the response only updates the
+ * cache.
+ */
+final class RevalidationRequestHandler extends SimpleRequestHandler {
+  private static final Logger logger = Logger.getLogger(RevalidationRequestHandler.class.getName());
+  private final Runnable onDone;
+
+  RevalidationRequestHandler(final @NonNull URL url, final UserAgentContext uaContext, final Runnable onDone) {
+    super(url, RequestType.ELEMENT, uaContext);
+    this.onDone = onDone;
+  }
+
+  @Override
+  public void processResponse(final ClientletResponse response) {
+    // Nothing to do. The response is read to EOF when the cache is updated.
+  }
+
+  @Override
+  public boolean isCacheBypassed() {
+    return true;
+  }
+
+  @Override
+  public boolean handleException(final ClientletResponse response, final Throwable exception, final RequestType requestType) {
+    if (logger.isLoggable(Level.INFO)) {
+      logger.log(Level.INFO, "handleException(): Unable to revalidate " + this.getLatestRequestURL() + ".", exception);
+    }
+    return true;
+  }
+
+  @Override
+  public void handleProgress(final ProgressType progressType, final @NonNull URL url, final String method, final int value,
+      final int max) {
+    if (progressType == ProgressType.DONE) {
+      this.onDone.run();
+    }
+  }
+}
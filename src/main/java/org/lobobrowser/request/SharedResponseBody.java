@@ -0,0 +1,376 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cobraparser.util.io.IORoutines;
+
+/**
+ * The body of an HTTP response that identical requests share while it is
+ * received.
+ * <p>
+ * The body is buffered in chunks as it arrives, and every request reads it
+ * through its own stream, from the start, at its own pace. There is no thread
+ * filling the buffer: a stream that needs bytes beyond the end of the buffer
+ * reads them from the connection itself, while streams that wait for the same
+ * bytes block only until they arrive. Requests may join only while the
+ * buffered body is at most {@link #MAX_JOINABLE_LENGTH} long and
+ * {@link #stopSharing()} has not been called. After that, chunks no stream
+ * needs any more are released.
+ */
+final class SharedResponseBody {
+  private static final Logger logger = Logger.getLogger(SharedResponseBody.class.getName());
+  static final int MAX_JOINABLE_LENGTH = 4 * 1024 * 1024;
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private final HttpURLConnection connection;
+  private final int responseCode;
+  private final String responseMessage;
+  /** Header keys and values in response order; the status line has no key. */
+  private final List<String[]> headers = new ArrayList<>();
+  private final List<byte[]> chunks = new ArrayList<>();
+  private final Set<Reader> readers = Collections.newSetFromMap(new IdentityHashMap<>());
+  private InputStream source;
+  private long length = 0;
+  private boolean filling = false;
+  private boolean reachedEOF = false;
+  private boolean sourceClosed = false;
+  private IOException failure;
+  private boolean joinable = true;
+
+  /**
+   * @param connection
+   *          A connection whose response headers have been received.
+   */
+  SharedResponseBody(final HttpURLConnection connection) throws IOException {
+    this.connection = connection;
+    this.responseCode = connection.getResponseCode();
+    this.responseMessage = connection.getResponseMessage();
+    // The shared body is decoded, so the encoding and encoded length do not
+    // describe it.
+    final boolean decoded = connection.getContentEncoding() != null;
+    for (int i = 0;; i++) {
+      final String key = connection.getHeaderFieldKey(i);
+      final String value = connection.getHeaderField(i);
+      if ((key == null) && (value == null)) {
+        if (i == 0) {
+          continue;
+        }
+        break;
+      }
+      if (decoded && ("Content-Encoding".equalsIgnoreCase(key) || "Content-Length".equalsIgnoreCase(key))) {
+        continue;
+      }
+      this.headers.add(new String[] { key, value });
+    }
+  }
+
+  /**
+   * Opens a stream over the whole body for the request that received it. The
+   * connection is closed once every opened stream is closed and
+   * {@link #stopSharing()} was called, so the stream should be opened before
+   * the body is shared.
+   */
+  InputStream open() {
+    synchronized (this) {
+      final Reader reader = new Reader();
+      this.readers.add(reader);
+      return reader;
+    }
+  }
+
+  /**
+   * Lets another request read the body.
+   *
+   * @return A connection that serves the shared response, or
+   *         <code>null</code> if the body can no longer be joined.
+   */
+  HttpURLConnection join(final URL url) {
+    synchronized (this) {
+      if (!this.joinable || (this.failure != null)) {
+        return null;
+      }
+      final Reader reader = new Reader();
+      this.readers.add(reader);
+      return new Connection(url, reader);
+    }
+  }
+
+  /**
+   * Stops other requests from joining. The body stays available to the
+   * streams already opened.
+   */
+  void stopSharing() {
+    synchronized (this) {
+      this.joinable = false;
+      this.releaseUnusedChunks();
+    }
+  }
+
+  private int read(final Reader reader, final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    byte[] chunk;
+    int chunkOffset;
+    int readLength;
+    synchronized (this) {
+      for (;;) {
+        if (!this.readers.contains(reader)) {
+          throw new IOException("Stream closed.");
+        }
+        if (reader.position < this.length) {
+          final long position = reader.position;
+          chunk = this.chunks.get((int) (position / CHUNK_SIZE));
+          chunkOffset = (int) (position % CHUNK_SIZE);
+          final int numRead = (int) Math.min(len, Math.min(this.length - position, CHUNK_SIZE - chunkOffset));
+          System.arraycopy(chunk, chunkOffset, b, off, numRead);
+          reader.position += numRead;
+          return numRead;
+        }
+        if (this.reachedEOF) {
+          return -1;
+        }
+        if (this.failure != null) {
+          throw new IOException("Shared response failed.", this.failure);
+        }
+        if (!this.filling) {
+          break;
+        }
+        try {
+          this.wait();
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      // Only the filling stream writes past the end of the buffer, so the
+      // rest of the last chunk can be written without holding the lock.
+      this.filling = true;
+      chunkOffset = (int) (this.length % CHUNK_SIZE);
+      if (chunkOffset == 0) {
+        chunk = new byte[CHUNK_SIZE];
+        this.chunks.add(chunk);
+      } else {
+        chunk = this.chunks.get(this.chunks.size() - 1);
+      }
+      readLength = CHUNK_SIZE - chunkOffset;
+    }
+    int numRead = -1;
+    IOException failure = null;
+    try {
+      InputStream source = this.source;
+      if (source == null) {
+        source = IORoutines.getDecodedStream(this.connection);
+        this.source = source;
+      }
+      numRead = source.read(chunk, chunkOffset, readLength);
+    } catch (final IOException ioe) {
+      failure = ioe;
+    }
+    synchronized (this) {
+      this.filling = false;
+      if (failure != null) {
+        this.failure = failure;
+        this.closeSource();
+      } else if (numRead == -1) {
+        this.reachedEOF = true;
+        this.closeSource();
+      } else {
+        this.length += numRead;
+        if (this.length > MAX_JOINABLE_LENGTH) {
+          this.joinable = false;
+        }
+        this.releaseUnusedChunks();
+      }
+      if (this.readers.isEmpty() && !this.joinable) {
+        this.closeSource();
+      }
+      this.notifyAll();
+    }
+    // The stream copies the new bytes on its next pass.
+    return this.read(reader, b, off, len);
+  }
+
+  private void close(final Reader reader) {
+    synchronized (this) {
+      if (this.readers.remove(reader)) {
+        this.releaseUnusedChunks();
+        if (this.readers.isEmpty() && !this.joinable) {
+          this.closeSource();
+        }
+        this.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Releases the chunks before the position of every open stream, once no
+   * other request can join and read them from the start.
+   */
+  private void releaseUnusedChunks() {
+    if (this.joinable) {
+      return;
+    }
+    long minPosition = this.length;
+    for (final Reader reader : this.readers) {
+      minPosition = Math.min(minPosition, reader.position);
+    }
+    final int unusedChunks = (int) (minPosition / CHUNK_SIZE);
+    for (int i = 0; i < unusedChunks; i++) {
+      this.chunks.set(i, null);
+    }
+  }
+
+  private void closeSource() {
+    if (!this.sourceClosed && !this.filling) {
+      this.sourceClosed = true;
+      final InputStream source = this.source;
+      if (source != null) {
+        try {
+          source.close();
+        } catch (final IOException ioe) {
+          logger.log(Level.WARNING, "closeSource()", ioe);
+        }
+      } else if (!this.reachedEOF) {
+        // Nothing was read from the connection, so it cannot be reused.
+        this.connection.disconnect();
+      }
+    }
+  }
+
+  private final class Reader extends InputStream {
+    private long position = 0;
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      final int numRead = this.read(b, 0, 1);
+      return numRead == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      return SharedResponseBody.this.read(this, b, off, len);
+    }
+
+    @Override
+    public int available() {
+      synchronized (SharedResponseBody.this) {
+        return (int) Math.min(Integer.MAX_VALUE, SharedResponseBody.this.length - this.position);
+      }
+    }
+
+    @Override
+    public void close() {
+      SharedResponseBody.this.close(this);
+    }
+  }
+
+  /**
+   * Serves the shared response to a request that joined it. Header lookups
+   * are answered from the headers of the original response.
+   */
+  private final class Connection extends HttpURLConnection {
+    private final Reader reader;
+
+    private Connection(final URL url, final Reader reader) {
+      super(url);
+      this.reader = reader;
+      this.connected = true;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void disconnect() {
+      this.reader.close();
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return SharedResponseBody.this.responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() {
+      return SharedResponseBody.this.responseMessage;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return this.reader;
+    }
+
+    @Override
+    public String getHeaderField(final String name) {
+      String value = null;
+      for (final String[] header : SharedResponseBody.this.headers) {
+        if ((header[0] != null) && header[0].equalsIgnoreCase(name)) {
+          value = header[1];
+        }
+      }
+      return value;
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int n) {
+      final List<String[]> headers = SharedResponseBody.this.headers;
+      return n < headers.size() ? headers.get(n)[0] : null;
+    }
+
+    @Override
+    public String getHeaderField(final int n) {
+      final List<String[]> headers = SharedResponseBody.this.headers;
+      return n < headers.size() ? headers.get(n)[1] : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+      final Map<String, List<String>> fields = new LinkedHashMap<>();
+      for (final String[] header : SharedResponseBody.this.headers) {
+        fields.computeIfAbsent(header[0], k -> new ArrayList<>()).add(header[1]);
+      }
+      return Collections.unmodifiableMap(fields);
+    }
+  }
+}
@@ -41,6 +41,8 @@ import javax.imageio.ImageIO;
 import javax.swing.SwingUtilities;
 
 import org.lobobrowser.LoboBrowser;
+import org.lobobrowser.settings.ConnectionSettings;
+import org.lobobrowser.utils.VirtualThreads;
 import org.cobraparser.util.gui.DefferedLayoutSupport;
 import org.cobraparser.clientlet.ComponentContent;
 import org.cobraparser.ua.NavigatorFrame;
@@ -54,9 +56,7 @@ class GrinderServer implements Runnable {
   public GrinderServer(final NavigatorFrame frame) throws IOException {
     this.frame = frame;
     socket = new ServerSocket(0);
-    final Thread t = new Thread(this, "GrinderServer");
-    t.setDaemon(true);
-    t.start();
+    VirtualThreads.start(this, "GrinderServer", ConnectionSettings.getInstance().isVirtualThreadsEnabled());
 
   }
 
@@ -12,10 +12,19 @@ import org.jooq.Result;
 
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DBRequestRuleStore implements RequestRuleStore {
   private final DSLContext userDB;
+
+  /**
+   * All rules, keyed by frame host pattern and request host. The rules are
+   * loaded once so that lookups never hit the database; changes are written
+   * through.
+   */
+  private final Map<Pair<String, String>, Integer> rules = new ConcurrentHashMap<>();
   private static final PermissionSystem.Permission[] defaultPermissions = new PermissionSystem.Permission[RequestKind.numKinds()];
   static {
     for (int i = 0; i < defaultPermissions.length; i++) {
@@ -33,6 +42,7 @@ public class DBRequestRuleStore implements RequestRuleStore {
   public DBRequestRuleStore() {
     final StorageManager storageManager = StorageManager.getInstance();
     userDB = storageManager.getDB();
+    loadRules();
     if (!userDB.fetchOne(Globals.GLOBALS).getPermissionsinitialized()) {
       HelperPrivate.initStore(this);
       userDB.fetchOne(Globals.GLOBALS).setPermissionsinitialized(true);
@@ -43,18 +53,21 @@ public class DBRequestRuleStore implements RequestRuleStore {
     return Permissions.PERMISSIONS.FRAMEHOST.equal(frameHost).and(Permissions.PERMISSIONS.REQUESTHOST.equal(requestHost));
   }
 
-  public Pair<PermissionSystem.Permission, PermissionSystem.Permission[]> getPermissions(final String frameHostPattern, final String requestHost) {
+  private void loadRules() {
     final Result<PermissionsRecord> permissionRecords = AccessController.doPrivileged((PrivilegedAction<Result<PermissionsRecord>>) () -> {
-      return userDB.fetch(Permissions.PERMISSIONS, matchHostsCondition(frameHostPattern, requestHost));
+      return userDB.fetch(Permissions.PERMISSIONS);
     });
+    for (final PermissionsRecord record : permissionRecords) {
+      rules.put(Pair.with(record.getFramehost(), record.getRequesthost()), record.getPermissions());
+    }
+  }
 
-    if (permissionRecords.isEmpty()) {
+  public Pair<PermissionSystem.Permission, PermissionSystem.Permission[]> getPermissions(final String frameHostPattern, final String requestHost) {
+    final Integer existingPermissions = rules.get(Pair.with(frameHostPattern, requestHost));
+    if (existingPermissions == null) {
       return defaultPermissionPair;
     } else {
-      final PermissionsRecord existingRecord = permissionRecords.get(0);
-      final Integer existingPermissions = existingRecord.getPermissions();
-      final Pair<PermissionSystem.Permission, PermissionSystem.Permission[]> permissions = decodeBitMask(existingPermissions);
-      return permissions;
+      return decodeBitMask(existingPermissions);
     }
   }
 
@@ -78,8 +91,13 @@ public class DBRequestRuleStore implements RequestRuleStore {
     }
   }
 
-  public void storePermissions(final String frameHost, final String requestHost, final Optional<RequestKind> kindOpt,
+  public synchronized void storePermissions(final String frameHost, final String requestHost, final Optional<RequestKind> kindOpt,
       final PermissionSystem.Permission permission) {
+    final Pair<String, String> key = Pair.with(frameHost, requestHost);
+    final Integer cachedPermissions = rules.get(key);
+    final int cachedBase = cachedPermissions == null ? 0 : cachedPermissions;
+    rules.put(key, (cachedBase & makeBitBlockMask(kindOpt)) | makeBitSetMask(kindOpt, permission));
+
     final Result<PermissionsRecord> permissionRecords = AccessController.doPrivileged((PrivilegedAction<Result<PermissionsRecord>>) () -> {
       return userDB.fetch(Permissions.PERMISSIONS, matchHostsCondition(frameHost, requestHost));
     });
@@ -60,6 +60,20 @@ public class LocalSecurityPolicy extends Policy {
   private static final Collection<Permission> CORE_PERMISSIONS = new LinkedList<>();
   private static final Collection<Permission> EXTENSION_PERMISSIONS = new LinkedList<>();
 
+  private static final int MAX_CACHED_CODE_SOURCES = 256;
+  private static final int MAX_CACHED_CANONICAL_PATHS = 1024;
+  private static final PermissionCollection NO_CODE_SOURCE_PERMISSIONS;
+
+  /** Canonical paths of local code locations, by path. */
+  private static final Map<String, String> canonicalPaths = new LinkedHashMap<String, String>(64, 0.75f, true) {
+    private static final long serialVersionUID = 2410584196326154281L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+      return this.size() > MAX_CACHED_CANONICAL_PATHS;
+    }
+  };
+
   private static String JAVA_HOME_URL;
 
   static {
@@ -89,6 +103,12 @@ public class LocalSecurityPolicy extends Policy {
     permissions.add(new AWTPermission("*"));
     permissions.add(new HistoryPermission());
 
+    final Permissions noCodeSourcePermissions = new Permissions();
+    // permissions.add(new AllPermission()); // TODO: Whoa! all permissions?
+    noCodeSourcePermissions.add(new PropertyPermission("*", "read"));
+    noCodeSourcePermissions.setReadOnly();
+    NO_CODE_SOURCE_PERMISSIONS = noCodeSourcePermissions;
+
     // We need to compute this early. But we can add them to core later
     addExtensionPermissions(EXTENSION_PERMISSIONS);
     initCorePermissions();
@@ -198,8 +218,22 @@ public class LocalSecurityPolicy extends Policy {
    */
   public static void addPrivilegedPermission(final Permission permission) {
     BASE_PRIVILEGE.add(permission);
+    instance.clearPermissionCache();
   }
 
+  /** Computed permissions, read-only, by code source. */
+  private final Map<PermissionKey, PermissionCollection> permissionCache = new LinkedHashMap<PermissionKey, PermissionCollection>(64,
+      0.75f, true) {
+    private static final long serialVersionUID = -6390476415260911207L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<PermissionKey, PermissionCollection> eldest) {
+      return this.size() > MAX_CACHED_CODE_SOURCES;
+    }
+  };
+  /** Incremented when cached permissions become outdated. */
+  private int permissionGeneration = 0;
+
   /**
    *
    */
@@ -235,20 +269,8 @@ public class LocalSecurityPolicy extends Policy {
       }
       // Files under the settings directory (e.g. cached JARs)
       // are considered remote.
-      final String filePath = url.getPath();
-      final Boolean result = AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
-        public Boolean run() {
-          final File file = new File(filePath);
-          try {
-            final String canonical = file.getCanonicalPath();
-            return !canonical.startsWith(STORE_DIRECTORY_CANONICAL);
-          } catch (final IOException ioe) {
-            ioe.printStackTrace(System.err);
-            return false;
-          }
-        }
-      });
-      return result.booleanValue();
+      final String canonical = getCanonicalPath(url.getPath());
+      return (canonical != null) && !canonical.startsWith(STORE_DIRECTORY_CANONICAL);
     } else if ("jar".equalsIgnoreCase(scheme)) {
       final String path = url.getPath();
       final int emIdx = path.lastIndexOf('!');
@@ -268,6 +290,36 @@ public class LocalSecurityPolicy extends Policy {
     }
   }
 
+  /**
+   * Gets the canonical form of a path, or <code>null</code> if it can't be
+   * determined.
+   */
+  private static String getCanonicalPath(final String filePath) {
+    synchronized (canonicalPaths) {
+      final String canonical = canonicalPaths.get(filePath);
+      if (canonical != null) {
+        return canonical;
+      }
+    }
+    final String canonical = AccessController.doPrivileged(new PrivilegedAction<String>() {
+      public String run() {
+        final File file = new File(filePath);
+        try {
+          return file.getCanonicalPath();
+        } catch (final IOException ioe) {
+          ioe.printStackTrace(System.err);
+          return null;
+        }
+      }
+    });
+    if (canonical != null) {
+      synchronized (canonicalPaths) {
+        canonicalPaths.put(filePath, canonical);
+      }
+    }
+    return canonical;
+  }
+
   private final static URL unoPath;
   static {
     URL unoPathTemp = null;
@@ -296,14 +348,69 @@ public class LocalSecurityPolicy extends Policy {
    */
   @Override
   public PermissionCollection getPermissions(final CodeSource codesource) {
+    // Callers may add permissions to the collection, so it is a copy.
+    final Permissions permissions = new Permissions();
+    final Enumeration<Permission> cached = this.getCachedPermissions(codesource).elements();
+    while (cached.hasMoreElements()) {
+      permissions.add(cached.nextElement());
+    }
+    return permissions;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.security.Policy#implies(java.security.ProtectionDomain,
+   * java.security.Permission)
+   */
+  @Override
+  public boolean implies(final ProtectionDomain domain, final Permission permission) {
+    final CodeSource codesource = domain == null ? null : domain.getCodeSource();
+    if (this.getCachedPermissions(codesource).implies(permission)) {
+      return true;
+    }
+    final PermissionCollection staticPermissions = domain == null ? null : domain.getPermissions();
+    return (staticPermissions != null) && staticPermissions.implies(permission);
+  }
+
+  private void clearPermissionCache() {
+    synchronized (this.permissionCache) {
+      this.permissionCache.clear();
+      this.permissionGeneration++;
+    }
+  }
+
+  /**
+   * Gets the read-only permissions of a code source, computing them only if
+   * they are not cached.
+   */
+  private PermissionCollection getCachedPermissions(final CodeSource codesource) {
     if (codesource == null) {
       // throw new AccessControlException("codesource was null");
       // Open issue GH: #117
-      final Permissions permissions = new Permissions();
-      // permissions.add(new AllPermission()); // TODO: Whoa! all permissions?
-      permissions.add(new PropertyPermission("*", "read"));
-      return permissions;
+      return NO_CODE_SOURCE_PERMISSIONS;
     }
+    final PermissionKey key = new PermissionKey(codesource);
+    final int generation;
+    synchronized (this.permissionCache) {
+      final PermissionCollection cached = this.permissionCache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      generation = this.permissionGeneration;
+    }
+    final PermissionCollection permissions = this.computePermissions(codesource);
+    permissions.setReadOnly();
+    synchronized (this.permissionCache) {
+      // Permissions computed from an outdated base set are not kept.
+      if (generation == this.permissionGeneration) {
+        this.permissionCache.put(key, permissions);
+      }
+    }
+    return permissions;
+  }
+
+  private PermissionCollection computePermissions(final CodeSource codesource) {
 
     if (LoboBrowser.getInstance().debugOn) {
       System.out.println("Codesource: " + codesource.getLocation());
@@ -448,4 +555,33 @@ public class LocalSecurityPolicy extends Policy {
     return permissions;
   }
 
+  /**
+   * Identifies a code source by its location and signers. URLs are compared
+   * by their text, so no host name lookup is done.
+   */
+  private static final class PermissionKey {
+    private final String location;
+    private final java.util.List<java.security.cert.Certificate> certificates;
+
+    PermissionKey(final CodeSource codesource) {
+      final URL location = codesource.getLocation();
+      this.location = location == null ? null : location.toExternalForm();
+      final java.security.cert.Certificate[] certificates = codesource.getCertificates();
+      this.certificates = certificates == null ? Collections.emptyList() : Arrays.asList(certificates);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof PermissionKey)) {
+        return false;
+      }
+      final PermissionKey otherKey = (PermissionKey) other;
+      return Objects.equals(this.location, otherKey.location) && this.certificates.equals(otherKey.certificates);
+    }
+
+    @Override
+    public int hashCode() {
+      return (Objects.hashCode(this.location) * 31) + this.certificates.hashCode();
+    }
+  }
 }
@@ -6,6 +6,7 @@ import org.javatuples.Pair;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -45,6 +46,13 @@ public class PermissionSystem {
   private final RequestRuleStore store;
   final String frameHost;
 
+  /**
+   * Effective permissions of the last board compiled per request host and
+   * indexed by request kind ordinal. The arrays are never modified once
+   * published, and the table is cleared whenever a rule changes.
+   */
+  private final Map<String, boolean[]> decisionTable = new ConcurrentHashMap<>();
+
   public PermissionSystem(final String frameHost, final RequestRuleStore store) {
     this.frameHost = frameHost;
     this.store = store;
@@ -59,7 +67,12 @@ public class PermissionSystem {
   public boolean isRequestPermitted(final Request request) {
     final String protocol = request.url.getProtocol();
     if ("http".equals(protocol) || "https".equals(protocol) || "data".equals(protocol)) {
-      return getLastBoard().isRequestPermitted(request);
+      final String requestHost = request.url.getHost().toLowerCase();
+      boolean[] decisions = decisionTable.get(requestHost);
+      if (decisions == null) {
+        decisions = compileDecisions(requestHost);
+      }
+      return decisions[request.kind.ordinal()];
     } else if ("about".equals(protocol)) {
       return request.url.toString().equals("about:blank");
     } else {
@@ -69,6 +82,26 @@ public class PermissionSystem {
     }
   }
 
+  private synchronized boolean[] compileDecisions(final String requestHost) {
+    final boolean[] existing = decisionTable.get(requestHost);
+    if (existing != null) {
+      return existing;
+    }
+    final PermissionBoard.PermissionRow row = getLastBoard().getRow(requestHost);
+    final boolean[] decisions = new boolean[RequestKind.numKinds()];
+    for (int i = 0; i < decisions.length; i++) {
+      decisions[i] = row.getRequestCell(i).getEffectivePermission().permission == Permission.Allow;
+    }
+    decisionTable.put(requestHost, decisions);
+    return decisions;
+  }
+
+  private synchronized void invalidateDecisions() {
+    // A rule can affect the rows of other hosts through the header rows and
+    // the fallback board, so the whole table is recompiled lazily.
+    decisionTable.clear();
+  }
+
   public List<PermissionBoard> getBoards() {
     return boards;
   }
@@ -115,6 +148,12 @@ public class PermissionSystem {
     }
 
     public PermissionRow getRow(final String requestHost) {
+      synchronized (PermissionSystem.this) {
+        return getRowLocked(requestHost);
+      }
+    }
+
+    private PermissionRow getRowLocked(final String requestHost) {
       final PermissionRow row = requestHostMap.get(requestHost);
       if (row == null) {
         final Optional<PermissionRow> fallbackRow = fallbackBoardOpt.map(b -> b.getRow(requestHost));
@@ -293,7 +332,10 @@ public class PermissionSystem {
         }
 
         public void setPermission(final Permission permission) {
-          myPermission = permission;
+          synchronized (PermissionSystem.this) {
+            myPermission = permission;
+            invalidateDecisions();
+          }
           store.storePermissions(hostPattern, requestHost, kindOpt, permission);
         }
 
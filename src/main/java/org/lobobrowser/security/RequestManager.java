@@ -15,6 +15,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -29,33 +31,32 @@ public final class RequestManager {
   }
 
   private static class RequestCounters {
-    private final int counters[] = new int[UserAgentContext.RequestKind.values().length];
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(UserAgentContext.RequestKind.values().length);
 
     public void updateCounts(final RequestKind kind) {
-      counters[kind.ordinal()]++;
+      counters.incrementAndGet(kind.ordinal());
     }
 
     @Override
     public String toString() {
       return Arrays.stream(RequestKind.values())
-          .map(kind -> String.format(" %2d", counters[kind.ordinal()])).reduce((e, a) -> e + a)
+          .map(kind -> String.format(" %2d", counters.get(kind.ordinal()))).reduce((e, a) -> e + a)
           .orElse("");
     }
   }
 
-  private Map<String, RequestCounters> hostToCounterMap = new HashMap<>();
-  private Optional<PermissionSystem> permissionSystemOpt = Optional.empty();
+  // Requests are checked from many loader threads, so the counters and the
+  // permission system are read without holding the monitor.
+  private volatile Map<String, RequestCounters> hostToCounterMap = new ConcurrentHashMap<>();
+  private volatile Optional<PermissionSystem> permissionSystemOpt = Optional.empty();
 
-  private synchronized void updateCounter(final Request request) {
+  private void updateCounter(final Request request) {
     final String host = request.url.getHost().toLowerCase();
-    ensureHostInCounter(host);
-    hostToCounterMap.get(host).updateCounts(request.kind);
+    hostToCounterMap.computeIfAbsent(host, h -> new RequestCounters()).updateCounts(request.kind);
   }
 
   private void ensureHostInCounter(final String host) {
-    if (!hostToCounterMap.containsKey(host)) {
-      hostToCounterMap.put(host, new RequestCounters());
-    }
+    hostToCounterMap.computeIfAbsent(host, h -> new RequestCounters());
   }
 
   private Optional<NavigationEntry> getFrameNavigationEntry() {
@@ -88,11 +89,27 @@ public final class RequestManager {
   }
 
   public boolean isRequestPermitted(final Request request) {
+    return isRequestPermitted(request, true);
+  }
+
+  /**
+   * Checks a request like {@link #isRequestPermitted(Request)} does, but
+   * without adding it to the request counts. Meant for requests that are only
+   * anticipated, such as host name prefetches.
+   */
+  public boolean isAnticipatedRequestPermitted(final Request request) {
+    return isRequestPermitted(request, false);
+  }
+
+  private boolean isRequestPermitted(final Request request, final boolean count) {
     final Request finalRequest = rewriteRequest(request);
+    final Optional<PermissionSystem> permissionSystemOpt = this.permissionSystemOpt;
 
     if (permissionSystemOpt.isPresent()) {
-      final Boolean permitted = permissionSystemOpt.map(p -> p.isRequestPermitted(finalRequest)).orElse(false);
-      updateCounter(finalRequest);
+      final boolean permitted = permissionSystemOpt.get().isRequestPermitted(finalRequest);
+      if (count) {
+        updateCounter(finalRequest);
+      }
       // dumpCounters();
       return permitted;
     } else {
@@ -129,7 +146,7 @@ public final class RequestManager {
   }
 
   public synchronized void reset(final URL frameUrl) {
-    hostToCounterMap = new HashMap<>();
+    hostToCounterMap = new ConcurrentHashMap<>();
     final String frameHostOrig = frameUrl.getHost();
     final String frameHost = frameHostOrig == null ? "" : frameHostOrig.toLowerCase();
     ensureHostInCounter(frameHost);
@@ -149,7 +166,10 @@ public final class RequestManager {
     return hostToCounterMap.entrySet().stream().map(entry -> {
       final List<String> rowElements = new LinkedList<>();
       rowElements.add(entry.getKey());
-      Arrays.stream(entry.getValue().counters).forEach(c -> rowElements.add(Integer.toString(c)));
+      final AtomicIntegerArray counters = entry.getValue().counters;
+      for (int i = 0; i < counters.length(); i++) {
+        rowElements.add(Integer.toString(counters.get(i)));
+      }
 
       return rowElements.toArray(new String[0]);
     }).toArray(String[][]::new);
@@ -21,9 +21,12 @@
 package org.lobobrowser.settings;
 
 import org.lobobrowser.security.GenericLocalPermission;
+import org.lobobrowser.store.CacheEvictionPolicy;
 import org.lobobrowser.store.CacheManager;
 import org.lobobrowser.store.StorageManager;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,6 +39,9 @@ public class CacheSettings implements Serializable {
   private static final Logger logger = Logger.getLogger(CacheSettings.class.getName());
   private static final CacheSettings instance;
   private static final long serialVersionUID = 22574500900000604L;
+  private static final int DEFAULT_MAX_RAM_CACHE_SIZE = 5 * 1024 * 1024;
+  private static final long DEFAULT_MAX_DISK_CACHE_SIZE = 100000000;
+  private static final int DEFAULT_MAX_ENTRY_PERCENT = 25;
 
   static {
     CacheSettings ins = null;
@@ -75,10 +81,28 @@ public class CacheSettings implements Serializable {
   }
 
   public void resetDefaults() {
-    this.setMaxRAMCacheSize(5 * 1024 * 1024);
+    this.setMaxRAMCacheSize(DEFAULT_MAX_RAM_CACHE_SIZE);
+    this.setMaxDiskCacheSize(DEFAULT_MAX_DISK_CACHE_SIZE);
+    this.setRAMEvictionPolicy(CacheEvictionPolicy.LRU);
+    this.setDiskEvictionPolicy(CacheEvictionPolicy.LRU);
+    this.setMaxEntryPercent(DEFAULT_MAX_ENTRY_PERCENT);
     this.setDefaultCacheExpirationOffset(60);
+    this.setCompressDiskCache(false);
+    this.setMaxStaleSubresourceSeconds(0);
   }
 
+  private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // Settings saved by older versions lack some fields.
+    this.setMaxRAMCacheSize(this.maxRAMCacheSize == 0 ? DEFAULT_MAX_RAM_CACHE_SIZE : this.maxRAMCacheSize);
+    this.setMaxDiskCacheSize(this.maxDiskCacheSize == 0 ? DEFAULT_MAX_DISK_CACHE_SIZE : this.maxDiskCacheSize);
+    this.setRAMEvictionPolicy(this.ramEvictionPolicy == null ? CacheEvictionPolicy.LRU : this.ramEvictionPolicy);
+    this.setDiskEvictionPolicy(this.diskEvictionPolicy == null ? CacheEvictionPolicy.LRU : this.diskEvictionPolicy);
+    this.setMaxEntryPercent(this.maxEntryPercent == 0 ? DEFAULT_MAX_ENTRY_PERCENT : this.maxEntryPercent);
+  }
+
+  private int maxRAMCacheSize;
+
   public int getMaxRAMCacheSize() {
     return CacheManager.getInstance().getMaxTransientCacheSize();
   }
@@ -90,9 +114,97 @@ public class CacheSettings implements Serializable {
    *          The maximum cache size in bytes.
    */
   public void setMaxRAMCacheSize(final int maxRAMCacheSize) {
+    this.maxRAMCacheSize = maxRAMCacheSize;
     CacheManager.getInstance().setMaxTransientCacheSize(maxRAMCacheSize);
   }
 
+  private long maxDiskCacheSize;
+
+  public long getMaxDiskCacheSize() {
+    return CacheManager.getInstance().getMaxPersistentCacheSize();
+  }
+
+  /**
+   * Sets the maximum disk cache size. The cache is trimmed to this size
+   * periodically, so it may be exceeded for a few minutes.
+   *
+   * @param maxDiskCacheSize
+   *          The maximum cache size in bytes.
+   */
+  public void setMaxDiskCacheSize(final long maxDiskCacheSize) {
+    this.maxDiskCacheSize = maxDiskCacheSize;
+    CacheManager.getInstance().setMaxPersistentCacheSize(maxDiskCacheSize);
+  }
+
+  private CacheEvictionPolicy ramEvictionPolicy;
+
+  public CacheEvictionPolicy getRAMEvictionPolicy() {
+    return CacheManager.getInstance().getTransientEvictionPolicy();
+  }
+
+  public void setRAMEvictionPolicy(final CacheEvictionPolicy ramEvictionPolicy) {
+    this.ramEvictionPolicy = ramEvictionPolicy;
+    CacheManager.getInstance().setTransientEvictionPolicy(ramEvictionPolicy);
+  }
+
+  private CacheEvictionPolicy diskEvictionPolicy;
+
+  public CacheEvictionPolicy getDiskEvictionPolicy() {
+    return CacheManager.getInstance().getPersistentEvictionPolicy();
+  }
+
+  public void setDiskEvictionPolicy(final CacheEvictionPolicy diskEvictionPolicy) {
+    this.diskEvictionPolicy = diskEvictionPolicy;
+    CacheManager.getInstance().setPersistentEvictionPolicy(diskEvictionPolicy);
+  }
+
+  private int maxEntryPercent;
+
+  public int getMaxEntryPercent() {
+    return this.maxEntryPercent;
+  }
+
+  /**
+   * Sets the size of the largest document admitted to the RAM or disk cache,
+   * as a percentage of the size of that cache.
+   */
+  public void setMaxEntryPercent(final int maxEntryPercent) {
+    this.maxEntryPercent = maxEntryPercent;
+    CacheManager.getInstance().setMaxEntryPercent(maxEntryPercent);
+  }
+
+  private boolean compressDiskCache;
+
+  public boolean isCompressDiskCache() {
+    return this.compressDiskCache;
+  }
+
+  /**
+   * Sets whether text documents are stored compressed in the disk cache. This
+   * increases how much fits in the cache, at the cost of inflating documents
+   * when they are read back.
+   */
+  public void setCompressDiskCache(final boolean compressDiskCache) {
+    this.compressDiskCache = compressDiskCache;
+  }
+
+  private int maxStaleSubresourceSeconds;
+
+  public int getMaxStaleSubresourceSeconds() {
+    return this.maxStaleSubresourceSeconds;
+  }
+
+  /**
+   * Sets for how many seconds after expiration a cached subresource, such as
+   * an image or a stylesheet, may still be used while it is revalidated in the
+   * background. This applies in addition to the
+   * <code>stale-while-revalidate</code> directive sent by servers. Zero
+   * disables it.
+   */
+  public void setMaxStaleSubresourceSeconds(final int maxStaleSubresourceSeconds) {
+    this.maxStaleSubresourceSeconds = maxStaleSubresourceSeconds;
+  }
+
   private int defaultCacheExpirationOffset;
 
   public int getDefaultCacheExpirationOffset() {
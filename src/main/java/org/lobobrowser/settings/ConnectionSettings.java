@@ -23,10 +23,13 @@
  */
 package org.lobobrowser.settings;
 
+import org.lobobrowser.request.HttpConnectionPool;
 import org.lobobrowser.security.GenericLocalPermission;
 import org.lobobrowser.store.StorageManager;
 import org.cobraparser.util.io.NetRoutines;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Proxy;
@@ -41,6 +44,8 @@ public class ConnectionSettings implements java.io.Serializable {
   private static final Logger logger = Logger.getLogger(ConnectionSettings.class.getName());
   private static final ConnectionSettings instance;
   private static final long serialVersionUID = 22574500000000301L;
+  private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+  private static final int DEFAULT_KEEP_ALIVE_SECONDS = 120;
 
   private Proxy.Type proxyType = Proxy.Type.DIRECT;
   private InetSocketAddress socketAddress = null;
@@ -48,6 +53,9 @@ public class ConnectionSettings implements java.io.Serializable {
   private String password;
   private boolean authenticated;
   private boolean disableProxyForLocalAddresses;
+  private boolean virtualThreadsEnabled;
+  private int maxIdleConnections;
+  private int keepAliveSeconds;
 
   private transient Proxy proxy;
 
@@ -76,6 +84,9 @@ public class ConnectionSettings implements java.io.Serializable {
     this.authenticated = false;
     this.socketAddress = null;
     this.disableProxyForLocalAddresses = true;
+    this.virtualThreadsEnabled = false;
+    this.maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    this.keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
     synchronized (this) {
       this.proxy = null;
     }
@@ -225,11 +236,58 @@ public class ConnectionSettings implements java.io.Serializable {
     }
   }
 
+  /**
+   * Whether requests, downloads and clientlets run on virtual threads. Virtual
+   * threads require Java 21 or later; otherwise platform threads are used.
+   */
+  public boolean isVirtualThreadsEnabled() {
+    return virtualThreadsEnabled;
+  }
+
+  public void setVirtualThreadsEnabled(final boolean virtualThreadsEnabled) {
+    this.virtualThreadsEnabled = virtualThreadsEnabled;
+  }
+
+  /**
+   * Gets the maximum number of idle HTTP connections kept alive for reuse.
+   */
+  public int getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  public void setMaxIdleConnections(final int maxIdleConnections) {
+    this.maxIdleConnections = maxIdleConnections;
+  }
+
+  /**
+   * Gets the number of seconds an idle HTTP connection is kept alive before it
+   * is evicted from the pool.
+   */
+  public int getKeepAliveSeconds() {
+    return keepAliveSeconds;
+  }
+
+  public void setKeepAliveSeconds(final int keepAliveSeconds) {
+    this.keepAliveSeconds = keepAliveSeconds;
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // Settings saved by older versions lack the connection pool fields.
+    if (this.maxIdleConnections == 0) {
+      this.maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    }
+    if (this.keepAliveSeconds == 0) {
+      this.keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    }
+  }
+
   public void save() {
     try {
       StorageManager.getInstance().saveSettings(this.getClass().getSimpleName(), this);
     } catch (final java.io.IOException ioe) {
       logger.log(Level.WARNING, "save(): Unable to save settings", ioe);
     }
+    HttpConnectionPool.getInstance().applySettings();
   }
 }
@@ -18,47 +18,29 @@
 
     Contact info: lobochief@users.sourceforge.net
  */
-/*
- * Created on Jun 12, 2005
- */
 package org.lobobrowser.store;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
-
 /**
- * @author J. H. S.
+ * Order in which cache entries are evicted when a cache tier exceeds its
+ * budget.
  */
-public class CacheStoreInfo {
-  private long length;
-  private final Collection<CacheFileInfo> fileInfos = new ArrayList<>();
-
+public enum CacheEvictionPolicy {
   /**
-   * @param length
-   * @param fileInfos
+   * Evicts the least recently used entries first.
    */
-  public CacheStoreInfo() {
-    super();
-  }
+  LRU,
 
   /**
-   * @return Returns the fileInfos.
+   * Evicts the least frequently used entries first. Ties are broken by
+   * recency.
    */
-  public CacheFileInfo[] getFileInfos() {
-    return this.fileInfos.toArray(new CacheFileInfo[0]);
-  }
+  LFU,
 
   /**
-   * @return Returns the length.
+   * Evicts in LRU order, but only admits a new entry if it has been requested
+   * more often than the entries it would displace. Request frequencies are
+   * estimated with a small sketch that is periodically aged. This keeps
+   * entries that are requested only once from flushing popular ones.
    */
-  public long getLength() {
-    return this.length;
-  }
-
-  public void addCacheFile(final File file) {
-    final CacheFileInfo cfi = new CacheFileInfo(file);
-    this.length += cfi.getInitialLength();
-    this.fileInfos.add(cfi);
-  }
+  TINY_LFU
 }
@@ -0,0 +1,561 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of the files in the persistent cache. It tracks the size, last
+ * access and expiration of each entry, and keeps entries in the order defined
+ * by the {@link CacheEvictionPolicy}, so the total size is always known and
+ * the entries to evict can be found without walking the cache directory.
+ * <p>
+ * Changes are appended to a journal that is replayed on startup. Writes and
+ * removals are flushed right away; accesses are only flushed by
+ * {@link #flush()}, since losing some of them merely makes eviction less
+ * accurate. When there is no readable journal, the index is rebuilt with a
+ * single scan of the cache directory.
+ */
+final class CacheIndex {
+  private static final Logger logger = Logger.getLogger(CacheIndex.class.getName());
+  private static final int JOURNAL_MAGIC = 0x4C4F4249;
+  private static final int JOURNAL_VERSION = 1;
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_TOUCH = 2;
+  private static final byte RECORD_REMOVE = 3;
+  private static final int MIN_RECORDS_FOR_COMPACTION = 1000;
+
+  private final File cacheRoot;
+  private final File journalFile;
+  private final Map<String, Entry> entries = new HashMap<>(256);
+  private CacheEvictionPolicy policy = CacheEvictionPolicy.LRU;
+  private EvictionQueue queue = EvictionQueue.create(CacheEvictionPolicy.LRU);
+  private long totalSize = 0;
+  private long maxSize;
+  private int maxEntryPercent = 100;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long rejections = 0;
+  private DataOutputStream journal;
+  private int numJournalRecords = 0;
+  private boolean loaded = false;
+
+  CacheIndex(final File cacheRoot, final File journalFile, final long maxSize) {
+    this.cacheRoot = cacheRoot;
+    this.journalFile = journalFile;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Decides whether a file that is about to be stored should be admitted.
+   * Replacements of existing entries are always admitted. Entries over budget
+   * are not evicted here; that is left to the periodic sweep.
+   */
+  synchronized boolean admit(final File file, final long size) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    if ((key == null) || this.entries.containsKey(key)) {
+      return true;
+    }
+    if (size > this.getMaxEntrySize()) {
+      this.rejections++;
+      return false;
+    }
+    final long overflow = (this.totalSize + size) - this.maxSize;
+    if ((overflow > 0) && !this.queue.admit(key, this.getVictims(overflow, Long.MAX_VALUE))) {
+      this.rejections++;
+      return false;
+    }
+    return true;
+  }
+
+  synchronized void put(final File file, final long size, final long expires) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    if (key == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    this.putEntry(key, size, now, expires);
+    try {
+      final DataOutputStream out = this.journal;
+      if (out != null) {
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(key);
+        out.writeLong(size);
+        out.writeLong(now);
+        out.writeLong(expires);
+        out.flush();
+        this.numJournalRecords++;
+      }
+    } catch (final IOException ioe) {
+      this.journalFailed(ioe);
+    }
+  }
+
+  /**
+   * Records a lookup of the given file, which counts as a miss if the file is
+   * not in the index.
+   */
+  synchronized void touch(final File file) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    if (key == null) {
+      return;
+    }
+    this.queue.recordRequest(key);
+    final Entry entry = this.entries.get(key);
+    if (entry == null) {
+      this.misses++;
+      return;
+    }
+    this.hits++;
+    final long now = System.currentTimeMillis();
+    entry.lastAccess = now;
+    this.queue.access(key);
+    try {
+      final DataOutputStream out = this.journal;
+      if (out != null) {
+        out.writeByte(RECORD_TOUCH);
+        out.writeUTF(key);
+        out.writeLong(now);
+        this.numJournalRecords++;
+      }
+    } catch (final IOException ioe) {
+      this.journalFailed(ioe);
+    }
+  }
+
+  synchronized void remove(final File file) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    if ((key == null) || (this.removeEntry(key) == null)) {
+      return;
+    }
+    try {
+      final DataOutputStream out = this.journal;
+      if (out != null) {
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(key);
+        out.flush();
+        this.numJournalRecords++;
+      }
+    } catch (final IOException ioe) {
+      this.journalFailed(ioe);
+    }
+  }
+
+  /**
+   * Whether the given file is in the index and has not been accessed at or
+   * after <code>accessedBefore</code>.
+   */
+  synchronized boolean isEvictable(final File file, final long accessedBefore) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    if (key == null) {
+      return false;
+    }
+    final Entry entry = this.entries.get(key);
+    return (entry != null) && (entry.lastAccess < accessedBefore);
+  }
+
+  /**
+   * Removes a file that has been evicted from the index.
+   *
+   * @return The size of the removed entry, or -1 if it was not in the index.
+   */
+  synchronized long evict(final File file) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    if (key == null) {
+      return -1;
+    }
+    final Entry entry = this.entries.get(key);
+    if (entry == null) {
+      return -1;
+    }
+    this.remove(file);
+    this.evictions++;
+    return entry.size;
+  }
+
+  synchronized boolean contains(final File file) {
+    this.ensureLoaded();
+    final String key = this.getKey(file);
+    return (key != null) && this.entries.containsKey(key);
+  }
+
+  /**
+   * Gets the files of all entries.
+   */
+  synchronized List<File> getFiles() {
+    this.ensureLoaded();
+    final List<File> files = new ArrayList<>(this.entries.size());
+    for (final String key : this.entries.keySet()) {
+      files.add(new File(this.cacheRoot, key));
+    }
+    return files;
+  }
+
+  synchronized long getMaxSize() {
+    return this.maxSize;
+  }
+
+  synchronized void setMaxSize(final long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  synchronized long getMaxEntrySize() {
+    return (this.maxSize * this.maxEntryPercent) / 100;
+  }
+
+  synchronized void setMaxEntryPercent(final int maxEntryPercent) {
+    this.maxEntryPercent = maxEntryPercent;
+  }
+
+  synchronized CacheEvictionPolicy getPolicy() {
+    return this.policy;
+  }
+
+  /**
+   * Changes the eviction policy. Current entries are kept in their current
+   * eviction order.
+   */
+  synchronized void setPolicy(final CacheEvictionPolicy policy) {
+    if (policy == this.policy) {
+      return;
+    }
+    final EvictionQueue newQueue = EvictionQueue.create(policy);
+    final Iterator<String> i = this.queue.iterator();
+    while (i.hasNext()) {
+      newQueue.add(i.next());
+    }
+    this.queue = newQueue;
+    this.policy = policy;
+  }
+
+  synchronized CacheStatistics getStatistics() {
+    return new CacheStatistics(this.policy, this.hits, this.misses, this.evictions, this.rejections);
+  }
+
+  synchronized long getTotalSize() {
+    this.ensureLoaded();
+    return this.totalSize;
+  }
+
+  synchronized int getNumEntries() {
+    this.ensureLoaded();
+    return this.entries.size();
+  }
+
+  /**
+   * Gets the files to evict first whose combined size is at least
+   * <code>bytesToFree</code>, skipping files accessed at or after
+   * <code>accessedBefore</code>. The cost is usually proportional to the
+   * number of files returned.
+   */
+  synchronized List<File> getEvictionCandidates(final long bytesToFree, final long accessedBefore) {
+    this.ensureLoaded();
+    final List<File> candidates = new ArrayList<>();
+    for (final String key : this.getVictims(bytesToFree, accessedBefore)) {
+      candidates.add(new File(this.cacheRoot, key));
+    }
+    return candidates;
+  }
+
+  private List<String> getVictims(final long bytesToFree, final long accessedBefore) {
+    final List<String> victims = new ArrayList<>();
+    final boolean recencyOrdered = this.queue.isRecencyOrdered();
+    long bytes = 0;
+    final Iterator<String> i = this.queue.iterator();
+    while ((bytes < bytesToFree) && i.hasNext()) {
+      final String key = i.next();
+      final Entry entry = this.entries.get(key);
+      if (entry.lastAccess >= accessedBefore) {
+        if (recencyOrdered) {
+          // The rest are newer.
+          break;
+        }
+        continue;
+      }
+      victims.add(key);
+      bytes += entry.size;
+    }
+    return victims;
+  }
+
+  /**
+   * Writes pending journal records, and rewrites the journal if it has grown
+   * much larger than the index.
+   */
+  synchronized void flush() {
+    this.ensureLoaded();
+    if (this.numJournalRecords > Math.max(MIN_RECORDS_FOR_COMPACTION, this.entries.size() * 2)) {
+      this.compact();
+      return;
+    }
+    final DataOutputStream out = this.journal;
+    if (out != null) {
+      try {
+        out.flush();
+      } catch (final IOException ioe) {
+        this.journalFailed(ioe);
+      }
+    }
+  }
+
+  synchronized void close() {
+    this.flush();
+    final DataOutputStream out = this.journal;
+    if (out != null) {
+      this.journal = null;
+      try {
+        out.close();
+      } catch (final IOException ioe) {
+        logger.log(Level.WARNING, "close(): Unable to close cache journal.", ioe);
+      }
+    }
+  }
+
+  private void putEntry(final String key, final long size, final long lastAccess, final long expires) {
+    final Entry oldEntry = this.entries.put(key, new Entry(size, lastAccess, expires));
+    if (oldEntry != null) {
+      this.totalSize -= oldEntry.size;
+    }
+    this.totalSize += size;
+    this.queue.add(key);
+  }
+
+  private Entry removeEntry(final String key) {
+    final Entry oldEntry = this.entries.remove(key);
+    if (oldEntry != null) {
+      this.totalSize -= oldEntry.size;
+      this.queue.remove(key);
+    }
+    return oldEntry;
+  }
+
+  private String getKey(final File file) {
+    final String rootPath = this.cacheRoot.getAbsolutePath() + File.separator;
+    final String path = file.getAbsolutePath();
+    if (!path.startsWith(rootPath)) {
+      logger.warning("getKey(): File not in cache directory: " + file + ".");
+      return null;
+    }
+    return path.substring(rootPath.length());
+  }
+
+  private void ensureLoaded() {
+    if (this.loaded) {
+      return;
+    }
+    this.loaded = true;
+    final long time1 = System.currentTimeMillis();
+    boolean replayed = false;
+    if (this.journalFile.exists()) {
+      try {
+        this.replayJournal();
+        replayed = true;
+      } catch (final IOException ioe) {
+        logger.log(Level.WARNING, "ensureLoaded(): Unable to read cache journal. Rebuilding index.", ioe);
+        this.entries.clear();
+        this.totalSize = 0;
+      }
+    }
+    if (!replayed) {
+      this.rebuild();
+    }
+    // Start a fresh journal with the current state.
+    this.compact();
+    if (logger.isLoggable(Level.INFO)) {
+      logger.info("ensureLoaded(): Loaded cache index with " + this.entries.size() + " entries and " + this.totalSize
+          + " bytes in " + (System.currentTimeMillis() - time1) + " ms.");
+    }
+  }
+
+  private void replayJournal() throws IOException {
+    try (
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.journalFile)))) {
+      if ((in.readInt() != JOURNAL_MAGIC) || (in.readInt() != JOURNAL_VERSION)) {
+        throw new IOException("Unexpected cache journal format.");
+      }
+      for (;;) {
+        final int type;
+        try {
+          type = in.readByte();
+        } catch (final EOFException eof) {
+          return;
+        }
+        try {
+          final String key = in.readUTF();
+          switch (type) {
+          case RECORD_PUT:
+            final long size = in.readLong();
+            final long lastAccess = in.readLong();
+            final long expires = in.readLong();
+            this.putEntry(key, size, lastAccess, expires);
+            break;
+          case RECORD_TOUCH:
+            final long time = in.readLong();
+            final Entry entry = this.entries.get(key);
+            if (entry != null) {
+              entry.lastAccess = time;
+              this.queue.access(key);
+            }
+            break;
+          case RECORD_REMOVE:
+            this.removeEntry(key);
+            break;
+          default:
+            throw new IOException("Unexpected cache journal record type: " + type);
+          }
+        } catch (final EOFException eof) {
+          // The last record was not completely written.
+          return;
+        }
+      }
+    }
+  }
+
+  private void rebuild() {
+    final Path rootPath = this.cacheRoot.toPath();
+    final List<Map.Entry<String, Entry>> found = new ArrayList<>();
+    try {
+      Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+          // Temporary files may belong to writers that are still open. Those
+          // left over by interrupted writes are deleted by CacheManager.
+          if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(PersistentCacheWriter.TEMP_SUFFIX)) {
+            final long lastModified = attrs.lastModifiedTime().toMillis();
+            found.add(new java.util.AbstractMap.SimpleEntry<>(rootPath.relativize(file).toString(),
+                new Entry(attrs.size(), lastModified, 0)));
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) {
+          if (!dir.equals(rootPath)) {
+            // Only succeeds if the directory is empty.
+            dir.toFile().delete();
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "rebuild(): Unable to scan cache directory.", ioe);
+    }
+    // Insert in ascending order of last access.
+    found.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+    for (final Map.Entry<String, Entry> e : found) {
+      final Entry entry = e.getValue();
+      this.putEntry(e.getKey(), entry.size, entry.lastAccess, entry.expires);
+    }
+  }
+
+  private void compact() {
+    final DataOutputStream oldJournal = this.journal;
+    this.journal = null;
+    if (oldJournal != null) {
+      try {
+        oldJournal.close();
+      } catch (final IOException ioe) {
+        // ignore
+      }
+    }
+    final File tempFile = new File(this.journalFile.getPath() + PersistentCacheWriter.TEMP_SUFFIX);
+    try {
+      try (
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeInt(JOURNAL_VERSION);
+        // Entries are written in eviction order, which replaying restores.
+        final Iterator<String> i = this.queue.iterator();
+        while (i.hasNext()) {
+          final String key = i.next();
+          final Entry entry = this.entries.get(key);
+          out.writeByte(RECORD_PUT);
+          out.writeUTF(key);
+          out.writeLong(entry.size);
+          out.writeLong(entry.lastAccess);
+          out.writeLong(entry.expires);
+        }
+      }
+      Files.move(tempFile.toPath(), this.journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.journalFile, true)));
+      this.numJournalRecords = this.entries.size();
+    } catch (final IOException ioe) {
+      tempFile.delete();
+      this.journalFailed(ioe);
+    }
+  }
+
+  private void journalFailed(final IOException ioe) {
+    // The index remains usable in memory. Without a journal it will be
+    // rebuilt from the directory on the next startup.
+    logger.log(Level.WARNING, "journalFailed(): Unable to write cache journal.", ioe);
+    final DataOutputStream out = this.journal;
+    this.journal = null;
+    if (out != null) {
+      try {
+        out.close();
+      } catch (final IOException ioe2) {
+        // ignore
+      }
+    }
+    this.journalFile.delete();
+  }
+
+  private static final class Entry {
+    private final long size;
+    private final long expires;
+    private long lastAccess;
+
+    private Entry(final long size, final long lastAccess, final long expires) {
+      this.size = size;
+      this.lastAccess = lastAccess;
+      this.expires = expires;
+    }
+  }
+}
@@ -26,11 +26,35 @@ public class CacheInfo {
   public final long approximateSize;
   public final int numEntries;
   public final List<?> entryInfoList;
+  public final CacheStatistics statistics;
 
   public CacheInfo(final long approximateSize, final int numEntries, final List<?> entryInfoList) {
+    this(approximateSize, numEntries, entryInfoList, null);
+  }
+
+  public CacheInfo(final long approximateSize, final int numEntries, final List<?> entryInfoList,
+      final CacheStatistics statistics) {
     super();
     this.approximateSize = approximateSize;
     this.numEntries = numEntries;
     this.entryInfoList = entryInfoList;
+    this.statistics = statistics;
+  }
+
+  public static class EntryInfo {
+    public final String key;
+    public final Class<?> valueClass;
+    public final int approximateSize;
+
+    public EntryInfo(final String key, final Class<?> valueClass, final int approximateSize) {
+      this.key = key;
+      this.valueClass = valueClass;
+      this.approximateSize = approximateSize;
+    }
+
+    @Override
+    public String toString() {
+      return "EntryInfo[key=" + this.key + ",valueClass=" + this.valueClass + ",approximateSize=" + this.approximateSize + "]";
+    }
   }
 }
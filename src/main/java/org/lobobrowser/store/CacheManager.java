@@ -24,17 +24,26 @@
 package org.lobobrowser.store;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.lobobrowser.security.GenericLocalPermission;
-import org.cobraparser.util.LRUCache;
 import org.cobraparser.util.Strings;
 import org.cobraparser.util.Urls;
 import org.cobraparser.util.io.IORoutines;
@@ -48,8 +57,19 @@ public final class CacheManager implements Runnable {
   private static final int INITIAL_SLEEP = 30 * 1000;
   private static final int DELETE_TOLERANCE = 60 * 1000;
   private static final long MAX_CACHE_SIZE = 100000000;
+  private static final int MAP_THRESHOLD = 64 * 1024;
+  private static final Object[] FILE_LOCKS = new Object[256];
 
-  private final LRUCache transientCache = new LRUCache(1000000);
+  static {
+    for (int i = 0; i < FILE_LOCKS.length; i++) {
+      FILE_LOCKS[i] = new Object();
+    }
+  }
+
+  private static final CacheIndex cacheIndex = new CacheIndex(StorageManager.getInstance().getCacheRoot(), StorageManager
+      .getInstance().getCacheIndexFile(), MAX_CACHE_SIZE);
+
+  private final TransientCache transientCache = new TransientCache(1000000, CacheEvictionPolicy.LRU);
 
   /**
    *
@@ -81,71 +101,99 @@ public final class CacheManager implements Runnable {
 
   public void putTransient(final URL url, final Object value, final int approxSize) {
     final String key = Urls.getNoRefForm(url);
-    synchronized (this.transientCache) {
-      this.transientCache.put(key, value, approxSize);
-    }
+    this.transientCache.put(key, value, approxSize);
   }
 
   public Object getTransient(final URL url) {
     final String key = Urls.getNoRefForm(url);
-    synchronized (this.transientCache) {
-      return this.transientCache.get(key);
-    }
+    return this.transientCache.get(key);
   }
 
   public void removeTransient(final URL url) {
     final String key = Urls.getNoRefForm(url);
-    synchronized (this.transientCache) {
-      this.transientCache.remove(key);
-    }
+    this.transientCache.remove(key);
   }
 
   public void setMaxTransientCacheSize(final int approxMaxSize) {
-    synchronized (this.transientCache) {
-      this.transientCache.setApproxMaxSize(approxMaxSize);
-    }
+    this.transientCache.setApproxMaxSize(approxMaxSize);
   }
 
   public int getMaxTransientCacheSize() {
-    synchronized (this.transientCache) {
-      return this.transientCache.getApproxMaxSize();
-    }
+    return (int) this.transientCache.getApproxMaxSize();
+  }
+
+  public void setTransientEvictionPolicy(final CacheEvictionPolicy policy) {
+    this.transientCache.setPolicy(policy);
+  }
+
+  public CacheEvictionPolicy getTransientEvictionPolicy() {
+    return this.transientCache.getPolicy();
   }
 
   public CacheInfo getTransientCacheInfo() {
-    long approxSize;
-    int numEntries;
-    List<?> entryInfo;
-    synchronized (this.transientCache) {
-      approxSize = this.transientCache.getApproxSize();
-      numEntries = this.transientCache.getNumEntries();
-      entryInfo = this.transientCache.getEntryInfoList();
-    }
-    return new CacheInfo(approxSize, numEntries, entryInfo);
+    return this.transientCache.getInfo();
+  }
+
+  public void setMaxPersistentCacheSize(final long maxSize) {
+    cacheIndex.setMaxSize(maxSize);
+  }
+
+  public long getMaxPersistentCacheSize() {
+    return cacheIndex.getMaxSize();
+  }
+
+  public void setPersistentEvictionPolicy(final CacheEvictionPolicy policy) {
+    cacheIndex.setPolicy(policy);
+  }
+
+  public CacheEvictionPolicy getPersistentEvictionPolicy() {
+    return cacheIndex.getPolicy();
+  }
+
+  /**
+   * Sets the size of the largest entry admitted to a cache tier, as a
+   * percentage of the budget of the tier. This keeps a single large response
+   * from flushing many small entries.
+   */
+  public void setMaxEntryPercent(final int maxEntryPercent) {
+    this.transientCache.setMaxEntryPercent(maxEntryPercent);
+    cacheIndex.setMaxEntryPercent(maxEntryPercent);
+  }
+
+  /**
+   * Gets the size of the largest entry the persistent cache admits.
+   */
+  public static long getMaxPersistentEntrySize() {
+    return cacheIndex.getMaxEntrySize();
+  }
+
+  public CacheInfo getPersistentCacheInfo() {
+    return new CacheInfo(cacheIndex.getTotalSize(), cacheIndex.getNumEntries(), null, cacheIndex.getStatistics());
   }
 
   public static void putPersistent(final URL url, final byte[] rawContent, final boolean isDecoration) throws IOException {
-    final File cacheFile = getCacheFile(url, isDecoration);
-    synchronized (getLock(cacheFile)) {
-      final File parent = cacheFile.getParentFile();
-      if ((parent != null) && !parent.exists()) {
-        parent.mkdirs();
-      }
-      final FileOutputStream fout = new FileOutputStream(cacheFile);
-      try {
-        fout.write(rawContent);
-      } finally {
-        fout.close();
-      }
+    try (
+      final PersistentCacheWriter writer = openPersistentWriter(url, isDecoration)) {
+      writer.write(rawContent);
+      writer.commit();
     }
   }
 
+  /**
+   * Opens a writer that streams the persistent cache entry of the given URL
+   * into a temporary file. The entry is only replaced when
+   * {@link PersistentCacheWriter#commit()} is called.
+   */
+  public static PersistentCacheWriter openPersistentWriter(final URL url, final boolean isDecoration) throws IOException {
+    return new PersistentCacheWriter(getCacheFile(url, isDecoration));
+  }
+
   public static byte[] getPersistent(final URL url, final boolean isDecoration) throws IOException {
     // We don't return an InputStream because further synchronization
     // would be needed to prevent concurrent writes into the file.
     final File cacheFile = getCacheFile(url, isDecoration);
     synchronized (getLock(cacheFile)) {
-      cacheFile.setLastModified(System.currentTimeMillis());
+      cacheIndex.touch(cacheFile);
       try {
         return IORoutines.load(cacheFile);
       } catch (final java.io.FileNotFoundException fnf) {
@@ -154,9 +202,46 @@ public final class CacheManager implements Runnable {
     }
   }
 
+  /**
+   * Gets the persistent cache entry of the given URL as a read-only buffer.
+   * Large entries are memory-mapped rather than copied to the heap; small ones
+   * are cheaper to read directly. The mapping stays valid after the entry is
+   * replaced, because writers move a new file into place.
+   *
+   * @return The entry, or <code>null</code> if there is none.
+   */
+  public static ByteBuffer mapPersistent(final URL url, final boolean isDecoration) throws IOException {
+    final File cacheFile = getCacheFile(url, isDecoration);
+    synchronized (getLock(cacheFile)) {
+      cacheIndex.touch(cacheFile);
+      try (
+        final FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+        final long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+          logger.warning("mapPersistent(): Cache file too large: " + cacheFile + ".");
+          return null;
+        }
+        if (size < MAP_THRESHOLD) {
+          final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+          while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+              break;
+            }
+          }
+          buffer.flip();
+          return buffer.asReadOnlyBuffer();
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } catch (final NoSuchFileException nsf) {
+        return null;
+      }
+    }
+  }
+
   public static boolean removePersistent(final URL url, final boolean isDecoration) throws IOException {
     final File cacheFile = getCacheFile(url, isDecoration);
     synchronized (getLock(cacheFile)) {
+      cacheIndex.remove(cacheFile);
       return cacheFile.delete();
     }
   }
@@ -170,7 +255,7 @@ public final class CacheManager implements Runnable {
         }
         throw new java.io.FileNotFoundException("JAR file cannot be obtained for a URL that is not cached locally: " + url + ".");
       }
-      cacheFile.setLastModified(System.currentTimeMillis());
+      cacheIndex.touch(cacheFile);
       return new JarFile(cacheFile);
     }
   }
@@ -194,8 +279,17 @@ public final class CacheManager implements Runnable {
     return StorageManager.getInstance().getContentCacheFile(url.getHost(), fileName);
   }
 
-  private static Object getLock(final File file) throws IOException {
-    return ("cm:" + file.getCanonicalPath()).intern();
+  /**
+   * Gets the monitor that guards the given cache file. Locks are taken from a
+   * fixed table, so unrelated files may share a lock. Callers must not hold
+   * the lock of one file while acquiring that of another.
+   */
+  static Object getLock(final File file) {
+    // Cache file paths are built by getCacheFile, so the absolute path
+    // identifies the file without resolving it on disk.
+    int hash = file.getAbsolutePath().hashCode();
+    hash ^= (hash >>> 16);
+    return FILE_LOCKS[hash & (FILE_LOCKS.length - 1)];
   }
 
   /**
@@ -206,19 +300,61 @@ public final class CacheManager implements Runnable {
     final File file = getCacheFile(url, isDecoration);
     synchronized (getLock(file)) {
       if (file.exists()) {
-        file.setLastModified(System.currentTimeMillis());
+        cacheIndex.touch(file);
         return true;
       }
       return false;
     }
   }
 
+  /**
+   * Decides whether a cache file of the given size should be stored. Must be
+   * called holding the lock of the file.
+   */
+  static boolean admitEntry(final File cacheFile, final long size) {
+    return cacheIndex.admit(cacheFile, size);
+  }
+
+  /**
+   * Records a cache file that has just been written. Must be called holding
+   * the lock of the file.
+   */
+  static void entryStored(final File cacheFile, final long expires) {
+    cacheIndex.put(cacheFile, cacheFile.length(), expires);
+  }
+
+  /**
+   * Gets the total size in bytes of the persistent cache.
+   */
+  public static long getPersistentCacheSize() {
+    return cacheIndex.getTotalSize();
+  }
+
+  public static int getPersistentCacheEntryCount() {
+    return cacheIndex.getNumEntries();
+  }
+
+  /**
+   * Writes pending cache index changes. Should be called before the
+   * application exits.
+   */
+  public static void shutdown() {
+    cacheIndex.close();
+  }
+
   public void run() {
+    // Load the index early so that requests don't have to wait for it.
+    cacheIndex.getTotalSize();
     try {
       Thread.sleep(INITIAL_SLEEP);
     } catch (final InterruptedException ie) {
       // ignore
     }
+    try {
+      this.reconcileCache();
+    } catch (final Exception err) {
+      logger.log(Level.SEVERE, "run()", err);
+    }
     for (;;) {
       try {
         this.sweepCache();
@@ -235,38 +371,39 @@ public final class CacheManager implements Runnable {
   }
 
   private static long getMaxCacheSize() {
-    return MAX_CACHE_SIZE;
+    return cacheIndex.getMaxSize();
   }
 
   private void sweepCache() throws Exception {
-    final CacheStoreInfo sinfo = this.getCacheStoreInfo();
+    final long cacheSize = cacheIndex.getTotalSize();
     if (logger.isLoggable(Level.INFO)) {
-      logger.info("sweepCache(): Cache size is " + sinfo.getLength() + " with a max of " + getMaxCacheSize()
-          + ". The number of cache files is " + sinfo.getFileInfos().length + ".");
+      logger.info("sweepCache(): Cache size is " + cacheSize + " with a max of " + getMaxCacheSize()
+          + ". The number of cache files is " + cacheIndex.getNumEntries() + ".");
     }
-    long oversize = sinfo.getLength() - getMaxCacheSize();
+    long oversize = cacheSize - getMaxCacheSize();
     if (oversize > 0) {
-      final CacheFileInfo[] finfos = sinfo.getFileInfos();
-      // Sort in ascending order of modification
-      Arrays.sort(finfos);
       final long okToDeleteBeforeThis = System.currentTimeMillis() - DELETE_TOLERANCE;
-      for (final CacheFileInfo finfo : finfos) {
+      for (final File file : cacheIndex.getEvictionCandidates(oversize, okToDeleteBeforeThis)) {
         try {
           Thread.yield();
-          synchronized (getLock(finfo.getFile())) {
-            final long lastModified = finfo.getLastModified();
-            if (lastModified < okToDeleteBeforeThis) {
-              Thread.sleep(1);
-              final long time1 = System.currentTimeMillis();
-              finfo.delete();
-              final long time2 = System.currentTimeMillis();
-              if (logger.isLoggable(Level.INFO)) {
-                logger.info("sweepCache(): Removed " + finfo + " in " + (time2 - time1) + " ms.");
-              }
-              oversize -= finfo.getInitialLength();
-              if (oversize <= 0) {
-                break;
-              }
+          synchronized (getLock(file)) {
+            // The file may have been accessed since candidates were chosen.
+            if (!cacheIndex.isEvictable(file, okToDeleteBeforeThis)) {
+              continue;
+            }
+            final long time1 = System.currentTimeMillis();
+            if (!file.delete() && file.exists()) {
+              logger.warning("sweepCache(): Unable to delete " + file + ".");
+              continue;
+            }
+            final long length = cacheIndex.evict(file);
+            final long time2 = System.currentTimeMillis();
+            if (logger.isLoggable(Level.INFO)) {
+              logger.info("sweepCache(): Removed " + file + " in " + (time2 - time1) + " ms.");
+            }
+            oversize -= length;
+            if (oversize <= 0) {
+              break;
             }
           }
         } catch (final Exception thrown) {
@@ -274,33 +411,66 @@ public final class CacheManager implements Runnable {
         }
       }
     }
+    cacheIndex.flush();
   }
 
-  private CacheStoreInfo getCacheStoreInfo() throws IOException {
-    final CacheStoreInfo csinfo = new CacheStoreInfo();
-    final File cacheRoot = StorageManager.getInstance().getCacheRoot();
-    populateCacheStoreInfo(csinfo, cacheRoot);
-    return csinfo;
-  }
-
-  private void populateCacheStoreInfo(final CacheStoreInfo csinfo, final File directory) {
-    final File[] files = directory.listFiles();
-    if (files == null) {
-      // TODO: For large directories, java.nio.file.Files.newDirectoryStream() is supposedly faster.
-      logger.severe("populateCacheStoreInfo(): Unexpected: '" + directory + "' is not a directory.");
+  /**
+   * Brings the index in line with the cache directory. Files missing from
+   * the index, such as entries stored just before a crash, are never evicted,
+   * so they are deleted, as are temporary files no writer uses. Entries whose
+   * file is gone are removed from the index.
+   */
+  private void reconcileCache() throws IOException {
+    final Path rootPath = StorageManager.getInstance().getCacheRoot().toPath();
+    if (!Files.isDirectory(rootPath)) {
       return;
     }
-    if (files.length == 0) {
-      directory.delete();
-    }
+    final List<File> files = new ArrayList<>();
+    Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+        if (attrs.isRegularFile()) {
+          files.add(file.toFile());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    final Set<File> found = new HashSet<>(files);
+    int numDeleted = 0;
     for (final File file : files) {
-      Thread.yield();
-      if (file.isDirectory()) {
-        this.populateCacheStoreInfo(csinfo, file);
-      } else {
-        csinfo.addCacheFile(file);
+      if (file.getName().endsWith(PersistentCacheWriter.TEMP_SUFFIX)) {
+        // Left over by an interrupted write.
+        if (PersistentCacheWriter.deleteIfAbandoned(file)) {
+          numDeleted++;
+        }
+        continue;
+      }
+      synchronized (getLock(file)) {
+        if (!cacheIndex.contains(file) && file.exists()) {
+          if (file.delete()) {
+            numDeleted++;
+          } else {
+            logger.warning("reconcileCache(): Unable to delete " + file + ".");
+          }
+        }
       }
     }
+    int numForgotten = 0;
+    for (final File file : cacheIndex.getFiles()) {
+      if (!found.contains(file)) {
+        synchronized (getLock(file)) {
+          // The entry may have been stored after the directory was scanned.
+          if (!file.exists()) {
+            cacheIndex.remove(file);
+            numForgotten++;
+          }
+        }
+      }
+    }
+    if (logger.isLoggable(Level.INFO)) {
+      logger.info("reconcileCache(): Deleted " + numDeleted + " temporary files or files missing from the index and removed " + numForgotten
+          + " index entries without a file.");
+    }
   }
 
 }
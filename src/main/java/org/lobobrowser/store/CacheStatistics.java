@@ -0,0 +1,57 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+/**
+ * A snapshot of the counters of a cache tier.
+ */
+public final class CacheStatistics {
+  public final CacheEvictionPolicy policy;
+  public final long hits;
+  public final long misses;
+  public final long evictions;
+
+  /**
+   * Number of entries that were not stored because of the admission policy or
+   * because they exceeded the maximum entry size.
+   */
+  public final long rejections;
+
+  public CacheStatistics(final CacheEvictionPolicy policy, final long hits, final long misses, final long evictions,
+      final long rejections) {
+    this.policy = policy;
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.rejections = rejections;
+  }
+
+  public double getHitRatio() {
+    final long requests = this.hits + this.misses;
+    return requests == 0 ? 0 : (double) this.hits / requests;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStatistics[policy=" + this.policy + ",hits=" + this.hits + ",misses=" + this.misses + ",evictions="
+        + this.evictions + ",rejections=" + this.rejections + "]";
+  }
+}
@@ -0,0 +1,215 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps the keys of a cache tier in the order in which they should be evicted,
+ * as defined by a {@link CacheEvictionPolicy}. Implementations are not thread
+ * safe.
+ */
+abstract class EvictionQueue {
+  static EvictionQueue create(final CacheEvictionPolicy policy) {
+    switch (policy) {
+    case LFU:
+      return new LfuQueue();
+    case TINY_LFU:
+      return new TinyLfuQueue();
+    default:
+      return new LruQueue();
+    }
+  }
+
+  /**
+   * Adds a key, or treats it as accessed if already present.
+   */
+  abstract void add(String key);
+
+  abstract void access(String key);
+
+  abstract void remove(String key);
+
+  /**
+   * Iterates over the keys in eviction order. The queue must not be modified
+   * during the iteration.
+   */
+  abstract Iterator<String> iterator();
+
+  /**
+   * Whether the eviction order is also the order of last access, so that the
+   * keys after a recently accessed key are also recent.
+   */
+  abstract boolean isRecencyOrdered();
+
+  /**
+   * Records a request for the given key, whether or not it is present.
+   */
+  void recordRequest(final String key) {
+  }
+
+  /**
+   * Decides whether a new key may displace the given victims.
+   */
+  boolean admit(final String candidate, final Collection<String> victims) {
+    return true;
+  }
+
+  private static class LruQueue extends EvictionQueue {
+    private final Map<String, Boolean> keys = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    void add(final String key) {
+      this.keys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    void access(final String key) {
+      this.keys.get(key);
+    }
+
+    @Override
+    void remove(final String key) {
+      this.keys.remove(key);
+    }
+
+    @Override
+    Iterator<String> iterator() {
+      return this.keys.keySet().iterator();
+    }
+
+    @Override
+    boolean isRecencyOrdered() {
+      return true;
+    }
+
+    int size() {
+      return this.keys.size();
+    }
+  }
+
+  private static final class LfuQueue extends EvictionQueue {
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final TreeSet<Node> order = new TreeSet<>();
+    private long sequence = 0;
+
+    @Override
+    void add(final String key) {
+      if (this.nodes.containsKey(key)) {
+        this.access(key);
+      } else {
+        final Node node = new Node(key, this.sequence++);
+        this.nodes.put(key, node);
+        this.order.add(node);
+      }
+    }
+
+    @Override
+    void access(final String key) {
+      final Node node = this.nodes.get(key);
+      if (node != null) {
+        this.order.remove(node);
+        if (node.count < Integer.MAX_VALUE) {
+          node.count++;
+        }
+        node.sequence = this.sequence++;
+        this.order.add(node);
+      }
+    }
+
+    @Override
+    void remove(final String key) {
+      final Node node = this.nodes.remove(key);
+      if (node != null) {
+        this.order.remove(node);
+      }
+    }
+
+    @Override
+    Iterator<String> iterator() {
+      final Iterator<Node> i = this.order.iterator();
+      return new Iterator<String>() {
+        public boolean hasNext() {
+          return i.hasNext();
+        }
+
+        public String next() {
+          return i.next().key;
+        }
+      };
+    }
+
+    @Override
+    boolean isRecencyOrdered() {
+      return false;
+    }
+
+    private static final class Node implements Comparable<Node> {
+      private final String key;
+      private int count = 1;
+      private long sequence;
+
+      private Node(final String key, final long sequence) {
+        this.key = key;
+        this.sequence = sequence;
+      }
+
+      public int compareTo(final Node other) {
+        if (this.count != other.count) {
+          return this.count < other.count ? -1 : 1;
+        }
+        return Long.compare(this.sequence, other.sequence);
+      }
+    }
+  }
+
+  private static final class TinyLfuQueue extends LruQueue {
+    private final FrequencySketch sketch = new FrequencySketch(256);
+
+    @Override
+    void add(final String key) {
+      super.add(key);
+      this.sketch.ensureCapacity(this.size());
+    }
+
+    @Override
+    void recordRequest(final String key) {
+      this.sketch.increment(key);
+    }
+
+    @Override
+    boolean admit(final String candidate, final Collection<String> victims) {
+      final int candidateFrequency = this.sketch.frequency(candidate);
+      for (final String victim : victims) {
+        // Ties favor the entry that is already cached.
+        if (this.sketch.frequency(victim) >= candidateFrequency) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+/**
+ * A count-min sketch of 4-bit counters that estimates how often keys have
+ * been requested. Counters are halved after a number of increments
+ * proportional to the capacity, so that old popularity fades.
+ */
+final class FrequencySketch {
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS = { 0x97CB3127, 0xB6D8AE8B, 0x2F1A84C5, 0x5B3D4A61 };
+
+  private byte[] table;
+  private int mask;
+  private int capacity;
+  private int sampleSize;
+  private int additions;
+
+  FrequencySketch(final int capacity) {
+    this.resize(capacity);
+  }
+
+  /**
+   * Grows the sketch if it was sized for fewer entries. Growing loses the
+   * recorded frequencies.
+   */
+  void ensureCapacity(final int capacity) {
+    if (capacity > this.capacity) {
+      this.resize(Math.max(capacity, this.capacity * 2));
+    }
+  }
+
+  private void resize(final int capacity) {
+    this.capacity = Math.max(16, capacity);
+    final int tableSize = Integer.highestOneBit((this.capacity * 8) - 1) << 1;
+    this.table = new byte[tableSize];
+    this.mask = tableSize - 1;
+    this.sampleSize = this.capacity * 10;
+    this.additions = 0;
+  }
+
+  void increment(final Object key) {
+    final int hash = key.hashCode();
+    final byte[] table = this.table;
+    final int[] indexes = new int[SEEDS.length];
+    int min = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      indexes[i] = this.indexOf(hash, i);
+      min = Math.min(min, table[indexes[i]]);
+    }
+    if (min == MAX_COUNT) {
+      return;
+    }
+    // Conservative update: only the smallest counters are incremented.
+    for (final int index : indexes) {
+      if (table[index] == min) {
+        table[index]++;
+      }
+    }
+    if (++this.additions >= this.sampleSize) {
+      this.age();
+    }
+  }
+
+  int frequency(final Object key) {
+    final int hash = key.hashCode();
+    int min = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      min = Math.min(min, this.table[this.indexOf(hash, i)]);
+    }
+    return min;
+  }
+
+  private int indexOf(final int hash, final int i) {
+    int h = (hash ^ SEEDS[i]) * 0x9E3779B9;
+    h ^= h >>> 16;
+    return h & this.mask;
+  }
+
+  private void age() {
+    final byte[] table = this.table;
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (byte) (table[i] >> 1);
+    }
+    this.additions /= 2;
+  }
+}
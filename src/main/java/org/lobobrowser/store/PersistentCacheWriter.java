@@ -0,0 +1,154 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    version 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes a persistent cache entry into a temporary file in the cache
+ * directory. The temporary file atomically replaces the cache file when
+ * {@link #commit()} is invoked, so readers never see a partially written
+ * entry. Closing the writer without committing discards the content.
+ * Temporary files left by a crash are deleted by the cache sweeper.
+ *
+ * @see CacheManager#openPersistentWriter(java.net.URL, boolean)
+ */
+public final class PersistentCacheWriter extends OutputStream {
+  static final String TEMP_SUFFIX = ".tmp";
+  /** The temporary files of writers that are still open. Guarded by itself. */
+  private static final Set<File> openTempFiles = new HashSet<>();
+
+  private final File cacheFile;
+  private final File tempFile;
+  private final OutputStream out;
+  private boolean closed = false;
+  private long expires = 0;
+
+  PersistentCacheWriter(final File cacheFile) throws IOException {
+    this.cacheFile = cacheFile;
+    final File parent = cacheFile.getParentFile();
+    if ((parent != null) && !parent.exists()) {
+      parent.mkdirs();
+    }
+    synchronized (openTempFiles) {
+      this.tempFile = File.createTempFile(cacheFile.getName(), TEMP_SUFFIX, parent);
+      openTempFiles.add(this.tempFile);
+    }
+    try {
+      this.out = new BufferedOutputStream(new FileOutputStream(this.tempFile), 8192);
+    } catch (final IOException ioe) {
+      this.releaseTempFile();
+      throw ioe;
+    }
+  }
+
+  /**
+   * Deletes a temporary file unless a writer is still using it.
+   *
+   * @return Whether the file was deleted.
+   */
+  static boolean deleteIfAbandoned(final File tempFile) {
+    synchronized (openTempFiles) {
+      return !openTempFiles.contains(tempFile) && tempFile.delete();
+    }
+  }
+
+  private void releaseTempFile() {
+    synchronized (openTempFiles) {
+      openTempFiles.remove(this.tempFile);
+      this.tempFile.delete();
+    }
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    this.out.write(b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    this.out.write(b, off, len);
+  }
+
+  /**
+   * Sets the time when the entry expires, or zero if unknown.
+   */
+  public void setExpires(final long expires) {
+    this.expires = expires;
+  }
+
+  /**
+   * Closes the writer and moves the written content into place, unless the
+   * cache does not admit it.
+   *
+   * @return Whether the entry was stored.
+   */
+  public boolean commit() throws IOException {
+    if (this.closed) {
+      throw new IOException("Cache writer already closed: " + this.cacheFile);
+    }
+    this.closed = true;
+    try {
+      this.out.close();
+      synchronized (CacheManager.getLock(this.cacheFile)) {
+        if (!CacheManager.admitEntry(this.cacheFile, this.tempFile.length())) {
+          return false;
+        }
+        try {
+          Files.move(this.tempFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException amns) {
+          Files.move(this.tempFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        CacheManager.entryStored(this.cacheFile, this.expires);
+        return true;
+      }
+    } finally {
+      // Does nothing to the file if it was moved into place.
+      this.releaseTempFile();
+    }
+  }
+
+  /**
+   * Discards the content written so far, unless it has been committed.
+   */
+  @Override
+  public void close() {
+    if (!this.closed) {
+      this.closed = true;
+      try {
+        this.out.close();
+      } catch (final IOException ioe) {
+        // ignore
+      }
+      this.releaseTempFile();
+    }
+  }
+}
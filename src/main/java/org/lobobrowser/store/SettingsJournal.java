@@ -0,0 +1,306 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of settings sections. Saving a section appends one
+ * record with its data, so other sections are not rewritten, and the journal
+ * is compacted once most of its records are outdated.
+ * <p>
+ * Opening the journal only indexes the latest record of each section; the
+ * data of a section is read when it is requested. Each record carries a
+ * checksum. A record torn by a crash is discarded, together with anything
+ * after it, and compaction replaces the journal atomically, so a failed write
+ * loses at most the section being saved. A journal that cannot be read at all
+ * is renamed with a {@link #BAD_SUFFIX} before a new one is started.
+ */
+final class SettingsJournal {
+  private static final Logger logger = Logger.getLogger(SettingsJournal.class.getName());
+  private static final int JOURNAL_MAGIC = 0x4C4F4253;
+  private static final int JOURNAL_VERSION = 1;
+  private static final int HEADER_LENGTH = 8;
+  /** Records larger than this are treated as corrupt. */
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+  private static final int MIN_RECORDS_FOR_COMPACTION = 32;
+  private static final String BAD_SUFFIX = ".bad";
+
+  private final File journalFile;
+  /** Position and length of the latest record of each section. */
+  private final Map<String, long[]> sections = new HashMap<>();
+  private RandomAccessFile file;
+  private int numRecords = 0;
+  private boolean loaded = false;
+  private boolean unreadable = false;
+
+  SettingsJournal(final File journalFile) {
+    this.journalFile = journalFile;
+  }
+
+  /**
+   * Gets the data last saved for a section, or <code>null</code> if there is
+   * none.
+   */
+  synchronized byte[] read(final String name) throws IOException {
+    this.ensureLoaded();
+    final long[] location = this.sections.get(name);
+    if ((location == null) || (this.file == null)) {
+      return null;
+    }
+    final byte[] record = new byte[(int) location[1]];
+    this.file.seek(location[0]);
+    this.file.readFully(record);
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    in.readInt();
+    final String recordName = in.readUTF();
+    if (!name.equals(recordName)) {
+      throw new IOException("Settings journal record of " + recordName + " found instead of " + name + ".");
+    }
+    final byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+    return data;
+  }
+
+  /**
+   * Saves the data of a section. The record is forced to disk before this
+   * method returns.
+   */
+  synchronized void write(final String name, final byte[] data) throws IOException {
+    this.ensureLoaded();
+    if (this.unreadable) {
+      throw new IOException("Settings journal " + this.journalFile + " could not be read, and it could not be set aside.");
+    }
+    if (this.file == null) {
+      this.compact();
+    }
+    final byte[] record = toRecord(name, data);
+    final long position = this.file.length();
+    this.file.seek(position);
+    this.file.write(record);
+    this.file.getChannel().force(false);
+    this.sections.put(name, new long[] { position, record.length });
+    this.numRecords++;
+    if (this.numRecords > Math.max(MIN_RECORDS_FOR_COMPACTION, this.sections.size() * 4)) {
+      try {
+        this.compact();
+      } catch (final IOException ioe) {
+        // The record was written; the journal is just longer than needed.
+        logger.log(Level.WARNING, "write(): Unable to compact settings journal.", ioe);
+      }
+    }
+  }
+
+  /**
+   * Removes a section. The journal is compacted without it.
+   */
+  synchronized void remove(final String name) throws IOException {
+    this.ensureLoaded();
+    if (this.unreadable) {
+      throw new IOException("Settings journal " + this.journalFile + " could not be read, and it could not be set aside.");
+    }
+    if (this.sections.remove(name) != null) {
+      this.compact();
+    }
+  }
+
+  synchronized void close() {
+    final RandomAccessFile file = this.file;
+    if (file != null) {
+      this.file = null;
+      try {
+        file.close();
+      } catch (final IOException ioe) {
+        logger.log(Level.WARNING, "close(): Unable to close settings journal.", ioe);
+      }
+    }
+  }
+
+  /**
+   * Builds a record: its length, the section name, the data, and a checksum of
+   * everything before it.
+   */
+  private static byte[] toRecord(final String name, final byte[] data) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + name.length() + 16);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    out.writeUTF(name);
+    out.writeInt(data.length);
+    out.write(data);
+    out.writeLong(0);
+    final byte[] record = bytes.toByteArray();
+    writeInt(record, 0, record.length);
+    final CRC32 crc = new CRC32();
+    crc.update(record, 0, record.length - 8);
+    writeLong(record, record.length - 8, crc.getValue());
+    return record;
+  }
+
+  private static void writeInt(final byte[] buffer, final int offset, final int value) {
+    for (int i = 0; i < 4; i++) {
+      buffer[offset + i] = (byte) (value >>> (24 - (i * 8)));
+    }
+  }
+
+  private static void writeLong(final byte[] buffer, final int offset, final long value) {
+    for (int i = 0; i < 8; i++) {
+      buffer[offset + i] = (byte) (value >>> (56 - (i * 8)));
+    }
+  }
+
+  private void ensureLoaded() {
+    if (this.loaded) {
+      return;
+    }
+    this.loaded = true;
+    if (!this.journalFile.exists()) {
+      return;
+    }
+    try {
+      final long validLength = this.scan();
+      this.file = new RandomAccessFile(this.journalFile, "rw");
+      if (this.file.length() > validLength) {
+        logger.warning("ensureLoaded(): Discarding " + (this.file.length() - validLength) + " bytes of incomplete settings records.");
+        this.file.setLength(validLength);
+      }
+    } catch (final IOException ioe) {
+      logger.log(Level.WARNING, "ensureLoaded(): Unable to read settings journal.", ioe);
+      this.sections.clear();
+      this.numRecords = 0;
+      this.close();
+      this.setAside();
+    }
+  }
+
+  /**
+   * Renames an unreadable journal, so that starting a new one does not
+   * discard the sections it holds. If that fails, writes are refused.
+   */
+  private void setAside() {
+    final File badFile = new File(this.journalFile.getPath() + BAD_SUFFIX);
+    try {
+      Files.move(this.journalFile.toPath(), badFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      logger.warning("setAside(): Unreadable settings journal moved to " + badFile + ".");
+    } catch (final IOException ioe) {
+      logger.log(Level.SEVERE, "setAside(): Unable to move unreadable settings journal. Settings will not be saved.", ioe);
+      this.unreadable = true;
+    }
+  }
+
+  /**
+   * Indexes the records of the journal.
+   *
+   * @return The length of the journal up to the end of the last valid record.
+   */
+  private long scan() throws IOException {
+    try (
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.journalFile)))) {
+      if ((in.readInt() != JOURNAL_MAGIC) || (in.readInt() != JOURNAL_VERSION)) {
+        throw new IOException("Unexpected settings journal format.");
+      }
+      long position = HEADER_LENGTH;
+      final CRC32 crc = new CRC32();
+      for (;;) {
+        final byte[] record;
+        try {
+          final int length = in.readInt();
+          if ((length < 18) || (length > MAX_RECORD_LENGTH)) {
+            return position;
+          }
+          record = new byte[length];
+          writeInt(record, 0, length);
+          in.readFully(record, 4, length - 4);
+        } catch (final EOFException eof) {
+          return position;
+        }
+        crc.reset();
+        crc.update(record, 0, record.length - 8);
+        final DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+        recordIn.skipBytes(record.length - 8);
+        if (recordIn.readLong() != crc.getValue()) {
+          return position;
+        }
+        recordIn.reset();
+        recordIn.skipBytes(4);
+        this.sections.put(recordIn.readUTF(), new long[] { position, record.length });
+        this.numRecords++;
+        position += record.length;
+      }
+    }
+  }
+
+  /**
+   * Rewrites the journal with only the latest record of each section, and
+   * atomically replaces the old journal with it.
+   */
+  private void compact() throws IOException {
+    if ((this.file == null) && !this.sections.isEmpty()) {
+      this.file = new RandomAccessFile(this.journalFile, "rw");
+    }
+    final File tempFile = new File(this.journalFile.getPath() + ".tmp");
+    final Map<String, long[]> newSections = new HashMap<>();
+    try (
+      final RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+      out.setLength(0);
+      out.writeInt(JOURNAL_MAGIC);
+      out.writeInt(JOURNAL_VERSION);
+      for (final Map.Entry<String, long[]> entry : this.sections.entrySet()) {
+        final long[] location = entry.getValue();
+        final byte[] record = new byte[(int) location[1]];
+        this.file.seek(location[0]);
+        this.file.readFully(record);
+        newSections.put(entry.getKey(), new long[] { out.getFilePointer(), record.length });
+        out.write(record);
+      }
+      out.getChannel().force(true);
+    } catch (final IOException ioe) {
+      tempFile.delete();
+      throw ioe;
+    }
+    this.close();
+    try {
+      Files.move(tempFile.toPath(), this.journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (final AtomicMoveNotSupportedException amns) {
+      Files.move(tempFile.toPath(), this.journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    this.file = new RandomAccessFile(this.journalFile, "rw");
+    this.sections.clear();
+    this.sections.putAll(newSections);
+    this.numRecords = newSections.size();
+  }
+}
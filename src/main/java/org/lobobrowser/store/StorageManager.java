@@ -25,20 +25,18 @@ package org.lobobrowser.store;
 
 import static org.jooq.impl.DSL.using;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -49,6 +47,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jooq.DSLContext;
+import org.lobobrowser.db.tables.Globals;
+import org.lobobrowser.db.tables.records.GlobalsRecord;
 import org.lobobrowser.security.LocalSecurityPolicy;
 import org.lobobrowser.security.StoreHostPermission;
 
@@ -61,8 +61,13 @@ public class StorageManager implements Runnable {
   // Note that the installer makes assumptions about these names.
   private static final String HOST_STORE_DIR = "HostStore";
   private static final String CACHE_DIR = "cache";
+  private static final String CACHE_INDEX_FILE = "cache-index.journal";
+  private static final String SETTINGS_JOURNAL_FILE = "settings.journal";
   private static final String CONTENT_DIR = "content";
   private static final String SETTINGS_DIR = "settings";
+  private static final String LIBRARY_CACHE_DIR = "library-cache";
+  /** The schema version of the user database, as set by <code>schema.sql</code>. */
+  private static final int SCHEMA_VERSION = 1;
   private static final StorageManager instance = new StorageManager();
   public final String userDBPath;
 
@@ -71,7 +76,7 @@ public class StorageManager implements Runnable {
   private final File cacheRootDirectory;
   private final File settingsDirectory;
   private final File contentDirectory;
-
+  private final SettingsJournal settingsJournal;
 
   public static StorageManager getInstance() {
     return instance;
@@ -100,6 +105,7 @@ public class StorageManager implements Runnable {
     }
 
     userDBPath = new File(storeDirectory, "user.h2").getAbsolutePath();
+    this.settingsJournal = new SettingsJournal(new File(this.settingsDirectory, SETTINGS_JOURNAL_FILE));
 
   }
 
@@ -124,16 +130,38 @@ public class StorageManager implements Runnable {
     final int tableCount = getTableCount(userDB);
 
     if (tableCount == 0) {
-      final InputStream schemaStream = getClass().getResourceAsStream("/sql/schema.sql");
-      try (
-        final Scanner scanner = new Scanner(schemaStream, "UTF-8")) {
-        final String text = scanner.useDelimiter("\\A").next();
-        userDB.execute(text);
-      }
+      executeScript(userDB, "/sql/schema.sql");
+    } else {
+      upgradeDB(userDB);
     }
 
   }
 
+  /**
+   * Brings a database created by an older version up to
+   * {@link #SCHEMA_VERSION}, one script at a time.
+   */
+  private static void upgradeDB(final DSLContext userDB) {
+    final GlobalsRecord globals = userDB.fetchOne(Globals.GLOBALS);
+    int version = globals.getSchemaversion();
+    while (version < SCHEMA_VERSION) {
+      version++;
+      logger.info("upgradeDB(): Upgrading database to schema version " + version + ".");
+      executeScript(userDB, "/sql/upgrade-" + version + ".sql");
+      globals.setSchemaversion(version);
+      globals.store();
+    }
+  }
+
+  private static void executeScript(final DSLContext userDB, final String resourceName) {
+    final InputStream schemaStream = StorageManager.class.getResourceAsStream(resourceName);
+    try (
+      final Scanner scanner = new Scanner(schemaStream, "UTF-8")) {
+      final String text = scanner.useDelimiter("\\A").next();
+      userDB.execute(text);
+    }
+  }
+
   private static int getTableCount(final DSLContext userDB) {
     // TODO: https://stackoverflow.com/questions/24741761/how-to-check-if-a-table-exists-in-jooq
     final int tableCount =
@@ -186,6 +214,22 @@ public class StorageManager implements Runnable {
     return this.cacheRootDirectory;
   }
 
+  /**
+   * Gets the directory that libraries nested in the application jar are
+   * extracted to. It is created when first needed.
+   */
+  public File getLibraryCacheDirectory() {
+    return new File(this.storeDirectory, LIBRARY_CACHE_DIR);
+  }
+
+  /**
+   * Gets the journal of the persistent cache index. It is kept outside of the
+   * cache root so it cannot collide with host directories.
+   */
+  public File getCacheIndexFile() {
+    return new File(this.storeDirectory, CACHE_INDEX_FILE);
+  }
+
   private final Map<String, RestrictedStore> restrictedStoreCache = new HashMap<>();
 
   /**
@@ -236,34 +280,66 @@ public class StorageManager implements Runnable {
     return new File(this.storeDirectory, SETTINGS_DIR);
   }
 
+  /**
+   * Saves a settings object as a section of the settings journal. Only this
+   * section is written.
+   */
   public void saveSettings(final String name, final Serializable data) throws IOException {
-    final File dir = this.getSettingsDirectory();
-    if (!dir.exists()) {
-      dir.mkdirs();
-    }
-    final File file = new File(dir, name);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
     try (
-        final OutputStream out = new FileOutputStream(file);
-        final BufferedOutputStream bos = new BufferedOutputStream(out);
-        final ObjectOutputStream oos = new ObjectOutputStream(bos);) {
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);) {
       oos.writeObject(data);
-      oos.flush();
+    }
+    this.settingsJournal.write(name, bytes.toByteArray());
+    // Settings saved by older versions had a file per section.
+    final File legacyFile = new File(this.getSettingsDirectory(), name);
+    if (legacyFile.exists()) {
+      legacyFile.delete();
     }
   }
 
+  /**
+   * Reads a settings object saved with {@link #saveSettings(String, Serializable)},
+   * or saved by older versions in a file of the settings directory. Only this
+   * section is read.
+   */
   public Serializable retrieveSettings(final String name, final ClassLoader classLoader) throws IOException, ClassNotFoundException {
-    final File dir = this.getSettingsDirectory();
-    if (!dir.exists()) {
-      return null;
+    final byte[] data = this.retrieveSettingsData(name);
+    return data == null ? null : readSettings(new ByteArrayInputStream(data), classLoader);
+  }
+
+  /**
+   * Gets the serialized form of a settings object, for settings whose classes
+   * have changed since they were saved. Returns <code>null</code> if the
+   * section does not exist.
+   */
+  public byte[] retrieveSettingsData(final String name) throws IOException {
+    final byte[] data = this.settingsJournal.read(name);
+    if (data != null) {
+      return data;
     }
-    final File file = new File(dir, name);
+    final File file = new File(this.getSettingsDirectory(), name);
     if (!file.exists()) {
       return null;
     }
+    return Files.readAllBytes(file.toPath());
+  }
+
+  /**
+   * Removes a settings section, including a file saved by older versions.
+   */
+  public void removeSettings(final String name) throws IOException {
+    this.settingsJournal.remove(name);
+    final File legacyFile = new File(this.getSettingsDirectory(), name);
+    if (legacyFile.exists()) {
+      legacyFile.delete();
+    }
+  }
+
+  private static Serializable readSettings(final InputStream in, final ClassLoader classLoader) throws IOException,
+      ClassNotFoundException {
     try (
-        final InputStream in = new FileInputStream(file);
-        final BufferedInputStream bin = new BufferedInputStream(in);
-        final ObjectInputStream ois = new ClassLoaderObjectInputStream(bin, classLoader)) {
+        final ObjectInputStream ois = new ClassLoaderObjectInputStream(in, classLoader)) {
       return (Serializable) ois.readObject();
     } catch (final InvalidClassException ice) {
       ice.printStackTrace();
@@ -331,6 +407,7 @@ public class StorageManager implements Runnable {
   }
 
   public synchronized void shutdown() {
+    this.settingsJournal.close();
     if (dbConnection != null) {
       try {
         dbConnection.close();
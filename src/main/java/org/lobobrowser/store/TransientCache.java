@@ -0,0 +1,323 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.store;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The in-memory tier of the cache. Entries have an approximate size, and the
+ * least valuable entries according to the {@link CacheEvictionPolicy} are
+ * evicted when the total exceeds the budget. Entries larger than a percentage
+ * of the budget are not admitted at all.
+ * <p>
+ * Lookups do not lock. They are recorded in small per-thread-striped buffers
+ * that are applied to the eviction order in batches, under a lock that is
+ * otherwise only held by writes. When a buffer is full, further accesses are
+ * dropped, so the eviction order is approximate under heavy load.
+ */
+final class TransientCache {
+  private static final int NUM_READ_BUFFERS = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2);
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ReadBuffer[] readBuffers = new ReadBuffer[NUM_READ_BUFFERS];
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  // The following fields are guarded by evictionLock.
+  private CacheEvictionPolicy policy;
+  private EvictionQueue queue;
+  private long approxMaxSize;
+  private int maxEntryPercent = 100;
+  private long approxSize = 0;
+  private long evictions = 0;
+  private long rejections = 0;
+
+  TransientCache(final long approxMaxSize, final CacheEvictionPolicy policy) {
+    this.approxMaxSize = approxMaxSize;
+    this.policy = policy;
+    this.queue = EvictionQueue.create(policy);
+    for (int i = 0; i < this.readBuffers.length; i++) {
+      this.readBuffers[i] = new ReadBuffer();
+    }
+  }
+
+  Object get(final String key) {
+    final Entry entry = this.entries.get(key);
+    if (entry == null) {
+      this.misses.increment();
+    } else {
+      this.hits.increment();
+    }
+    final ReadBuffer buffer = this.readBuffers[(int) Thread.currentThread().getId() & (NUM_READ_BUFFERS - 1)];
+    if (buffer.offer(key) && this.evictionLock.tryLock()) {
+      try {
+        this.drainReadBuffers();
+      } finally {
+        this.evictionLock.unlock();
+      }
+    }
+    return entry == null ? null : entry.value;
+  }
+
+  void put(final String key, final Object value, final int approxSize) {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      this.drainReadBuffers();
+      // Admission is decided before the current value is removed. A value
+      // that replaces a cached one only has to fit.
+      final Entry existing = this.entries.get(key);
+      final long existingSize = existing == null ? 0 : existing.approxSize;
+      boolean admitted = approxSize <= ((this.approxMaxSize * this.maxEntryPercent) / 100);
+      List<String> victims = null;
+      if (admitted) {
+        victims = this.getVictims(((this.approxSize - existingSize) + approxSize) - this.approxMaxSize, key);
+        admitted = (existing != null) || this.queue.admit(key, victims);
+      }
+      if (!admitted) {
+        this.rejections++;
+        if (existing != null) {
+          // The cached value is outdated.
+          this.removeEntry(key);
+        }
+        return;
+      }
+      this.removeEntry(key);
+      for (final String victim : victims) {
+        this.removeEntry(victim);
+        this.evictions++;
+      }
+      this.entries.put(key, new Entry(value, approxSize));
+      this.queue.add(key);
+      this.approxSize += approxSize;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void remove(final String key) {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      this.removeEntry(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long getApproxMaxSize() {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      return this.approxMaxSize;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void setApproxMaxSize(final long approxMaxSize) {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      this.approxMaxSize = approxMaxSize;
+      this.drainReadBuffers();
+      for (final String victim : this.getVictims(this.approxSize - this.approxMaxSize, null)) {
+        this.removeEntry(victim);
+        this.evictions++;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void setMaxEntryPercent(final int maxEntryPercent) {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      this.maxEntryPercent = maxEntryPercent;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  CacheEvictionPolicy getPolicy() {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      return this.policy;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Changes the eviction policy. Current entries are kept in their current
+   * eviction order.
+   */
+  void setPolicy(final CacheEvictionPolicy policy) {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      if (policy == this.policy) {
+        return;
+      }
+      this.drainReadBuffers();
+      final EvictionQueue newQueue = EvictionQueue.create(policy);
+      final Iterator<String> i = this.queue.iterator();
+      while (i.hasNext()) {
+        newQueue.add(i.next());
+      }
+      this.queue = newQueue;
+      this.policy = policy;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  CacheInfo getInfo() {
+    final ReentrantLock lock = this.evictionLock;
+    lock.lock();
+    try {
+      final List<CacheInfo.EntryInfo> entryInfoList = new ArrayList<>(this.entries.size());
+      for (final Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+        final Entry entry = mapEntry.getValue();
+        final Class<?> valueClass = entry.value == null ? null : entry.value.getClass();
+        entryInfoList.add(new CacheInfo.EntryInfo(mapEntry.getKey(), valueClass, entry.approxSize));
+      }
+      return new CacheInfo(this.approxSize, this.entries.size(), entryInfoList, new CacheStatistics(this.policy, this.hits.sum(),
+          this.misses.sum(), this.evictions, this.rejections));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drainReadBuffers() {
+    // Must be called holding the eviction lock.
+    final EvictionQueue queue = this.queue;
+    final Map<String, Entry> entries = this.entries;
+    for (final ReadBuffer buffer : this.readBuffers) {
+      buffer.drain(key -> {
+        queue.recordRequest(key);
+        if (entries.containsKey(key)) {
+          queue.access(key);
+        }
+      });
+    }
+  }
+
+  /**
+   * Gets the keys to evict to free the given number of bytes.
+   *
+   * @param exclude
+   *          A key that must not be evicted, or <code>null</code>.
+   */
+  private List<String> getVictims(final long bytesToFree, final String exclude) {
+    // Must be called holding the eviction lock.
+    final List<String> victims = new ArrayList<>();
+    long bytes = 0;
+    final Iterator<String> i = this.queue.iterator();
+    while ((bytes < bytesToFree) && i.hasNext()) {
+      final String key = i.next();
+      if (key.equals(exclude)) {
+        continue;
+      }
+      victims.add(key);
+      bytes += this.entries.get(key).approxSize;
+    }
+    return victims;
+  }
+
+  private void removeEntry(final String key) {
+    // Must be called holding the eviction lock.
+    final Entry entry = this.entries.remove(key);
+    if (entry != null) {
+      this.queue.remove(key);
+      this.approxSize -= entry.approxSize;
+    }
+  }
+
+  private static final class Entry {
+    private final Object value;
+    private final int approxSize;
+
+    private Entry(final Object value, final int approxSize) {
+      this.value = value;
+      this.approxSize = approxSize;
+    }
+  }
+
+  /**
+   * A bounded buffer of recent lookups. Offers never block; they are dropped
+   * when the buffer is full or contended.
+   */
+  private static final class ReadBuffer {
+    private static final int SIZE = 64;
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicReferenceArray<String> buffer = new AtomicReferenceArray<>(SIZE);
+    private final AtomicLong writeCounter = new AtomicLong();
+    private volatile long readCounter = 0;
+
+    /**
+     * @return Whether the buffer should be drained.
+     */
+    boolean offer(final String key) {
+      final long head = this.readCounter;
+      final long tail = this.writeCounter.get();
+      final long size = tail - head;
+      if (size >= SIZE) {
+        return true;
+      }
+      if (this.writeCounter.compareAndSet(tail, tail + 1)) {
+        this.buffer.lazySet((int) (tail & MASK), key);
+        return (size + 1) >= (SIZE / 2);
+      }
+      return false;
+    }
+
+    void drain(final Consumer<String> consumer) {
+      // Only called by one thread at a time.
+      long head = this.readCounter;
+      final long tail = this.writeCounter.get();
+      for (; head < tail; head++) {
+        final int index = (int) (head & MASK);
+        final String key = this.buffer.get(index);
+        if (key == null) {
+          // Claimed but not written yet.
+          break;
+        }
+        this.buffer.lazySet(index, null);
+        consumer.accept(key);
+      }
+      this.readCounter = head;
+    }
+  }
+}
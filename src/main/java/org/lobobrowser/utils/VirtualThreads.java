@@ -0,0 +1,103 @@
+/*
+    GNU GENERAL PUBLIC LICENSE
+    Copyright (C) 2006 The Lobo Project
+
+    This program is free software; you can redistribute it and/or
+    modify it under the terms of the GNU General Public
+    License as published by the Free Software Foundation; either
+    verion 2 of the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Contact info: lobochief@users.sourceforge.net
+ */
+package org.lobobrowser.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts daemon threads, using virtual threads when requested and the runtime
+ * supports them (Java 21 or later). The build targets Java 8, so virtual
+ * threads are looked up reflectively.
+ * <p>
+ * While a security manager is installed, virtual threads are started with no
+ * permissions at all, so their tasks are run with the access context a
+ * platform thread started here would inherit.
+ */
+public final class VirtualThreads {
+  private static final Logger logger = Logger.getLogger(VirtualThreads.class.getName());
+  private static final Method ofVirtualMethod;
+  private static final Method builderNameMethod;
+  private static final Method builderStartMethod;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method start = null;
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builderClass.getMethod("name", String.class);
+      start = builderClass.getMethod("start", Runnable.class);
+    } catch (final ClassNotFoundException | NoSuchMethodException e) {
+      // Virtual threads not available in this runtime.
+      ofVirtual = null;
+    }
+    ofVirtualMethod = ofVirtual;
+    builderNameMethod = name;
+    builderStartMethod = start;
+  }
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Whether the runtime supports virtual threads.
+   */
+  public static boolean isSupported() {
+    return ofVirtualMethod != null;
+  }
+
+  /**
+   * Starts a daemon thread that runs the given task. A virtual thread is used
+   * if <code>virtual</code> is <code>true</code> and the runtime supports it,
+   * otherwise a platform thread is used.
+   */
+  public static Thread start(final Runnable task, final String name, final boolean virtual) {
+    // Reason: Threads should not inherit the access context of the caller.
+    return AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+      if (virtual && isSupported()) {
+        // Virtual threads inherit no permissions, so the task is given the
+        // context a platform thread would have inherited.
+        final AccessControlContext context = AccessController.getContext();
+        final Runnable privilegedTask = () -> AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+          task.run();
+          return null;
+        }, context);
+        try {
+          final Object builder = builderNameMethod.invoke(ofVirtualMethod.invoke(null), name);
+          return (Thread) builderStartMethod.invoke(builder, privilegedTask);
+        } catch (final IllegalAccessException | InvocationTargetException e) {
+          logger.log(Level.WARNING, "start(): Unable to start virtual thread. Falling back to a platform thread.", e);
+        }
+      }
+      final Thread t = new Thread(task, name);
+      t.setDaemon(true);
+      t.start();
+      return t;
+    });
+  }
+}
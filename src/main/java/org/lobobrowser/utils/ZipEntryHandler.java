@@ -2,52 +2,63 @@ package org.lobobrowser.utils;
 
 import org.lobobrowser.extension.ExtensionManager;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
+/**
+ * Serves the entries of a jar nested in another jar.
+ * <p>
+ * Nothing is read when the handler is created. When the first entry is
+ * requested, the nested jar is extracted once into a cache directory, under a
+ * name derived from its CRC and size, and opened as a {@link ZipFile}. Only
+ * its central directory is read then; each entry is inflated when it is
+ * requested. Later runs reuse the extracted jar as long as the nested jar is
+ * unchanged and the extracted copy still has its CRC.
+ */
 public class ZipEntryHandler extends URLStreamHandler {
-  private final Map<String, byte[]> entryBufMap = new HashMap<>();
+  private static final Logger logger = Logger.getLogger(ZipEntryHandler.class.getName());
+  private final ZipFile outerJar;
+  private final ZipEntry nestedEntry;
+  private final File cacheDirectory;
+  private volatile ZipFile nestedJar;
 
-  public ZipEntryHandler(final ZipInputStream is) throws IOException {
-    processStream(is);
-  }
-
-  public void processStream(final ZipInputStream is) throws IOException {
-    final byte[] tempBuffer = new byte[8192 * 2];
-    ZipEntry nextEntry = null;
-    do {
-      nextEntry = is.getNextEntry();
-      if (nextEntry != null) {
-        if (!nextEntry.isDirectory()) {
-          {
-            int bytesRead = -1;
-            final ByteArrayOutputStream streamBuilder = new ByteArrayOutputStream();
-            while ((bytesRead = is.read(tempBuffer)) != -1) {
-              streamBuilder.write(tempBuffer, 0, bytesRead);
-            }
-            // System.out.println(nextEntry.getName());
-            entryBufMap.put(nextEntry.getName(), streamBuilder.toByteArray());
-          }
-        }
-        is.closeEntry();
-      }
-    } while (nextEntry != null);
+  /**
+   * @param outerJar
+   *          The jar containing the nested jar. It must stay open while the
+   *          handler is in use.
+   * @param nestedEntry
+   *          The entry of the nested jar.
+   * @param cacheDirectory
+   *          The directory to extract the nested jar to.
+   */
+  public ZipEntryHandler(final ZipFile outerJar, final ZipEntry nestedEntry, final File cacheDirectory) {
+    this.outerJar = outerJar;
+    this.nestedEntry = nestedEntry;
+    this.cacheDirectory = cacheDirectory;
   }
 
   @Override
   protected URLConnection openConnection(final URL u) throws IOException {
-    // System.out.println("Request: " + u);
     if (ExtensionManager.ZIPENTRY_PROTOCOL.equals(u.getProtocol())) {
-      // TODO: Check url host for faster processing. Or use a common zip handler
       final String uStr = u.toExternalForm();
       final String requestName = uStr.substring(uStr.indexOf("!/") + 2);
       if (requestName.length() == 0) {
@@ -55,29 +66,126 @@ public class ZipEntryHandler extends URLStreamHandler {
 
           @Override
           public void connect() throws IOException {
-            // TODO Auto-generated method stub
-
           }
         };
       }
-      final byte[] entry = entryBufMap.get(requestName);
-      if (requestName.contains("jooq")) {
-        System.out.println("req: " + requestName + " entry: " + entry);
+      final ZipFile nestedJar = this.getNestedJar();
+      final ZipEntry entry = nestedJar.getEntry(requestName);
+      if ((entry == null) || entry.isDirectory()) {
+        throw new FileNotFoundException(uStr);
       }
-      return entry == null ? null : new URLConnection(u) {
+      return new URLConnection(u) {
 
         @Override
         public void connect() throws IOException {
         }
 
+        @Override
+        public long getContentLengthLong() {
+          return entry.getSize();
+        }
+
         @Override
         public InputStream getInputStream() throws IOException {
-          return new ByteArrayInputStream(entry);
+          return nestedJar.getInputStream(entry);
         }
       };
     } else {
       return null;
     }
+  }
+
+  private ZipFile getNestedJar() throws IOException {
+    ZipFile nestedJar = this.nestedJar;
+    if (nestedJar == null) {
+      synchronized (this) {
+        nestedJar = this.nestedJar;
+        if (nestedJar == null) {
+          try {
+            // Reason: Entries are loaded on behalf of class loaders, whatever
+            // the code that triggers the loading.
+            nestedJar = AccessController.doPrivileged((PrivilegedExceptionAction<ZipFile>) () -> new ZipFile(this.extract()));
+          } catch (final PrivilegedActionException pae) {
+            throw (IOException) pae.getException();
+          }
+          this.nestedJar = nestedJar;
+        }
+      }
+    }
+    return nestedJar;
+  }
 
+  /**
+   * Extracts the nested jar into the cache directory, unless an earlier run
+   * already did.
+   */
+  private File extract() throws IOException {
+    final ZipEntry nestedEntry = this.nestedEntry;
+    final String entryName = nestedEntry.getName();
+    final String flatName = entryName.replace('/', '_');
+    final File cacheDirectory = this.cacheDirectory;
+    final File file = new File(cacheDirectory, Long.toHexString(nestedEntry.getCrc()) + "-" + nestedEntry.getSize() + "-" + flatName);
+    if (file.isFile() && (file.length() == nestedEntry.getSize()) && hasCrc(file, nestedEntry.getCrc())) {
+      return file;
+    }
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      throw new IOException("Unable to create directory " + cacheDirectory + ".");
+    }
+    final File tempFile = File.createTempFile("extract", ".tmp", cacheDirectory);
+    try {
+      try (
+        final InputStream in = this.outerJar.getInputStream(nestedEntry);
+        final OutputStream out = new FileOutputStream(tempFile)) {
+        final byte[] buffer = new byte[8192 * 2];
+        int numRead;
+        while ((numRead = in.read(buffer)) != -1) {
+          out.write(buffer, 0, numRead);
+        }
+      }
+      try {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (final AtomicMoveNotSupportedException amns) {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      tempFile.delete();
+    }
+    // Remove extractions of earlier versions of the same jar.
+    final File[] oldFiles = cacheDirectory.listFiles((dir, name) -> {
+      final String[] parts = name.split("-", 3);
+      return (parts.length == 3) && parts[2].equals(flatName) && !name.equals(file.getName());
+    });
+    if (oldFiles != null) {
+      for (final File oldFile : oldFiles) {
+        if (!oldFile.delete()) {
+          logger.log(Level.INFO, "extract(): Unable to delete outdated library " + oldFile + ".");
+        }
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Checks an earlier extraction, which may have been modified or truncated
+   * since.
+   */
+  private static boolean hasCrc(final File file, final long expectedCrc) {
+    final CRC32 crc = new CRC32();
+    try (
+      final InputStream in = new FileInputStream(file)) {
+      final byte[] buffer = new byte[8192 * 2];
+      int numRead;
+      while ((numRead = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, numRead);
+      }
+    } catch (final IOException ioe) {
+      logger.log(Level.INFO, "hasCrc(): Unable to read " + file + ".", ioe);
+      return false;
+    }
+    if (crc.getValue() != expectedCrc) {
+      logger.log(Level.WARNING, "hasCrc(): Extracted library " + file + " is corrupt. Extracting it again.");
+      return false;
+    }
+    return true;
   }
-}
\ No newline at end of file
+}
@@ -24,4 +24,11 @@ CREATE TABLE IF NOT EXISTS GLOBALS(
   PRIMARY KEY (notacolumn)
 );
 
-INSERT INTO GLOBALS VALUES ('', 0, FALSE);
+CREATE TABLE IF NOT EXISTS HISTORY(
+  url                     VARCHAR NOT NULL,
+  visitCount              INT4 NOT NULL,
+  lastVisitTime           INT8 NOT NULL,
+  PRIMARY KEY (url)
+);
+
+INSERT INTO GLOBALS VALUES ('', 1, FALSE);
@@ -0,0 +1,6 @@
+CREATE TABLE IF NOT EXISTS HISTORY(
+  url                     VARCHAR NOT NULL,
+  visitCount              INT4 NOT NULL,
+  lastVisitTime           INT8 NOT NULL,
+  PRIMARY KEY (url)
+);